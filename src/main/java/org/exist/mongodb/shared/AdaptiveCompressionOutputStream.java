@@ -0,0 +1,169 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.exist.mongodb.shared;
+
+import org.apache.commons.io.output.CountingOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream that compresses the data only when it is worth it. The first
+ * 'sampleSize' bytes are kept and compressed on trial with
+ * {@link CompressionProbe#isCompressible(byte[], int)}; depending on the result
+ * all data is written compressed or as-is. With a sample size of 0 the data is
+ * always compressed.
+ *
+ * The target stream is closed when this stream is closed.
+ *
+ * @author Dannes Wessels
+ */
+public class AdaptiveCompressionOutputStream extends OutputStream {
+
+    private final CountingOutputStream target;
+    private final CompressionCodec codec;
+    private final int level;
+
+    private byte[] sample;
+    private int sampleLength;
+
+    private OutputStream out;
+    private boolean compressed;
+    private long nanos;
+    private long probeNanos;
+
+    /**
+     * Constructor.
+     *
+     * @param target     Stream receiving the stored data
+     * @param codec      The compression codec
+     * @param level      The compression level
+     * @param sampleSize Number of bytes used to decide, 0 to always compress.
+     * @throws IOException The compressing stream could not be created.
+     */
+    public AdaptiveCompressionOutputStream(final OutputStream target, final CompressionCodec codec, final int level,
+                                           final int sampleSize) throws IOException {
+        this.target = new CountingOutputStream(target);
+        this.codec = codec;
+        this.level = level;
+
+        if (sampleSize > 0) {
+            sample = new byte[sampleSize];
+        } else {
+            compressed = true;
+            out = codec.compress(this.target, level);
+        }
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        int offset = off;
+        int length = len;
+
+        if (out == null) {
+            final int count = Math.min(length, sample.length - sampleLength);
+            System.arraycopy(b, offset, sample, sampleLength, count);
+            sampleLength += count;
+            offset += count;
+            length -= count;
+
+            if (sampleLength < sample.length) {
+                return;
+            }
+            decide();
+        }
+
+        if (length > 0) {
+            timedWrite(b, offset, length);
+        }
+    }
+
+    /**
+     * Compress the sample on trial, then write it.
+     */
+    private void decide() throws IOException {
+        final long start = System.nanoTime();
+        compressed = CompressionProbe.isCompressible(sample, sampleLength);
+        probeNanos = System.nanoTime() - start;
+
+        out = compressed ? codec.compress(target, level) : target;
+
+        timedWrite(sample, 0, sampleLength);
+        sample = null;
+    }
+
+    private void timedWrite(final byte[] b, final int off, final int len) throws IOException {
+        final long start = System.nanoTime();
+        out.write(b, off, len);
+        nanos += System.nanoTime() - start;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (out != null) {
+            out.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (out == null) {
+            decide();
+        }
+
+        final long start = System.nanoTime();
+        out.close();
+        nanos += System.nanoTime() - start;
+    }
+
+    /**
+     * @return TRUE when the data is written compressed.
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * @return Number of bytes written to the target stream.
+     */
+    public long getStoredBytes() {
+        return target.getByteCount();
+    }
+
+    /**
+     * @return Time spent writing to the (compressing) stream, in nanoseconds.
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * @return Time spent on the trial compression, in nanoseconds.
+     */
+    public long getProbeNanos() {
+        return probeNanos;
+    }
+}
@@ -23,7 +23,10 @@ package org.exist.mongodb.shared;
 import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
-import org.bson.types.ObjectId;
+import com.mongodb.DBRef;
+import org.bson.BSONObject;
+import org.bson.BsonTimestamp;
+import org.bson.types.*;
 import org.exist.xquery.XPathException;
 import org.exist.xquery.XQueryContext;
 import org.exist.xquery.functions.array.ArrayType;
@@ -32,172 +35,254 @@ import org.exist.xquery.value.*;
 
 import java.math.BigDecimal;
 import java.math.BigInteger;
-import java.util.ArrayList;
-import java.util.HashMap;
-
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Conversion of BSON values into eXist-db XDM values. The conversion of a
+ * value is looked up by its class in a dispatch table.
+ *
+ * <ul>
+ * <li>document: map(*), array: array(*), null and undefined: empty sequence</li>
+ * <li>string and symbol: xs:string, int32, int64: xs:integer, double: xs:double</li>
+ * <li>decimal128: xs:decimal (xs:double for NaN and infinity)</li>
+ * <li>date: xs:dateTime, binary: xs:base64Binary</li>
+ * <li>object id and UUID: xs:string</li>
+ * <li>timestamp, regular expression, javascript, min/max key and DBRef:
+ * map(*) in MongoDB extended JSON notation, e.g. map { "$regex" : "^a", "$options" : "i" }</li>
+ * </ul>
+ */
 public class BSONtoMap {
 
     /**
-     * Convert the CouchBase JSON object into an eXistdb MapType
+     * Conversion of a single value.
+     */
+    @FunctionalInterface
+    private interface Converter {
+        Sequence convert(Object value, XQueryContext context) throws XPathException;
+    }
+
+    private static final Map<Class<?>, Converter> CONVERTERS = new ConcurrentHashMap<>();
+
+    // Converters for super types, used when the class of a value is not registered
+    private static final Map<Class<?>, Converter> FALLBACKS = new LinkedHashMap<>();
+
+    static {
+        CONVERTERS.put(BasicDBObject.class, (value, context) -> convertBSONObject((BSONObject) value, context));
+        CONVERTERS.put(BasicDBList.class, (value, context) -> convertList((List<?>) value, context));
+        CONVERTERS.put(String.class, (value, context) -> new StringValue((String) value));
+        CONVERTERS.put(Integer.class, (value, context) -> new IntegerValue((Integer) value));
+        CONVERTERS.put(Long.class, (value, context) -> new IntegerValue((Long) value));
+        CONVERTERS.put(Short.class, (value, context) -> new IntegerValue((Short) value));
+        CONVERTERS.put(Double.class, (value, context) -> new DoubleValue((Double) value));
+        CONVERTERS.put(Float.class, (value, context) -> new FloatValue((Float) value));
+        CONVERTERS.put(Boolean.class, (value, context) -> BooleanValue.valueOf((Boolean) value));
+        CONVERTERS.put(BigInteger.class, (value, context) -> new IntegerValue((BigInteger) value));
+        CONVERTERS.put(BigDecimal.class, (value, context) -> new DecimalValue((BigDecimal) value));
+        CONVERTERS.put(Decimal128.class, (value, context) -> decimal((Decimal128) value));
+        CONVERTERS.put(ObjectId.class, (value, context) -> new StringValue(((ObjectId) value).toHexString()));
+        CONVERTERS.put(UUID.class, (value, context) -> new StringValue(value.toString()));
+        CONVERTERS.put(Date.class, (value, context) -> new DateTimeValue((Date) value));
+        CONVERTERS.put(byte[].class, (value, context) -> binary((byte[]) value));
+        CONVERTERS.put(Binary.class, (value, context) -> binary(((Binary) value).getData()));
+        CONVERTERS.put(Symbol.class, (value, context) -> new StringValue(((Symbol) value).getSymbol()));
+        CONVERTERS.put(BSONTimestamp.class, (value, context) ->
+                timestamp(((BSONTimestamp) value).getTime(), ((BSONTimestamp) value).getInc(), context));
+        CONVERTERS.put(BsonTimestamp.class, (value, context) ->
+                timestamp(((BsonTimestamp) value).getTime(), ((BsonTimestamp) value).getInc(), context));
+        CONVERTERS.put(Pattern.class, (value, context) -> regex((Pattern) value, context));
+        CONVERTERS.put(Code.class, (value, context) -> code(((Code) value).getCode(), null, context));
+        CONVERTERS.put(CodeWScope.class, (value, context) ->
+                code(((CodeWScope) value).getCode(), convertValue(((CodeWScope) value).getScope(), context), context));
+        CONVERTERS.put(MinKey.class, (value, context) -> singleton("$minKey", new IntegerValue(1), context));
+        CONVERTERS.put(MaxKey.class, (value, context) -> singleton("$maxKey", new IntegerValue(1), context));
+        CONVERTERS.put(DBRef.class, (value, context) -> dbRef((DBRef) value, context));
+
+        // Lists first: BasicDBList is a BSONObject as well
+        FALLBACKS.put(List.class, (value, context) -> convertList((List<?>) value, context));
+        FALLBACKS.put(Map.class, (value, context) -> convertMap((Map<?, ?>) value, context));
+        FALLBACKS.put(BSONObject.class, (value, context) -> convertBSONObject((BSONObject) value, context));
+        FALLBACKS.put(Date.class, CONVERTERS.get(Date.class));
+        FALLBACKS.put(Pattern.class, CONVERTERS.get(Pattern.class));
+    }
+
+    /**
+     * Convert the BSON object into an eXistdb MapType
      *
-     * @param json    The couchbase JSON object
+     * @param json    The BSON object
      * @param context XQuery context
-     * @return eXist-db map representing the JSON object
+     * @return eXist-db map representing the BSON object
      * @throws XPathException The conversion failed.
      */
     public static MapType convert(final DBObject json, final XQueryContext context) throws XPathException {
-
-        return convertJsonObject(json, context);
+        return convertBSONObject(json, context);
     }
 
     /**
-     * Convert the Couchbase JSON array into an eXist-db Array type,
+     * Convert a BSON value to the eXist-db equivalent.
      *
-     * @param jsonObject The Json Object
-     * @param context    Xquery context
-     * @return The eXist-db representation of the jsonObject
+     * @param obj     The to be converted java object
+     * @param context Xquery context
+     * @return The eXist-db representation of the object
      * @throws XPathException The conversion can not be performed.
      */
-    private static MapType convertJsonObject(final DBObject jsonObject, final XQueryContext context) throws XPathException {
-
-        final MapType result = new MapType(context);
+    public static Sequence convertValue(final Object obj, final XQueryContext context) throws XPathException {
 
-        for (final String name : jsonObject.keySet()) {
-            final Object obj = jsonObject.get(name);
-
-            if (obj == null) {
-                result.add(new StringValue(name), Sequence.EMPTY_SEQUENCE);
+        if (obj == null) {
+            return Sequence.EMPTY_SEQUENCE;
+        }
 
-            } else if (obj instanceof BasicDBObject) {
-                final BasicDBObject jo = (BasicDBObject) obj;
-                result.add(new StringValue(name), convertJsonObject(jo, context));
+        Converter converter = CONVERTERS.get(obj.getClass());
+        if (converter == null) {
+            converter = findConverter(obj.getClass());
+        }
 
-            } else if (obj instanceof BasicDBList) {
-                final BasicDBList ja = (BasicDBList) obj;
-                final ArrayType array = convertJsonArray(ja, context);
-                result.add(new StringValue(name), array);
+        return converter.convert(obj, context);
+    }
 
-            } else if (obj instanceof HashMap) {
-                final HashMap map = (HashMap) obj;
-                final BasicDBObject jo = new BasicDBObject(map);
-                result.add(new StringValue(name), convertJsonObject(jo, context));
+    /**
+     * Find the converter of a super type and register it for the class.
+     */
+    private static Converter findConverter(final Class<?> clazz) throws XPathException {
 
-            } else {
-                result.add(new StringValue(name), convertToSequence(obj, context));
+        for (final Map.Entry<Class<?>, Converter> entry : FALLBACKS.entrySet()) {
+            if (entry.getKey().isAssignableFrom(clazz)) {
+                CONVERTERS.put(clazz, entry.getValue());
+                return entry.getValue();
             }
         }
 
-        return result;
-
+        throw new XPathException(String.format("Cannot convert objects of type '%s' to an eXistdb type.",
+                clazz.getCanonicalName()));
     }
 
-    /**
-     * Convert the Couchbase JSON array into an eXist-db Array type,
-     *
-     * @param ja      The Json Array
-     * @param context Xquery context
-     * @return The eXist-db representation of the array
-     * @throws XPathException The conversion can not be performed.
-     */
-    private static ArrayType convertJsonArray(final BasicDBList ja, final XQueryContext context) throws XPathException {
+    private static MapType convertBSONObject(final BSONObject bsonObject, final XQueryContext context) throws XPathException {
 
-        final Sequence sequence = new ValueSequence();
+        final MapType result = new MapType(context);
 
-        for (final Object obj : ja) {
+        for (final String name : bsonObject.keySet()) {
+            result.add(new StringValue(name), convertValue(bsonObject.get(name), context));
+        }
 
-            if (obj instanceof BasicDBObject) {
-                final BasicDBObject jo = (BasicDBObject) obj;
-                sequence.add(convertJsonObject(jo, context));
+        return result;
+    }
 
-            } else if (obj instanceof BasicDBList) {
-                final BasicDBList newarray = (BasicDBList) obj;
-                sequence.add(convertJsonArray(newarray, context));
+    private static MapType convertMap(final Map<?, ?> map, final XQueryContext context) throws XPathException {
 
-            } else if (obj instanceof HashMap) {
-                final HashMap map = (HashMap) obj;
-                final BasicDBObject jo = new BasicDBObject(map);
-                sequence.add(convertJsonObject(jo, context));
+        final MapType result = new MapType(context);
 
-            } else if (obj instanceof ArrayList) {
-                final ArrayList<Object> al = (ArrayList) obj;
-                final Sequence tmpSequence = new ValueSequence();
+        for (final Map.Entry<?, ?> entry : map.entrySet()) {
+            result.add(new StringValue(String.valueOf(entry.getKey())), convertValue(entry.getValue(), context));
+        }
 
-                for (final Object o : al.toArray()) {
-                    tmpSequence.addAll(convertToSequence(o, context));
-                }
+        return result;
+    }
 
-                sequence.add(new ArrayType(context, tmpSequence));
+    private static ArrayType convertList(final List<?> list, final XQueryContext context) throws XPathException {
 
-            } else if (obj == null) {
-                sequence.add(AtomicValue.EMPTY_VALUE);
+        final Sequence sequence = new ValueSequence();
 
+        for (final Object obj : list) {
+            if (obj == null) {
+                sequence.add(AtomicValue.EMPTY_VALUE);
             } else {
-                sequence.addAll(convertToSequence(obj, context));
+                sequence.addAll(convertValue(obj, context));
             }
-
         }
 
         return new ArrayType(context, sequence);
-
     }
 
-    /**
-     * Convert an object to the eXist-db equivalent, when possible.
-     *
-     * @param obj     The to be converted java object
-     * @param context Xquery context
-     * @return The eXist-db representation of the object
-     * @throws XPathException The conversion can not be performed.
-     */
-    private static Sequence convertToSequence(final Object obj, final XQueryContext context) throws XPathException {
-
-        if (obj instanceof String) {
-            return new StringValue((String) obj);
-
-        } else if (obj instanceof Integer) {
-            return new IntegerValue((Integer) obj);
-
-        } else if (obj instanceof Long) {
-            return new IntegerValue((Long) obj);
-
-        } else if (obj instanceof Double) {
-            return new DoubleValue((Double) obj);
-
-        } else if (obj instanceof Boolean) {
-            return new BooleanValue((Boolean) obj);
+    static Sequence decimal(final Decimal128 value) throws XPathException {
+        if (value.isNaN()) {
+            return new DoubleValue(Double.NaN);
 
-        } else if (obj instanceof BigInteger) {
-            return new IntegerValue((BigInteger) obj);
-
-        } else if (obj instanceof BigDecimal) {
-            return new DecimalValue((BigDecimal) obj);
-
-        } else if (obj instanceof Float) {
-            return new FloatValue((Float) obj);
+        } else if (value.isInfinite()) {
+            return new DoubleValue(value.isNegative() ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY);
+        }
+        return new DecimalValue(value.bigDecimalValue());
+    }
 
-//        } else if (obj instanceof Map) {
+    static Sequence binary(final byte[] data) throws XPathException {
+        return new BinaryValueFromBinaryString(new Base64BinaryValueType(), Base64.getEncoder().encodeToString(data));
+    }
 
+    static Sequence timestamp(final int time, final int inc, final XQueryContext context) throws XPathException {
+        final MapType value = new MapType(context);
+        value.add(new StringValue("t"), new IntegerValue(Integer.toUnsignedLong(time)));
+        value.add(new StringValue("i"), new IntegerValue(Integer.toUnsignedLong(inc)));
+        return singleton("$timestamp", value, context);
+    }
 
-        } else if (obj instanceof ArrayList) {
-            final ArrayList<Object> al = (ArrayList) obj;
+    static Sequence regex(final Pattern pattern, final XQueryContext context) throws XPathException {
+        return regex(pattern.pattern(), regexOptions(pattern.flags()), context);
+    }
 
-            // Special case
-            final Sequence sequence = new ValueSequence();
+    static Sequence regex(final String pattern, final String options, final XQueryContext context) throws XPathException {
+        final MapType result = new MapType(context);
+        result.add(new StringValue("$regex"), new StringValue(pattern));
+        result.add(new StringValue("$options"), new StringValue(options));
+        return result;
+    }
 
-            for (final Object o : al.toArray()) {
-                sequence.addAll(convertToSequence(o, context));
-            }
+    static Sequence code(final String code, final Sequence scope, final XQueryContext context) throws XPathException {
+        final MapType result = new MapType(context);
+        result.add(new StringValue("$code"), new StringValue(code));
+        if (scope != null) {
+            result.add(new StringValue("$scope"), scope);
+        }
+        return result;
+    }
 
-            return new ArrayType(context, sequence);
+    static Sequence singleton(final String key, final Sequence value, final XQueryContext context) throws XPathException {
+        final MapType result = new MapType(context);
+        result.add(new StringValue(key), value);
+        return result;
+    }
 
-        } else if (obj == null) {
-            return Sequence.EMPTY_SEQUENCE;
+    private static Sequence dbRef(final DBRef ref, final XQueryContext context) throws XPathException {
+        final MapType result = new MapType(context);
+        result.add(new StringValue("$ref"), new StringValue(ref.getCollectionName()));
+        result.add(new StringValue("$id"), convertValue(ref.getId(), context));
+        if (ref.getDatabaseName() != null) {
+            result.add(new StringValue("$db"), new StringValue(ref.getDatabaseName()));
+        }
+        return result;
+    }
 
-        } else if (obj instanceof ObjectId) {
-            return new StringValue( ((ObjectId) obj).toHexString() );
+    /**
+     * Convert a UUID stored as binary subtype 3 (Java legacy) or 4 (standard).
+     */
+    static Sequence uuid(final byte[] data, final boolean javaLegacy) {
+        final ByteBuffer buffer = ByteBuffer.wrap(data);
+        if (javaLegacy) {
+            buffer.order(java.nio.ByteOrder.LITTLE_ENDIAN);
         }
-//todo code
-        throw new XPathException(String.format("Cannot convert '%s' to an eXistdb type. %s", obj, obj.getClass().getCanonicalName()));
+        return new StringValue(new UUID(buffer.getLong(0), buffer.getLong(8)).toString());
+    }
 
+    /**
+     * Translate Java regular expression flags into MongoDB options.
+     */
+    private static String regexOptions(final int flags) {
+        final StringBuilder options = new StringBuilder();
+        if ((flags & Pattern.CASE_INSENSITIVE) != 0) {
+            options.append('i');
+        }
+        if ((flags & Pattern.MULTILINE) != 0) {
+            options.append('m');
+        }
+        if ((flags & Pattern.DOTALL) != 0) {
+            options.append('s');
+        }
+        if ((flags & Pattern.UNICODE_CASE) != 0) {
+            options.append('u');
+        }
+        if ((flags & Pattern.COMMENTS) != 0) {
+            options.append('x');
+        }
+        return options.toString();
     }
 }
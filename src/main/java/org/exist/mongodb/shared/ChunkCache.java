@@ -0,0 +1,169 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+
+package org.exist.mongodb.shared;
+
+import com.mongodb.DBCollection;
+import com.mongodb.gridfs.GridFSFile;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Cache of GridFS chunks that is shared by all calls, so reading ranges of the
+ * same document repeatedly does not retrieve its chunks again. The cache is
+ * bounded by the number of bytes of the cached chunks; the least recently
+ * used chunks are removed first.
+ *
+ * A chunk is identified by its chunks collection, the id and upload date of
+ * the file and the chunk number. The files document is always read from the
+ * database, a removed document is not found and its chunks are not used; a
+ * document stored again with the same id has a new upload date.
+ *
+ * @author Dannes Wessels
+ */
+public class ChunkCache {
+
+    public static final int DEFAULT_MAX_MEGABYTES = 16;
+
+    private static final ChunkCache INSTANCE = new ChunkCache(DEFAULT_MAX_MEGABYTES * 1024L * 1024L);
+
+    private final Map<Key, byte[]> chunks = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long maxBytes;
+    private long bytes;
+
+    public static ChunkCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxBytes Maximum number of bytes of the cached chunks, 0 to disable the cache.
+     */
+    public ChunkCache(final long maxBytes) {
+        this.maxBytes = Math.max(maxBytes, 0);
+    }
+
+    /**
+     * Set the size of the cache, calls with an unchanged size return immediately.
+     *
+     * @param maxMegabytes Maximum size in megabytes, 0 to disable the cache.
+     */
+    public synchronized void configure(final int maxMegabytes) {
+        final long newMaxBytes = Math.max(maxMegabytes, 0) * 1024L * 1024L;
+        if (newMaxBytes == maxBytes) {
+            return;
+        }
+        maxBytes = newMaxBytes;
+        trim();
+    }
+
+    /**
+     * Get a cached chunk.
+     *
+     * @param collection The chunks collection
+     * @param file       The file
+     * @param n          The chunk number
+     * @return The data of the chunk, NULL when not cached.
+     */
+    public synchronized byte[] get(final DBCollection collection, final GridFSFile file, final int n) {
+        return chunks.get(new Key(collection, file, n));
+    }
+
+    /**
+     * Add a chunk, a chunk larger than the cache is not added.
+     *
+     * @param collection The chunks collection
+     * @param file       The file
+     * @param n          The chunk number
+     * @param data       The data of the chunk
+     */
+    public synchronized void put(final DBCollection collection, final GridFSFile file, final int n, final byte[] data) {
+        if (data.length > maxBytes) {
+            return;
+        }
+
+        final byte[] previous = chunks.put(new Key(collection, file, n), data);
+        bytes += data.length - ((previous == null) ? 0 : previous.length);
+        trim();
+    }
+
+    /**
+     * Remove the least recently used chunks until the cache fits.
+     */
+    private void trim() {
+        final Iterator<byte[]> iterator = chunks.values().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            bytes -= iterator.next().length;
+            iterator.remove();
+        }
+    }
+
+    public synchronized void clear() {
+        chunks.clear();
+        bytes = 0;
+    }
+
+    /**
+     * @return Number of bytes of the cached chunks.
+     */
+    public synchronized long size() {
+        return bytes;
+    }
+
+    private static class Key {
+
+        // Identity of the collection, a collection is bound to the client
+        private final DBCollection collection;
+        private final Object fileId;
+        private final Object uploadDate;
+        private final int n;
+
+        Key(final DBCollection collection, final GridFSFile file, final int n) {
+            this.collection = collection;
+            this.fileId = file.getId();
+            this.uploadDate = file.getUploadDate();
+            this.n = n;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return collection == other.collection && n == other.n
+                    && Objects.equals(fileId, other.fileId) && Objects.equals(uploadDate, other.uploadDate);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(collection), fileId, uploadDate, n);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package org.exist.mongodb.shared;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Non-blocking throttle for lookups of unknown client ids, one token bucket per
+ * user. Every unknown client id costs a token; when the bucket of a user is
+ * empty all lookups of this user are rejected until tokens are refilled. This
+ * slows down guessing of client ids without blocking any thread.
+ *
+ * @author wessels
+ */
+public class ClientIdThrottle {
+
+    protected final static Logger LOG = LogManager.getLogger(ClientIdThrottle.class);
+
+    private final ConcurrentMap<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+    private final int capacity;
+    private final double tokensPerNano;
+    private final LongSupplier clock;
+
+    private final AtomicLong invalidAttempts = new AtomicLong();
+    private final AtomicLong rejectedAttempts = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param capacity        Number of invalid ids that are allowed in a burst.
+     * @param refillPerSecond Number of invalid ids that are allowed per second after a burst.
+     */
+    public ClientIdThrottle(final int capacity, final double refillPerSecond) {
+        this(capacity, refillPerSecond, System::nanoTime);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param capacity        Number of invalid ids that are allowed in a burst.
+     * @param refillPerSecond Number of invalid ids that are allowed per second after a burst.
+     * @param clock           Source of time in nanoseconds.
+     */
+    public ClientIdThrottle(final int capacity, final double refillPerSecond, final LongSupplier clock) {
+        this.capacity = capacity;
+        this.tokensPerNano = refillPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.clock = clock;
+    }
+
+    /**
+     * Check if the user is allowed to lookup a client id.
+     *
+     * @param user Name of the user
+     * @return FALSE when the user is throttled.
+     */
+    public boolean isAllowed(final String user) {
+        final TokenBucket bucket = buckets.get(key(user));
+        if (bucket == null || bucket.available() >= 1) {
+            return true;
+        }
+
+        rejectedAttempts.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Register lookup of an unknown client id.
+     *
+     * @param user Name of the user
+     */
+    public void registerInvalid(final String user) {
+        invalidAttempts.incrementAndGet();
+
+        final TokenBucket bucket = buckets.computeIfAbsent(key(user), k -> new TokenBucket());
+        if (!bucket.take()) {
+            LOG.warn(String.format("User '%s' is throttled after too many unknown client ids.", user));
+        }
+    }
+
+    /**
+     * @return Number of lookups of unknown client ids.
+     */
+    public long getInvalidAttempts() {
+        return invalidAttempts.get();
+    }
+
+    /**
+     * @return Number of lookups that were rejected because the user was throttled.
+     */
+    public long getRejectedAttempts() {
+        return rejectedAttempts.get();
+    }
+
+    private static String key(final String user) {
+        return user == null ? "" : user;
+    }
+
+    /**
+     * Token bucket, tokens are refilled lazily.
+     */
+    private class TokenBucket {
+
+        private double tokens = capacity;
+        private long lastRefill = clock.getAsLong();
+
+        private void refill() {
+            final long now = clock.getAsLong();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+            lastRefill = now;
+        }
+
+        synchronized double available() {
+            refill();
+            return tokens;
+        }
+
+        synchronized boolean take() {
+            refill();
+            if (tokens >= 1) {
+                tokens--;
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.exist.mongodb.shared;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compression of documents stored in GridFS. The name of the codec is stored
+ * in the meta data of the document, see {@link Constants#EXIST_COMPRESSION}.
+ *
+ * @author Dannes Wessels
+ */
+public interface CompressionCodec {
+
+    /**
+     * Default compression level of the codec.
+     */
+    int DEFAULT_LEVEL = -1;
+
+    /**
+     * @return Name of the codec, as stored in the meta data.
+     */
+    String getName();
+
+    /**
+     * @return The HTTP content encoding of the compressed data, NULL when the
+     * data can not be sent as-is to an agent.
+     */
+    String getContentEncoding();
+
+    /**
+     * Wrap a stream so the written data is compressed.
+     *
+     * @param os    The stream receiving the compressed data
+     * @param level Compression level, {@link #DEFAULT_LEVEL} for the default level of the codec
+     * @return The stream to write the uncompressed data to
+     * @throws IOException The stream could not be created.
+     */
+    OutputStream compress(OutputStream os, int level) throws IOException;
+
+    /**
+     * Wrap a stream so the data read is decompressed.
+     *
+     * @param is The stream providing the compressed data
+     * @return The stream providing the uncompressed data
+     * @throws IOException The stream could not be created.
+     */
+    InputStream decompress(InputStream is) throws IOException;
+}
@@ -0,0 +1,113 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.exist.mongodb.shared;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the compression of GridFS documents: bytes saved versus the
+ * time spent compressing.
+ *
+ * @author Dannes Wessels
+ */
+public class CompressionMetrics {
+
+    private static final CompressionMetrics INSTANCE = new CompressionMetrics();
+
+    private final AtomicLong compressed = new AtomicLong();
+    private final AtomicLong skippedByType = new AtomicLong();
+    private final AtomicLong skippedByProbe = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong compressionNanos = new AtomicLong();
+    private final AtomicLong probeNanos = new AtomicLong();
+
+    public static CompressionMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Register a compressed document.
+     *
+     * @param originalSize   Size of the data
+     * @param compressedSize Size of the compressed data
+     * @param nanos          Time spent compressing
+     */
+    public void registerCompressed(final long originalSize, final long compressedSize, final long nanos) {
+        compressed.incrementAndGet();
+        bytesIn.addAndGet(originalSize);
+        bytesOut.addAndGet(compressedSize);
+        compressionNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Register a document that is not compressed because of its MIME type.
+     */
+    public void registerSkippedByType() {
+        skippedByType.incrementAndGet();
+    }
+
+    /**
+     * Register a document that is not compressed because the sample did not compress.
+     */
+    public void registerSkippedByProbe() {
+        skippedByProbe.incrementAndGet();
+    }
+
+    /**
+     * @param nanos Time spent on a trial compression
+     */
+    public void registerProbe(final long nanos) {
+        probeNanos.addAndGet(nanos);
+    }
+
+    public long getCompressed() {
+        return compressed.get();
+    }
+
+    public long getSkippedByType() {
+        return skippedByType.get();
+    }
+
+    public long getSkippedByProbe() {
+        return skippedByProbe.get();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    public long getBytesSaved() {
+        return bytesIn.get() - bytesOut.get();
+    }
+
+    public long getCompressionNanos() {
+        return compressionNanos.get();
+    }
+
+    public long getProbeNanos() {
+        return probeNanos.get();
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.exist.mongodb.shared;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Decides whether a document is worth compressing, from its MIME type and
+ * from a trial compression of the first bytes of the content.
+ *
+ * @author Dannes Wessels
+ */
+public class CompressionProbe {
+
+    /**
+     * Data is only compressed when the sample shrinks to less than this fraction.
+     */
+    public static final double MAX_RATIO = 0.9;
+
+    // MIME types of formats that are compressed already
+    private static final Set<String> COMPRESSED_TYPES = new HashSet<>(Arrays.asList(
+            "application/zip", "application/gzip", "application/x-gzip", "application/x-bzip2",
+            "application/x-7z-compressed", "application/x-rar-compressed", "application/vnd.rar",
+            "application/x-xz", "application/zstd", "application/java-archive", "application/epub+zip",
+            "application/pdf", "application/x-apple-diskimage", "application/vnd.android.package-archive",
+            "application/vnd.oasis.opendocument.text", "application/vnd.oasis.opendocument.spreadsheet",
+            "application/vnd.oasis.opendocument.presentation", "application/font-woff", "font/woff", "font/woff2"
+    ));
+
+    // Types within a compressed family that compress well
+    private static final Set<String> COMPRESSIBLE_TYPES = new HashSet<>(Arrays.asList(
+            "image/svg+xml", "image/bmp", "image/x-ms-bmp", "image/tiff", "image/x-icon", "image/vnd.microsoft.icon",
+            "audio/wav", "audio/x-wav", "audio/midi"
+    ));
+
+    private CompressionProbe() {
+        // Utility class
+    }
+
+    /**
+     * Verify that the MIME type is a compressed format: archives, most images, audio,
+     * video and the zip based office formats.
+     *
+     * @param mimeType The MIME type, can be NULL
+     * @return TRUE when compressing the data is not useful.
+     */
+    public static boolean isCompressedType(final String mimeType) {
+
+        if (StringUtils.isBlank(mimeType)) {
+            return false;
+        }
+
+        // Strip parameters, e.g. '; charset=UTF-8'
+        final String type = StringUtils.substringBefore(mimeType, ";").trim().toLowerCase(Locale.ENGLISH);
+
+        if (COMPRESSIBLE_TYPES.contains(type)) {
+            return false;
+        }
+
+        return COMPRESSED_TYPES.contains(type)
+                || type.startsWith("image/") || type.startsWith("audio/") || type.startsWith("video/")
+                || type.startsWith("application/vnd.openxmlformats-officedocument.");
+    }
+
+    /**
+     * Compress the sample with the fastest level and verify the result.
+     *
+     * @param sample The first bytes of the content
+     * @param length Number of bytes in the sample
+     * @return TRUE when the sample compresses to less than {@link #MAX_RATIO} of its size.
+     */
+    public static boolean isCompressible(final byte[] sample, final int length) {
+
+        if (length == 0) {
+            return false;
+        }
+
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+
+            // Output is only counted, stops as soon as the limit is reached
+            final long limit = (long) (length * MAX_RATIO);
+            final byte[] buffer = new byte[8192];
+            while (!deflater.finished() && deflater.getBytesWritten() < limit) {
+                deflater.deflate(buffer);
+            }
+
+            return deflater.finished() && deflater.getBytesWritten() < limit;
+
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.exist.mongodb.shared;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Validators and preconditions of conditional HTTP requests (RFC 7232). All
+ * values are derived from the GridFS files document, the chunks are not needed.
+ *
+ * @author Dannes Wessels
+ */
+public class ConditionalRequest {
+
+    private static final DateTimeFormatter HTTP_DATE
+            = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    private ConditionalRequest() {
+        // Utility class
+    }
+
+    /**
+     * Get the entity tag of a document. Data that is stored as-is gets a strong
+     * tag from the md5 of the stored data. Compressed data can be sent compressed
+     * or not, it gets a weak tag from the md5 of the original data.
+     *
+     * @param md5         MD5 of the stored data, can be NULL
+     * @param originalMd5 MD5 of the data before compression, NULL when stored as-is.
+     * @return The value of the ETag header, NULL when no checksum is available.
+     */
+    public static String etag(final String md5, final String originalMd5) {
+        if (StringUtils.isNotBlank(originalMd5)) {
+            return String.format("W/\"%s\"", originalMd5);
+
+        } else if (StringUtils.isNotBlank(md5)) {
+            return String.format("\"%s\"", md5);
+        }
+        return null;
+    }
+
+    /**
+     * @param date The date
+     * @return The date formatted as HTTP-date.
+     */
+    public static String formatDate(final Date date) {
+        return HTTP_DATE.format(date.toInstant());
+    }
+
+    /**
+     * Verify that the document does not need to be sent, evaluates If-None-Match and, when
+     * that header is absent, If-Modified-Since.
+     *
+     * @param ifNoneMatch     Value of If-None-Match, can be NULL
+     * @param ifModifiedSince Value of If-Modified-Since, can be NULL
+     * @param etag            ETag of the document, can be NULL
+     * @param lastModified    Modification date of the document, can be NULL
+     * @return TRUE when the agent has the current version and 304 can be returned.
+     */
+    public static boolean isNotModified(final String ifNoneMatch, final String ifModifiedSince,
+                                        final String etag, final Date lastModified) {
+
+        if (StringUtils.isNotBlank(ifNoneMatch)) {
+            return matches(ifNoneMatch, etag);
+        }
+
+        if (StringUtils.isNotBlank(ifModifiedSince) && lastModified != null) {
+            final Instant since = parseDate(ifModifiedSince);
+            return since != null && truncate(lastModified) <= since.getEpochSecond();
+        }
+
+        return false;
+    }
+
+    /**
+     * Verify the If-Range precondition, a range may only be sent when the agent has the same version.
+     *
+     * @param ifRange      Value of If-Range, can be NULL
+     * @param etag         ETag of the document, can be NULL
+     * @param lastModified Modification date of the document, can be NULL
+     * @return TRUE when the Range header can be used.
+     */
+    public static boolean isRangeAllowed(final String ifRange, final String etag, final Date lastModified) {
+
+        if (StringUtils.isBlank(ifRange)) {
+            return true;
+        }
+
+        final String value = ifRange.trim();
+        if (value.startsWith("\"") || value.startsWith("W/")) {
+            // Only strong tags can be used for ranges
+            return !value.startsWith("W/") && etag != null && !etag.startsWith("W/") && value.equals(etag);
+        }
+
+        final Instant date = parseDate(value);
+        return date != null && lastModified != null && truncate(lastModified) == date.getEpochSecond();
+    }
+
+    /**
+     * Match a list of entity tags with weak comparison, '*' matches any tag.
+     */
+    private static boolean matches(final String header, final String etag) {
+
+        if (etag == null) {
+            return false;
+        }
+
+        for (final String value : header.split(",")) {
+            final String tag = value.trim();
+            if ("*".equals(tag)) {
+                return true;
+            }
+
+            if (opaque(tag).equals(opaque(etag))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remove the weak indicator, used for weak comparison.
+     */
+    private static String opaque(final String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    /**
+     * HTTP dates have a resolution of one second.
+     */
+    private static long truncate(final Date date) {
+        return date.getTime() / 1000;
+    }
+
+    private static Instant parseDate(final String value) {
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+
+        } catch (final DateTimeParseException ex) {
+            return null;
+        }
+    }
+}
@@ -20,8 +20,19 @@ public class Constants {
     public static final String CONTENT_DISPOSITION = "Content-Disposition";
     public static final String CONTENT_LENGTH = "Content-Length";
 
+    public static final String RANGE = "Range";
+    public static final String CONTENT_RANGE = "Content-Range";
+    public static final String ACCEPT_RANGES = "Accept-Ranges";
+    public static final String IF_RANGE = "If-Range";
+
+    public static final String ETAG = "ETag";
+    public static final String LAST_MODIFIED = "Last-Modified";
+    public static final String IF_NONE_MATCH = "If-None-Match";
+    public static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+
     public static final String ACCEPT_ENCODING = "Accept-Encoding";
     public static final String CONTENT_ENCODING = "Content-Encoding";
+    public static final String VARY = "Vary";
 
     public static final String DESCR_OUTPUT_STREAM = "Servlet output stream";
 }
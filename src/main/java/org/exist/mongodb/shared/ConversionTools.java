@@ -1,15 +1,22 @@
 package org.exist.mongodb.shared;
 
 import com.mongodb.BasicDBObject;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.result.UpdateResult;
 import com.mongodb.util.JSONParseException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.bson.BsonValue;
+import org.bson.conversions.Bson;
 import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.functions.map.MapType;
 import org.exist.xquery.value.*;
 
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author wessels
@@ -19,29 +26,22 @@ public class ConversionTools {
     protected final static Logger LOG = LogManager.getLogger(ConversionTools.class);
 
     /**
-     * Convert sequence of strings into List of DBobjects
+     * Convert sequence of strings and maps into List of BSON documents, maps
+     * are encoded directly when the pipeline is sent to the server.
      *
      * @param args The input sequence.
      * @return List of BSON objects.
      * @throws XPathException     exist data conversion failed.
      * @throws JSONParseException A string could not be parsed.
      */
-    public static List<BasicDBObject> convertPipeline(final Sequence args) throws XPathException, JSONParseException {
+    public static List<Bson> convertPipeline(final Sequence args) throws XPathException, JSONParseException {
 
-        final List<BasicDBObject> pipeline = new ArrayList<>();
+        final List<Bson> pipeline = new ArrayList<>();
 
         if (args != null) {
             final SequenceIterator iterator = args.iterate();
             while (iterator.hasNext()) {
-                final Item next = iterator.nextItem();
-
-                if (next instanceof Sequence) { // Dead code
-                    pipeline.add(MapToBSON.convert((Sequence)next));
-                } else {
-                    final String step = next.getStringValue();
-                    pipeline.add(BasicDBObject.parse(step));
-                }
-
+                pipeline.add(MapEncoder.toBson(iterator.nextItem().toSequence()));
             }
 
         }
@@ -263,4 +263,103 @@ public class ConversionTools {
         return params.toArray();
     }
 
+    /**
+     * Convert write concern, either a name like 'majority' or 'w1', the number of
+     * nodes or a map with the keys w, j and wtimeout (milliseconds).
+     *
+     * @param seq The write concern
+     * @return The write concern, null when the sequence is empty.
+     * @throws XPathException The value could not be converted.
+     */
+    public static WriteConcern convertWriteConcern(final Sequence seq) throws XPathException {
+
+        if (seq == null || seq.isEmpty()) {
+            return null;
+        }
+
+        final Item item = seq.itemAt(0);
+
+        switch (item.getType()) {
+            case Type.MAP:
+                final MapType map = (MapType) item;
+
+                WriteConcern writeConcern = WriteConcern.ACKNOWLEDGED;
+
+                final Sequence w = map.get(new StringValue("w"));
+                if (w != null && !w.isEmpty()) {
+                    writeConcern = (Type.subTypeOf(w.getItemType(), Type.INTEGER))
+                            ? new WriteConcern(w.itemAt(0).toJavaObject(Integer.class))
+                            : new WriteConcern(w.getStringValue());
+                }
+
+                final Sequence journal = map.get(new StringValue("j"));
+                if (journal != null && !journal.isEmpty()) {
+                    writeConcern = writeConcern.withJournal(journal.effectiveBooleanValue());
+                }
+
+                final Sequence timeout = map.get(new StringValue("wtimeout"));
+                if (timeout != null && !timeout.isEmpty()) {
+                    writeConcern = writeConcern.withWTimeout(timeout.itemAt(0).toJavaObject(Long.class), TimeUnit.MILLISECONDS);
+                }
+
+                return writeConcern;
+
+            case Type.INTEGER:
+            case Type.INT:
+                return new WriteConcern(item.toJavaObject(Integer.class));
+
+            default:
+                final WriteConcern named = WriteConcern.valueOf(item.getStringValue());
+                if (named == null) {
+                    throw new IllegalArgumentException(String.format("Unknown write concern '%s'.", item.getStringValue()));
+                }
+                return named;
+        }
+    }
+
+    /**
+     * Convert the result of an update or replace into the map that is returned by
+     * the update and save functions.
+     *
+     * @param result  The update result
+     * @param context XQuery context
+     * @return The map with keys acknowledged, n, updateOfExisting and upsertedId.
+     * @throws XPathException The map could not be constructed.
+     */
+    public static MapType convertUpdateResult(final UpdateResult result, final XQueryContext context) throws XPathException {
+
+        final MapType map = new MapType(context);
+        map.add(new StringValue("acknowledged"), new ValueSequence(new BooleanValue(result.wasAcknowledged())));
+
+        if (result.wasAcknowledged()) {
+            final BsonValue upsertedId = result.getUpsertedId();
+
+            final long n = (upsertedId == null) ? result.getMatchedCount() : 1;
+            map.add(new StringValue("n"), new ValueSequence(new IntegerValue(n)));
+            map.add(new StringValue("updateOfExisting"), new ValueSequence(new BooleanValue(result.getMatchedCount() > 0)));
+
+            if (upsertedId != null) {
+                map.add(new StringValue("upsertedId"), new ValueSequence(new StringValue(convertId(upsertedId))));
+            }
+        }
+
+        return map;
+    }
+
+    /**
+     * Convert document identifier to string, object ids are written as hexadecimal value.
+     *
+     * @param id The identifier
+     * @return The string representation
+     */
+    public static String convertId(final BsonValue id) {
+        if (id.isObjectId()) {
+            return id.asObjectId().getValue().toHexString();
+
+        } else if (id.isString()) {
+            return id.asString().getValue();
+        }
+        return id.toString();
+    }
+
 }
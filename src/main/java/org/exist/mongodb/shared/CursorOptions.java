@@ -0,0 +1,161 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.exist.mongodb.shared;
+
+import com.mongodb.client.model.Collation;
+import com.mongodb.client.model.CollationStrength;
+import com.mongodb.client.model.FindOptions;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Translation of an XQuery options map into server side cursor options.
+ *
+ * @author Dannes Wessels
+ */
+public class CursorOptions {
+
+    public static final String LIMIT = "limit";
+    public static final String SKIP = "skip";
+    public static final String SORT = "sort";
+    public static final String BATCH_SIZE = "batchSize";
+    public static final String HINT = "hint";
+    public static final String MAX_TIME_MS = "maxTimeMS";
+    public static final String COLLATION = "collation";
+    public static final String NO_CURSOR_TIMEOUT = "noCursorTimeout";
+
+    /**
+     * Add the values of the options map to the find options.
+     *
+     * @param seq     The options map, can be an empty sequence.
+     * @param options The find options to be completed.
+     * @return The find options.
+     * @throws XPathException An option could not be converted.
+     */
+    public static FindOptions parse(final Sequence seq, final FindOptions options) throws XPathException {
+
+        if (seq == null || seq.isEmpty()) {
+            return options;
+        }
+
+        if (seq.getItemType() != Type.MAP) {
+            throw new IllegalArgumentException(String.format("Cursor options must be a map, got `%s`.",
+                    Type.getTypeName(seq.getItemType())));
+        }
+
+        final MapType map = (MapType) seq.itemAt(0);
+
+        final Sequence limit = get(map, LIMIT);
+        if (!limit.isEmpty()) {
+            options.limit(toInt(limit, LIMIT));
+        }
+
+        final Sequence skip = get(map, SKIP);
+        if (!skip.isEmpty()) {
+            options.skip(toInt(skip, SKIP));
+        }
+
+        final Sequence sort = get(map, SORT);
+        if (!sort.isEmpty()) {
+            options.sort(MapEncoder.toRawDocument(sort));
+        }
+
+        final Sequence batchSize = get(map, BATCH_SIZE);
+        if (!batchSize.isEmpty()) {
+            options.batchSize(toInt(batchSize, BATCH_SIZE));
+        }
+
+        final Sequence hint = get(map, HINT);
+        if (!hint.isEmpty()) {
+            options.hint(MapEncoder.toRawDocument(hint));
+        }
+
+        final Sequence maxTime = get(map, MAX_TIME_MS);
+        if (!maxTime.isEmpty()) {
+            options.maxTime(toInt(maxTime, MAX_TIME_MS), TimeUnit.MILLISECONDS);
+        }
+
+        final Sequence collation = get(map, COLLATION);
+        if (!collation.isEmpty()) {
+            options.collation(toCollation(collation));
+        }
+
+        final Sequence noCursorTimeout = get(map, NO_CURSOR_TIMEOUT);
+        if (!noCursorTimeout.isEmpty()) {
+            options.noCursorTimeout(noCursorTimeout.effectiveBooleanValue());
+        }
+
+        return options;
+    }
+
+    /**
+     * Convert collation map, e.g. map { "locale" : "nl", "strength" : 2 }
+     */
+    private static Collation toCollation(final Sequence seq) throws XPathException {
+
+        if (seq.getItemType() != Type.MAP) {
+            // Only the locale is provided
+            return Collation.builder().locale(seq.getStringValue()).build();
+        }
+
+        final MapType map = (MapType) seq.itemAt(0);
+        final Collation.Builder builder = Collation.builder();
+
+        final Sequence locale = get(map, "locale");
+        if (!locale.isEmpty()) {
+            builder.locale(locale.getStringValue());
+        }
+
+        final Sequence strength = get(map, "strength");
+        if (!strength.isEmpty()) {
+            builder.collationStrength(CollationStrength.fromInt(toInt(strength, "strength")));
+        }
+
+        final Sequence caseLevel = get(map, "caseLevel");
+        if (!caseLevel.isEmpty()) {
+            builder.caseLevel(caseLevel.effectiveBooleanValue());
+        }
+
+        final Sequence numericOrdering = get(map, "numericOrdering");
+        if (!numericOrdering.isEmpty()) {
+            builder.numericOrdering(numericOrdering.effectiveBooleanValue());
+        }
+
+        return builder.build();
+    }
+
+    private static Sequence get(final MapType map, final String key) {
+        final Sequence value = map.get(new StringValue(key));
+        return value == null ? Sequence.EMPTY_SEQUENCE : value;
+    }
+
+    private static int toInt(final Sequence seq, final String key) throws XPathException {
+        try {
+            return Integer.parseInt(seq.getStringValue());
+        } catch (final NumberFormatException ex) {
+            throw new IllegalArgumentException(String.format("Option '%s' must be an integer, got '%s'.",
+                    key, seq.getStringValue()));
+        }
+    }
+}
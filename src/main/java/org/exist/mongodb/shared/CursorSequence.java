@@ -0,0 +1,615 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.exist.mongodb.shared;
+
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.CountOptions;
+import com.mongodb.client.model.FindOptions;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bson.conversions.Bson;
+import org.exist.dom.persistent.NodeSet;
+import org.exist.mongodb.xquery.MongodbModule;
+import org.exist.xquery.Expression;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.value.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lazy sequence backed by a MongoDB cursor. Documents are fetched and converted
+ * only when the sequence is iterated, positional access and skipping are pushed
+ * down to the server as skip/limit.
+ *
+ * Each iteration opens its own cursor; the cursor is closed when it is exhausted
+ * or, at the latest, when the XQuery context is released. The client counts as
+ * in use while a cursor is open, it is not closed as idle halfway a result. Consecutive positional
+ * access, e.g. $seq[$i] in a loop, is served from one forward cursor.
+ *
+ * The documents are not kept: a second iteration, or positional access outside
+ * the forward cursor, runs the query again and sees the data as it is at that
+ * moment. The number of documents is counted once and then kept. Copy the
+ * sequence into a variable with e.g. array { } when a stable snapshot is needed.
+ *
+ * {@link #open()} runs the query and retrieves the first batch, so errors in the
+ * query are raised by the function with the error codes of {@link GenericExceptionHandler}.
+ * The Sequence API does not declare XPathException; an error while reading a next
+ * batch is raised as {@link CursorException}, which carries the translated error.
+ *
+ * @param <T> Document class of the collection
+ * @author Dannes Wessels
+ */
+public class CursorSequence<T> extends AbstractSequence {
+
+    protected final static Logger LOG = LogManager.getLogger(CursorSequence.class);
+
+    /**
+     * Conversion of a single database document into an XQuery item.
+     *
+     * @param <T> Document class
+     */
+    @FunctionalInterface
+    public interface Converter<T> {
+        Item convert(T document, XQueryContext context) throws XPathException;
+    }
+
+    // Maximum number of documents that are skipped on the client by positional access
+    private static final int MAX_FORWARD_SKIP = 100;
+
+    private final XQueryContext context;
+    private final Expression expression;
+    private final String mongodbClientId;
+    private final MongoCollection<T> collection;
+    private final Bson filter;
+    private final FindOptions options;
+    private final Converter<T> converter;
+
+    private final Set<MongoCursor<T>> openCursors = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    // Cursor opened by open(), used by the first iteration or positional access
+    private MongoCursor<T> firstCursor;
+
+    private long itemCount = -1;
+    private long smallCount = -1;
+
+    // Forward cursor for positional access
+    private MongoCursor<T> positionalCursor;
+    private long positionalIndex;
+    private long positionalLast = -1;
+    private Item positionalItem;
+
+    /**
+     * Constructor.
+     *
+     * @param context         The XQuery context, used for conversion and cleanup.
+     * @param expression      The function that created the sequence, used for error reporting.
+     * @param mongodbClientId The client id of the collection
+     * @param collection      The collection to query
+     * @param filter     The query filter
+     * @param options    Projection, sort, skip, limit and other cursor options of the query.
+     * @param converter  Conversion of documents to XQuery items.
+     */
+    public CursorSequence(final XQueryContext context, final Expression expression, final String mongodbClientId,
+                          final MongoCollection<T> collection, final Bson filter,
+                          final FindOptions options, final Converter<T> converter) {
+        this.context = context;
+        this.expression = expression;
+        this.mongodbClientId = mongodbClientId;
+        this.collection = collection;
+        this.filter = filter;
+        this.options = options;
+        this.converter = converter;
+
+        // Make sure that cursors are not kept open when the query is finished
+        context.registerCleanupTask((ctx, predicate) -> closeCursors());
+    }
+
+    /**
+     * Run the query and retrieve the first batch of documents, to be called by the
+     * function that creates the sequence.
+     *
+     * @return This sequence
+     * @throws XPathException The query failed.
+     */
+    public CursorSequence<T> open() throws XPathException {
+        if (remaining(0) != 0) {
+            firstCursor = openCursor(find(0, 0));
+            try {
+                firstCursor.hasNext();
+            } catch (final RuntimeException ex) {
+                closeCursor(firstCursor);
+                firstCursor = null;
+                throw ex;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Take the cursor opened by open(), when it has not been used yet.
+     */
+    private MongoCursor<T> takeFirstCursor() {
+        final MongoCursor<T> cursor = firstCursor;
+        firstCursor = null;
+        return cursor;
+    }
+
+    /**
+     * Number of documents that can still be returned after skipping, -1 when
+     * no limit was requested.
+     */
+    private long remaining(final long extraSkip) {
+        return options.getLimit() > 0 ? Math.max(options.getLimit() - extraSkip, 0) : -1;
+    }
+
+    /**
+     * Create the query, skipping additional documents.
+     *
+     * @param extraSkip Number of documents to skip on top of the requested skip.
+     * @param maxItems  Maximum number of documents to return, 0 for all.
+     */
+    private FindIterable<T> find(final long extraSkip, final int maxItems) {
+
+        final FindIterable<T> iterable = collection.find(filter);
+
+        if (options.getProjection() != null) {
+            iterable.projection(options.getProjection());
+        }
+
+        if (options.getSort() != null) {
+            iterable.sort(options.getSort());
+        }
+
+        if (options.getHint() != null) {
+            iterable.hint(options.getHint());
+        }
+
+        if (options.getCollation() != null) {
+            iterable.collation(options.getCollation());
+        }
+
+        if (options.getBatchSize() > 0) {
+            iterable.batchSize(options.getBatchSize());
+        }
+
+        final long maxTime = options.getMaxTime(TimeUnit.MILLISECONDS);
+        if (maxTime > 0) {
+            iterable.maxTime(maxTime, TimeUnit.MILLISECONDS);
+        }
+
+        iterable.noCursorTimeout(options.isNoCursorTimeout());
+
+        final long skip = options.getSkip() + extraSkip;
+        if (skip > 0) {
+            iterable.skip(Math.toIntExact(skip));
+        }
+
+        // The requested limit shrinks with the number of skipped documents
+        long limit = remaining(extraSkip);
+        if (maxItems > 0 && (limit < 0 || limit > maxItems)) {
+            limit = maxItems;
+        }
+        if (limit > 0) {
+            iterable.limit((int) limit);
+        }
+
+        return iterable;
+    }
+
+    /**
+     * Count number of documents, taking skip and limit into account.
+     *
+     * @param maxItems Stop counting at this number, 0 for no maximum.
+     */
+    private long count(final int maxItems) {
+        final CountOptions countOptions = new CountOptions()
+                .skip(options.getSkip())
+                .hint(options.getHint())
+                .collation(options.getCollation())
+                .maxTime(options.getMaxTime(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+
+        int limit = options.getLimit();
+        if (maxItems > 0 && (limit <= 0 || limit > maxItems)) {
+            limit = maxItems;
+        }
+        if (limit > 0) {
+            countOptions.limit(limit);
+        }
+
+        return collection.countDocuments(filter, countOptions);
+    }
+
+    /**
+     * Number of documents up to two, enough for isEmpty(), hasOne() and hasMany().
+     */
+    private long smallCount() {
+        if (itemCount >= 0) {
+            return itemCount;
+        }
+        if (smallCount < 0) {
+            try {
+                smallCount = countInUse(2);
+            } catch (final Throwable t) {
+                throw fail(t);
+            }
+        }
+        return smallCount;
+    }
+
+    /**
+     * Translate an error that occurred while the sequence is consumed, the methods
+     * of the Sequence API do not declare XPathException.
+     *
+     * @return The exception to be thrown, carries the XPathException with the MONG error code.
+     */
+    private CursorException fail(final Throwable throwable) {
+        MongodbClientStore.getInstance().registerError(mongodbClientId);
+        if (throwable instanceof CursorException) {
+            return (CursorException) throwable;
+        }
+
+        try {
+            GenericExceptionHandler.handleException(expression, throwable);
+            return new CursorException(new XPathException(expression, throwable.getMessage(), throwable));
+        } catch (final XPathException ex) {
+            return new CursorException(ex);
+        }
+    }
+
+    /**
+     * Unchecked exception for errors while the sequence is consumed.
+     */
+    public static class CursorException extends RuntimeException {
+
+        CursorException(final XPathException cause) {
+            super(cause.getMessage(), cause);
+        }
+
+        /**
+         * @return The error, with the error code of {@link GenericExceptionHandler}.
+         */
+        public XPathException getXPathException() {
+            return (XPathException) getCause();
+        }
+    }
+
+    /**
+     * Close all cursors that have not been read till the end.
+     */
+    void closeCursors() {
+        final List<MongoCursor<T>> cursors;
+        synchronized (openCursors) {
+            cursors = new ArrayList<>(openCursors);
+            openCursors.clear();
+        }
+        firstCursor = null;
+
+        for (final MongoCursor<T> cursor : cursors) {
+            try {
+                cursor.close();
+            } catch (final Exception ex) {
+                LOG.debug(String.format("Unable to close cursor: %s", ex.getMessage()));
+            } finally {
+                MongodbClientStore.getInstance().release(mongodbClientId);
+            }
+        }
+    }
+
+    @Override
+    public int getItemType() {
+        return Type.MAP;
+    }
+
+    @Override
+    public SequenceIterator iterate() throws XPathException {
+        return new CursorSequenceIterator();
+    }
+
+    @Override
+    public SequenceIterator unorderedIterator() throws XPathException {
+        return iterate();
+    }
+
+    @Override
+    public long getItemCountLong() {
+        if (itemCount < 0) {
+            try {
+                itemCount = countInUse(0);
+            } catch (final Throwable t) {
+                throw fail(t);
+            }
+        }
+        return itemCount;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return smallCount() == 0;
+    }
+
+    @Override
+    public boolean hasOne() {
+        return smallCount() == 1;
+    }
+
+    @Override
+    public boolean hasMany() {
+        return smallCount() > 1;
+    }
+
+    @Override
+    public void add(final Item item) throws XPathException {
+        throw new XPathException("Internal error: adding to an immutable sequence");
+    }
+
+    @Override
+    public void addAll(final Sequence other) throws XPathException {
+        throw new XPathException("Internal error: adding to an immutable sequence");
+    }
+
+    @Override
+    public Item itemAt(final int pos) {
+        if (pos < 0 || remaining(pos) == 0) {
+            return null;
+        }
+
+        if (pos == positionalLast) {
+            return positionalItem;
+        }
+
+        try {
+            // Continue with the cursor of open() when it is not used yet
+            if (positionalCursor == null && firstCursor != null && pos <= MAX_FORWARD_SKIP) {
+                positionalCursor = takeFirstCursor();
+                positionalIndex = 0;
+            }
+
+            // Reopen when moving backwards or far ahead, otherwise continue reading
+            if (positionalCursor == null || pos < positionalIndex || pos - positionalIndex > MAX_FORWARD_SKIP) {
+                closePositional();
+                positionalCursor = openCursor(find(pos, 0));
+                positionalIndex = pos;
+            }
+
+            while (positionalIndex < pos && positionalCursor.hasNext()) {
+                positionalCursor.next();
+                positionalIndex++;
+            }
+
+            if (!positionalCursor.hasNext()) {
+                closePositional();
+                return null;
+            }
+
+            positionalItem = converter.convert(positionalCursor.next(), context);
+            positionalLast = pos;
+            positionalIndex++;
+            return positionalItem;
+
+        } catch (final Throwable t) {
+            closePositional();
+            throw fail(t);
+        }
+    }
+
+    /**
+     * Open a cursor, the client counts as in use until the cursor is closed so
+     * that it is not closed as idle while the sequence is read.
+     */
+    private MongoCursor<T> openCursor(final FindIterable<T> iterable) throws XPathException {
+        acquireClient();
+
+        final MongoCursor<T> cursor;
+        try {
+            cursor = iterable.iterator();
+        } catch (final RuntimeException ex) {
+            MongodbClientStore.getInstance().release(mongodbClientId);
+            throw ex;
+        }
+
+        synchronized (openCursors) {
+            openCursors.add(cursor);
+        }
+        return cursor;
+    }
+
+    private void closeCursor(final MongoCursor<T> cursor) {
+        final boolean removed;
+        synchronized (openCursors) {
+            removed = openCursors.remove(cursor);
+        }
+
+        if (removed) {
+            try {
+                cursor.close();
+            } finally {
+                MongodbClientStore.getInstance().release(mongodbClientId);
+            }
+        }
+    }
+
+    /**
+     * Count while the client counts as in use.
+     */
+    private long countInUse(final int maxItems) throws XPathException {
+        acquireClient();
+        try {
+            return count(maxItems);
+        } finally {
+            MongodbClientStore.getInstance().release(mongodbClientId);
+        }
+    }
+
+    private void acquireClient() throws XPathException {
+        if (!MongodbClientStore.getInstance().acquire(mongodbClientId)) {
+            throw new XPathException(expression, MongodbModule.MONGO_ID, "The client is closed.");
+        }
+    }
+
+    private void closePositional() {
+        if (positionalCursor != null) {
+            closeCursor(positionalCursor);
+            positionalCursor = null;
+        }
+        positionalLast = -1;
+        positionalItem = null;
+    }
+
+    @Override
+    public NodeSet toNodeSet() throws XPathException {
+        throw new XPathException("Type error: the sequence cannot be converted into a node set. Item type is map(*)");
+    }
+
+    @Override
+    public MemoryNodeSet toMemNodeSet() throws XPathException {
+        throw new XPathException("Type error: the sequence cannot be converted into a node set. Item type is map(*)");
+    }
+
+    @Override
+    public void removeDuplicates() {
+        // documents are unique by definition
+    }
+
+    @Override
+    public boolean containsReference(final Item item) {
+        return false;
+    }
+
+    @Override
+    public boolean contains(final Item item) {
+        return false;
+    }
+
+    @Override
+    public void destroy(final XQueryContext context, final Sequence contextSequence) {
+        closeCursors();
+    }
+
+    /**
+     * Iterator over a live cursor, the cursor is opened on first access.
+     */
+    private class CursorSequenceIterator implements SequenceIterator {
+
+        private MongoCursor<T> cursor;
+        private long skipped = 0;
+        private boolean finished = false;
+
+        private boolean open() throws XPathException {
+            if (finished) {
+                return false;
+            }
+
+            if (cursor == null && remaining(skipped) == 0) {
+                finished = true;
+                return false;
+            }
+
+            if (cursor == null) {
+                cursor = (skipped == 0 && firstCursor != null) ? takeFirstCursor() : openCursor(find(skipped, 0));
+            }
+            return true;
+        }
+
+        private void close() {
+            finished = true;
+            if (cursor != null) {
+                closeCursor(cursor);
+                cursor = null;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                if (!open()) {
+                    return false;
+                }
+
+                final boolean hasNext = cursor.hasNext();
+                if (!hasNext) {
+                    close();
+                }
+                return hasNext;
+
+            } catch (final Throwable t) {
+                close();
+                throw fail(t);
+            }
+        }
+
+        @Override
+        public Item nextItem() {
+            if (!hasNext()) {
+                return null;
+            }
+
+            try {
+                return converter.convert(cursor.next(), context);
+
+            } catch (final Throwable t) {
+                close();
+                throw fail(t);
+            }
+        }
+
+        @Override
+        public long skippable() {
+            if (finished) {
+                return 0;
+            }
+            return cursor == null ? Math.max(getItemCountLong() - skipped, 0) : 0;
+        }
+
+        @Override
+        public long skip(final long n) {
+            if (finished || n <= 0) {
+                return 0;
+            }
+
+            if (cursor == null) {
+                // Not started yet, push down to the server
+                skipped += n;
+                return n;
+            }
+
+            // Cursor is already reading, skip on the client
+            long count = 0;
+            try {
+                while (count < n && cursor.hasNext()) {
+                    cursor.next();
+                    count++;
+                }
+            } catch (final Throwable t) {
+                close();
+                throw fail(t);
+            }
+            return count;
+        }
+    }
+}
@@ -80,6 +80,12 @@ public class FunctionDefinitions {
     public static final FunctionParameterSequenceType PARAMETER_OPTIONS
             = new FunctionParameterSequenceType(PARAM_KEYS, Type.MAP, Cardinality.ONE, DESCR_KEYS);
 
+    public static final String PARAM_CURSOR_OPTIONS = "cursor-options";
+    public static final String DESCR_CURSOR_OPTIONS = "Map with cursor options: limit, skip, sort, batchSize, hint, maxTimeMS, collation and noCursorTimeout";
+
+    public static final FunctionParameterSequenceType PARAMETER_CURSOR_OPTIONS
+            = new FunctionParameterSequenceType(PARAM_CURSOR_OPTIONS, Type.MAP, Cardinality.ZERO_OR_ONE, DESCR_CURSOR_OPTIONS);
+
     public static final String PARAM_FIELDS = "fields";
     public static final String DESCR_FIELDS = "Fields to return, JSON formatted";
 
@@ -0,0 +1,133 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.exist.mongodb.shared;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.gridfs.GridFS;
+import com.mongodb.gridfs.GridFSDBFile;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Lookup of a revision of a GridFS document by filename. Documents with the
+ * same filename are revisions, ordered by upload date. As in the GridFS
+ * specification 0 is the original document, 1 the first revision, -1 the
+ * latest revision and -2 the revision before that.
+ *
+ * @author Dannes Wessels
+ */
+public class GridfsRevisions {
+
+    private static final Logger LOG = LogManager.getLogger(GridfsRevisions.class);
+
+    public static final int LATEST = -1;
+
+    private static final String LATEST_NAME = "latest";
+
+    private static final DBObject INDEX = new BasicDBObject("filename", 1).append("uploadDate", -1);
+
+    private static final DBObject INDEX_OPTIONS = new BasicDBObject("background", true);
+
+    private GridfsRevisions() {
+        // Utility class
+    }
+
+    /**
+     * Ensure the index that is used to find a revision. The GridFS constructor only
+     * creates indexes for small buckets. The index is built in the background, so
+     * a large bucket is not blocked. A failure, e.g. for a user without the
+     * createIndex privilege, is logged; revisions are then found without the index.
+     *
+     * @param gfs The GridFS bucket
+     */
+    public static void ensureIndex(final GridFS gfs) {
+        try {
+            gfs.getFilesCollection().createIndex(INDEX, INDEX_OPTIONS);
+
+        } catch (final MongoException ex) {
+            LOG.warn("Unable to create the revision index of bucket '{}': {}", gfs.getBucketName(), ex.getMessage());
+        }
+    }
+
+    /**
+     * Find a revision of a document in a single round trip. The returned file holds
+     * the files document only, the content is read through the bucket with
+     * {@link PrefetchChunkInputStream} or {@link GridfsSeekableChannel}.
+     *
+     * @param gfs      The GridFS bucket
+     * @param filename Name of the document
+     * @param revision Revision number
+     * @return The document, NULL when the revision does not exist.
+     */
+    public static GridFSDBFile find(final GridFS gfs, final String filename, final int revision) {
+
+        // Newest first for negative revisions, the index (when present) is used in both directions
+        final int direction = (revision < 0) ? -1 : 1;
+        final int skip = (revision < 0) ? -revision - 1 : revision;
+
+        try (final DBCursor cursor = gfs.getFilesCollection()
+                .find(new BasicDBObject("filename", filename))
+                .sort(new BasicDBObject("uploadDate", direction))
+                .skip(skip)
+                .limit(1)) {
+
+            if (!cursor.hasNext()) {
+                return null;
+            }
+
+            // The GridFS constructor sets GridFSDBFile as object class of the files collection
+            final DBObject document = cursor.next();
+            if (document instanceof GridFSDBFile) {
+                return (GridFSDBFile) document;
+            }
+
+            final GridFSDBFile file = new GridFSDBFile();
+            for (final String key : document.keySet()) {
+                file.put(key, document.get(key));
+            }
+            return file;
+        }
+    }
+
+    /**
+     * Parse a revision, 'latest' or a number.
+     *
+     * @param value The revision
+     * @return The revision number, {@link #LATEST} when empty.
+     * @throws IllegalArgumentException The value is not a revision.
+     */
+    public static int parse(final String value) {
+        if (StringUtils.isBlank(value) || LATEST_NAME.equalsIgnoreCase(value.trim())) {
+            return LATEST;
+        }
+
+        try {
+            return Integer.parseInt(value.trim());
+
+        } catch (final NumberFormatException ex) {
+            throw new IllegalArgumentException(String.format("Revision must be '%s' or a number, got '%s'.", LATEST_NAME, value));
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.exist.mongodb.shared;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.gridfs.GridFS;
+import com.mongodb.gridfs.GridFSDBFile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Read-only channel with random access to the stored data of a GridFS file.
+ * A position is mapped to chunk 'position / chunkSize'; only the chunks that
+ * are read are retrieved. The most recently used chunks are kept, so reading
+ * small records (e.g. the headers of a ZIP file) does not fetch a chunk twice.
+ * With a {@link ChunkCache} the chunks are also kept for later channels on the
+ * same file.
+ *
+ * @author Dannes Wessels
+ */
+public class GridfsSeekableChannel implements SeekableByteChannel {
+
+    public static final int DEFAULT_CACHE_SIZE = 4;
+
+    private final DBCollection chunks;
+    private final GridFSDBFile file;
+    private final long chunkSize;
+    private final Map<Integer, byte[]> cache;
+    private final ChunkCache sharedCache;
+
+    private long position;
+    private boolean open = true;
+
+    /**
+     * Constructor.
+     *
+     * @param gfs       The GridFS bucket
+     * @param file      The file to be read
+     * @param cacheSize Number of chunks that are kept
+     */
+    public GridfsSeekableChannel(final GridFS gfs, final GridFSDBFile file, final int cacheSize) {
+        this(gfs, file, cacheSize, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param gfs         The GridFS bucket
+     * @param file        The file to be read
+     * @param cacheSize   Number of chunks that are kept by the channel
+     * @param sharedCache Cache for chunks across channels, NULL for none
+     */
+    public GridfsSeekableChannel(final GridFS gfs, final GridFSDBFile file, final int cacheSize, final ChunkCache sharedCache) {
+        this.chunks = gfs.getChunksCollection();
+        this.file = file;
+        this.chunkSize = file.getChunkSize();
+        this.sharedCache = sharedCache;
+
+        final int maxEntries = Math.max(cacheSize, 1);
+        this.cache = new LinkedHashMap<Integer, byte[]>(maxEntries + 1, 1.0f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Integer, byte[]> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    @Override
+    public int read(final ByteBuffer dst) throws IOException {
+        ensureOpen();
+
+        final long size = size();
+        if (position >= size) {
+            return -1;
+        }
+
+        int total = 0;
+        while (dst.hasRemaining() && position < size) {
+            final byte[] data = getChunk((int) (position / chunkSize));
+            final int offset = (int) (position % chunkSize);
+
+            final int count = (int) Math.min(Math.min(dst.remaining(), data.length - offset), size - position);
+            if (count <= 0) {
+                throw new IOException(String.format("Chunk %s of '%s' is too small.", position / chunkSize, file.getFilename()));
+            }
+
+            dst.put(data, offset, count);
+            position += count;
+            total += count;
+        }
+
+        return total;
+    }
+
+    /**
+     * Get a chunk from the caches or from the database.
+     */
+    private byte[] getChunk(final int n) throws IOException {
+        byte[] data = cache.get(n);
+        if (data != null) {
+            return data;
+        }
+
+        data = (sharedCache == null) ? null : sharedCache.get(chunks, file, n);
+        if (data == null) {
+            final DBObject chunk = chunks.findOne(new BasicDBObject("files_id", file.getId()).append("n", n));
+            if (chunk == null) {
+                throw new IOException(String.format("Chunk %s of '%s' is missing.", n, file.getFilename()));
+            }
+            data = (byte[]) chunk.get("data");
+            if (sharedCache != null) {
+                sharedCache.put(chunks, file, n, data);
+            }
+        }
+        cache.put(n, data);
+        return data;
+    }
+
+    @Override
+    public int write(final ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(final long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException(String.format("Position must not be negative, got %s.", newPosition));
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return file.getLength();
+    }
+
+    @Override
+    public SeekableByteChannel truncate(final long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+        cache.clear();
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+}
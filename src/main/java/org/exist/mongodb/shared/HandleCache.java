@@ -0,0 +1,289 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.exist.mongodb.shared;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.GridFSBuckets;
+import com.mongodb.gridfs.GridFS;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Cache of GridFS buckets per client and database. Constructing a
+ * {@link GridFS} counts the documents and ensures the indexes of the bucket;
+ * with the cache this is done once per bucket instead of on every function
+ * call. The index for revision lookups is ensured once per bucket and client,
+ * also when the handle of the bucket is evicted.
+ * Collections are not cached, the driver creates these without a round trip.
+ *
+ * The handles are kept in a map per client, which is dropped when the client
+ * is closed; handles for a client that is not (or no longer) in the
+ * {@link MongodbClientStore} are not cached. The handles are strongly
+ * referenced and bounded by 'maxEntries' instead of weakly referenced: a
+ * weakly held GridFS handle would be collected between calls, repeating the
+ * round trips the cache is meant to save. A lookup does not lock; when a new handle exceeds 'maxEntries'
+ * the least recently used handles are removed. The handles of a collection or
+ * bucket are removed when the collection is dropped.
+ *
+ * @author Dannes Wessels
+ */
+public class HandleCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 256;
+
+    private static final HandleCache INSTANCE = new HandleCache();
+
+    private static final String GRIDFS = "gridfs";
+    private static final String BUCKET = "bucket";
+
+    private final ConcurrentMap<String, ConcurrentMap<Key, Entry>> clients = new ConcurrentHashMap<>();
+
+    // Buckets of which the revision index is ensured, per client
+    private final ConcurrentMap<String, Set<Key>> indexed = new ConcurrentHashMap<>();
+
+    // Orders the use of the handles, for eviction
+    private final AtomicLong clock = new AtomicLong();
+
+    private volatile int maxEntries = DEFAULT_MAX_ENTRIES;
+
+    public static HandleCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Set the maximum number of cached handles.
+     *
+     * @param maxEntries Maximum number of handles, 0 or less for the default.
+     */
+    public void configure(final int maxEntries) {
+        final int newMaxEntries = (maxEntries <= 0) ? DEFAULT_MAX_ENTRIES : maxEntries;
+        if (newMaxEntries == this.maxEntries) {
+            return;
+        }
+        this.maxEntries = newMaxEntries;
+        evict();
+    }
+
+    /**
+     * Get the bucket for the chunk based streams, these work on the files and chunks collections.
+     *
+     * @param mongodbClientId The client id
+     * @param client          The client
+     * @param database        Name of the database
+     * @param bucket          Name of the bucket
+     * @return The GridFS bucket
+     */
+    public GridFS getGridFS(final String mongodbClientId, final MongoClient client, final String database, final String bucket) {
+        return get(mongodbClientId, new Key(database, bucket, GRIDFS), () -> {
+            final GridFS gfs = new GridFS(client.getDB(database), bucket);
+            if (markIndexed(mongodbClientId, new Key(database, bucket, GRIDFS))) {
+                GridfsRevisions.ensureIndex(gfs);
+            }
+            return gfs;
+        });
+    }
+
+    /**
+     * Register that the revision index of a bucket is ensured. This is kept apart from
+     * the handles, an evicted bucket does not create the index again.
+     *
+     * @return TRUE when the index still needs to be ensured.
+     */
+    private boolean markIndexed(final String mongodbClientId, final Key key) {
+        final Set<Key> buckets = indexed.computeIfAbsent(mongodbClientId,
+                id -> MongodbClientStore.getInstance().isValid(id) ? ConcurrentHashMap.newKeySet() : null);
+        return buckets == null || buckets.add(key);
+    }
+
+    /**
+     * Get the bucket for operations on complete files.
+     *
+     * @param mongodbClientId The client id
+     * @param client          The client
+     * @param database        Name of the database
+     * @param bucket          Name of the bucket
+     * @return The GridFS bucket
+     */
+    public GridFSBucket getBucket(final String mongodbClientId, final MongoClient client, final String database, final String bucket) {
+        return get(mongodbClientId, new Key(database, bucket, BUCKET),
+                () -> GridFSBuckets.create(client.getDatabase(database), bucket));
+    }
+
+    /**
+     * Get a handle from the cache, a new handle is created outside any lock as it can
+     * require a round trip to the database.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T get(final String mongodbClientId, final Key key, final Supplier<T> factory) {
+        // The client is checked within the compute, a concurrent close either removes the
+        // new map afterwards or is seen here; the handles of a closed client are not kept.
+        final ConcurrentMap<Key, Entry> handles = clients.computeIfAbsent(mongodbClientId,
+                id -> MongodbClientStore.getInstance().isValid(id) ? new ConcurrentHashMap<>() : null);
+        if (handles == null) {
+            return factory.get();
+        }
+
+        Entry entry = handles.get(key);
+        if (entry == null) {
+            final Entry created = new Entry(mongodbClientId, factory.get());
+            created.lastUsed = clock.incrementAndGet();
+            entry = handles.putIfAbsent(key, created);
+            if (entry == null) {
+                if (size() > maxEntries) {
+                    evict();
+                }
+                return (T) created.handle;
+            }
+        }
+
+        entry.lastUsed = clock.incrementAndGet();
+        return (T) entry.handle;
+    }
+
+    /**
+     * Remove the least recently used handles until the cache fits, only runs when a handle is added.
+     */
+    private synchronized void evict() {
+        final int excess = size() - maxEntries;
+        if (excess <= 0) {
+            return;
+        }
+
+        // Sort on a copy of the last use, the handles remain in use while sorting
+        final List<Map.Entry<Key, Entry>> entries = new ArrayList<>();
+        for (final ConcurrentMap<Key, Entry> handles : clients.values()) {
+            for (final Map.Entry<Key, Entry> entry : handles.entrySet()) {
+                entry.getValue().evictionOrder = entry.getValue().lastUsed;
+                entries.add(entry);
+            }
+        }
+        entries.sort(Comparator.comparingLong(entry -> entry.getValue().evictionOrder));
+
+        for (int i = 0; i < excess && i < entries.size(); i++) {
+            final Map.Entry<Key, Entry> entry = entries.get(i);
+            final ConcurrentMap<Key, Entry> handles = clients.get(entry.getValue().mongodbClientId);
+            if (handles != null) {
+                handles.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Remove the handles of a client.
+     *
+     * @param mongodbClientId The client id
+     */
+    public void invalidate(final String mongodbClientId) {
+        clients.remove(mongodbClientId);
+        indexed.remove(mongodbClientId);
+    }
+
+    /**
+     * Remove the handles of a dropped collection for all clients. Dropping the files
+     * or chunks collection of a bucket removes the bucket, its indexes need to be
+     * created again.
+     *
+     * @param database   Name of the database
+     * @param collection Name of the collection
+     */
+    public void invalidate(final String database, final String collection) {
+        for (final ConcurrentMap<Key, Entry> handles : clients.values()) {
+            handles.keySet().removeIf(key -> key.matches(database, collection));
+        }
+        for (final Set<Key> buckets : indexed.values()) {
+            buckets.removeIf(key -> key.matches(database, collection));
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (final ConcurrentMap<Key, Entry> handles : clients.values()) {
+            size += handles.size();
+        }
+        return size;
+    }
+
+    private static class Entry {
+
+        private final String mongodbClientId;
+        private final Object handle;
+
+        private volatile long lastUsed;
+
+        // Guarded by the eviction lock
+        private long evictionOrder;
+
+        Entry(final String mongodbClientId, final Object handle) {
+            this.mongodbClientId = mongodbClientId;
+            this.handle = handle;
+        }
+    }
+
+    private static class Key {
+
+        private final String database;
+        private final String name;
+        private final String kind;
+
+        Key(final String database, final String name, final String kind) {
+            this.database = database;
+            this.name = name;
+            this.kind = kind;
+        }
+
+        /**
+         * @return TRUE when the collection is the collection, or a collection of the bucket, of this key.
+         */
+        boolean matches(final String database, final String collection) {
+            return this.database.equals(database)
+                    && (name.equals(collection)
+                    || collection.equals(name + ".files")
+                    || collection.equals(name + ".chunks"));
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return database.equals(other.database) && name.equals(other.name) && kind.equals(other.kind);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(database, name, kind);
+        }
+    }
+}
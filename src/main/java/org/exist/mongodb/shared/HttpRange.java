@@ -0,0 +1,134 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.exist.mongodb.shared;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Byte range of an HTTP Range request (RFC 7233).
+ *
+ * @author Dannes Wessels
+ */
+public class HttpRange {
+
+    // Upper limit of ranges in one request, more ranges are ignored
+    private static final int MAX_RANGES = 16;
+
+    private static final String BYTES_UNIT = "bytes=";
+
+    private final long start;
+    private final long end;
+
+    /**
+     * Constructor.
+     *
+     * @param start First byte, inclusive
+     * @param end   Last byte, inclusive
+     */
+    public HttpRange(final long start, final long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    public long getLength() {
+        return end - start + 1;
+    }
+
+    /**
+     * @param size Size of the complete document
+     * @return Value of the Content-Range header
+     */
+    public String toContentRange(final long size) {
+        return String.format("bytes %s-%s/%s", start, end, size);
+    }
+
+    /**
+     * Parse the value of a Range header.
+     *
+     * @param header The header value, e.g. 'bytes=0-499,-500'
+     * @param size   Size of the document
+     * @return NULL when the header is absent or invalid and must be ignored, an empty list when
+     * none of the ranges can be satisfied, otherwise the satisfiable ranges.
+     */
+    public static List<HttpRange> parse(final String header, final long size) {
+
+        if (StringUtils.isBlank(header) || !StringUtils.startsWithIgnoreCase(header.trim(), BYTES_UNIT)) {
+            return null;
+        }
+
+        final String[] specs = header.trim().substring(BYTES_UNIT.length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        final List<HttpRange> ranges = new ArrayList<>();
+        for (final String value : specs) {
+            final String spec = value.trim();
+            final int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+
+            final String first = spec.substring(0, dash).trim();
+            final String last = spec.substring(dash + 1).trim();
+
+            try {
+                if (first.isEmpty()) {
+                    // Suffix range: the last N bytes
+                    final long suffix = Long.parseLong(last);
+                    if (suffix < 0) {
+                        return null;
+                    }
+                    if (suffix > 0 && size > 0) {
+                        ranges.add(new HttpRange(Math.max(0, size - suffix), size - 1));
+                    }
+
+                } else {
+                    final long start = Long.parseLong(first);
+                    final long end = last.isEmpty() ? size - 1 : Long.parseLong(last);
+                    if (start < 0 || end < start) {
+                        return null;
+                    }
+                    if (start < size) {
+                        ranges.add(new HttpRange(start, Math.min(end, size - 1)));
+                    }
+                }
+
+            } catch (final NumberFormatException ex) {
+                return null;
+            }
+        }
+
+        return ranges.isEmpty() ? Collections.emptyList() : ranges;
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.exist.mongodb.shared;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import org.bson.*;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.functions.array.ArrayType;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.*;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Codec that reads BSON documents straight into eXist-db maps and arrays,
+ * without the DBObject tree that {@link BSONtoMap} needs. All BSON types are
+ * mapped the same way as {@link BSONtoMap} does; maps are encoded by
+ * {@link MapEncoder}.
+ *
+ * Keys are converted once per codec instance; an instance is bound to a single
+ * XQuery context and must not be shared between queries.
+ *
+ * @author Dannes Wessels
+ */
+public class MapCodec implements Codec<MapType> {
+
+    // Upper limit of cached keys, protects against documents with generated keys
+    private static final int MAX_KEYS = 1024;
+
+    private final XQueryContext context;
+    private final Map<String, StringValue> keys = new HashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param context The XQuery context of the created maps.
+     */
+    public MapCodec(final XQueryContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Get view of the collection that returns documents as eXist-db maps.
+     *
+     * @param collection The MongoDB collection
+     * @param context    XQuery context
+     * @return The collection returning maps.
+     */
+    public static MongoCollection<MapType> wrap(final MongoCollection<?> collection, final XQueryContext context) {
+        return collection
+                .withCodecRegistry(registry(collection.getCodecRegistry(), context))
+                .withDocumentClass(MapType.class);
+    }
+
+    /**
+     * Get view of the database that can return command results as eXist-db maps.
+     *
+     * @param database The MongoDB database
+     * @param context  XQuery context
+     * @return The database with a registered map codec.
+     */
+    public static MongoDatabase wrap(final MongoDatabase database, final XQueryContext context) {
+        return database.withCodecRegistry(registry(database.getCodecRegistry(), context));
+    }
+
+    private static CodecRegistry registry(final CodecRegistry registry, final XQueryContext context) {
+        return CodecRegistries.fromRegistries(CodecRegistries.fromCodecs(new MapCodec(context)), registry);
+    }
+
+    @Override
+    public Class<MapType> getEncoderClass() {
+        return MapType.class;
+    }
+
+    @Override
+    public void encode(final BsonWriter writer, final MapType value, final EncoderContext encoderContext) {
+        MapEncoder.INSTANCE.encode(writer, value, encoderContext);
+    }
+
+    @Override
+    public MapType decode(final BsonReader reader, final DecoderContext decoderContext) {
+        return readDocument(reader, null);
+    }
+
+    /**
+     * Read a document, leaving out a top level field.
+     *
+     * @param reader    The BSON reader
+     * @param skipField Name of the field that is not added to the map, can be null.
+     * @return The eXist-db map
+     */
+    public MapType readDocument(final BsonReader reader, final String skipField) {
+
+        final MapType result = new MapType(context);
+
+        try {
+            reader.readStartDocument();
+
+            while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                final String name = reader.readName();
+
+                if (name.equals(skipField)) {
+                    reader.skipValue();
+                    continue;
+                }
+
+                result.add(key(name), readValue(reader, false));
+            }
+
+            reader.readEndDocument();
+
+        } catch (final XPathException ex) {
+            throw new BsonInvalidOperationException(ex.getMessage());
+        }
+
+        return result;
+    }
+
+    private ArrayType readArray(final BsonReader reader) throws XPathException {
+
+        final Sequence sequence = new ValueSequence();
+
+        reader.readStartArray();
+
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            // Array members are always single items
+            sequence.add((Item) readValue(reader, true));
+        }
+
+        reader.readEndArray();
+
+        return new ArrayType(context, sequence);
+    }
+
+    /**
+     * Read the current value.
+     *
+     * @param reader  The BSON reader
+     * @param inArray TRUE when the value is a member of an array
+     */
+    private Sequence readValue(final BsonReader reader, final boolean inArray) throws XPathException {
+
+        switch (reader.getCurrentBsonType()) {
+            case DOCUMENT:
+                return readDocument(reader, null);
+
+            case ARRAY:
+                return readArray(reader);
+
+            case STRING:
+                return new StringValue(reader.readString());
+
+            case INT32:
+                return new IntegerValue(reader.readInt32());
+
+            case INT64:
+                return new IntegerValue(reader.readInt64());
+
+            case DOUBLE:
+                return new DoubleValue(reader.readDouble());
+
+            case BOOLEAN:
+                return BooleanValue.valueOf(reader.readBoolean());
+
+            case OBJECT_ID:
+                return new StringValue(reader.readObjectId().toHexString());
+
+            case NULL:
+                reader.readNull();
+                return inArray ? AtomicValue.EMPTY_VALUE : Sequence.EMPTY_SEQUENCE;
+
+            case UNDEFINED:
+                reader.readUndefined();
+                return inArray ? AtomicValue.EMPTY_VALUE : Sequence.EMPTY_SEQUENCE;
+
+            case DATE_TIME:
+                return new DateTimeValue(new Date(reader.readDateTime()));
+
+            case DECIMAL128:
+                return BSONtoMap.decimal(reader.readDecimal128());
+
+            case BINARY:
+                final BsonBinary binary = reader.readBinaryData();
+                if (binary.getType() == BsonBinarySubType.UUID_LEGACY.getValue() && binary.getData().length == 16) {
+                    return BSONtoMap.uuid(binary.getData(), true);
+
+                } else if (binary.getType() == BsonBinarySubType.UUID_STANDARD.getValue() && binary.getData().length == 16) {
+                    return BSONtoMap.uuid(binary.getData(), false);
+                }
+                return BSONtoMap.binary(binary.getData());
+
+            case SYMBOL:
+                return new StringValue(reader.readSymbol());
+
+            case TIMESTAMP:
+                final BsonTimestamp timestamp = reader.readTimestamp();
+                return BSONtoMap.timestamp(timestamp.getTime(), timestamp.getInc(), context);
+
+            case REGULAR_EXPRESSION:
+                final BsonRegularExpression regex = reader.readRegularExpression();
+                return BSONtoMap.regex(regex.getPattern(), regex.getOptions(), context);
+
+            case JAVASCRIPT:
+                return BSONtoMap.code(reader.readJavaScript(), null, context);
+
+            case JAVASCRIPT_WITH_SCOPE:
+                final String code = reader.readJavaScriptWithScope();
+                return BSONtoMap.code(code, readDocument(reader, null), context);
+
+            case MIN_KEY:
+                reader.readMinKey();
+                return BSONtoMap.singleton("$minKey", new IntegerValue(1), context);
+
+            case MAX_KEY:
+                reader.readMaxKey();
+                return BSONtoMap.singleton("$maxKey", new IntegerValue(1), context);
+
+            case DB_POINTER:
+                final BsonDbPointer pointer = reader.readDBPointer();
+                final MapType ref = new MapType(context);
+                ref.add(key("$ref"), new StringValue(pointer.getNamespace()));
+                ref.add(key("$id"), new StringValue(pointer.getId().toHexString()));
+                return ref;
+
+            default:
+                throw new XPathException(String.format("Cannot convert BSON type '%s' to an eXistdb type.",
+                        reader.getCurrentBsonType()));
+        }
+    }
+
+    /**
+     * Get the key value, identical keys of all documents share the same value.
+     */
+    private StringValue key(final String name) {
+        StringValue key = keys.get(name);
+        if (key == null) {
+            key = new StringValue(name);
+            if (keys.size() < MAX_KEYS) {
+                keys.put(name, key);
+            }
+        }
+        return key;
+    }
+}
@@ -0,0 +1,410 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.exist.mongodb.shared;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.bson.*;
+import org.bson.codecs.Encoder;
+import org.bson.codecs.EncoderContext;
+import org.bson.conversions.Bson;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.types.Decimal128;
+import org.bson.types.ObjectId;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.functions.array.ArrayType;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.*;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.OffsetDateTime;
+import java.util.Base64;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Encoder that writes eXist-db maps and arrays straight into BSON, without
+ * an intermediate BasicDBObject tree. It is used for documents as well as
+ * for queries, projections and sort orders; {@link MapToBSON} uses it for the
+ * legacy DBCollection API.
+ *
+ * The values that {@link BSONtoMap} and {@link MapCodec} produce are written
+ * back as their original BSON type: xs:dateTime as date, xs:base64Binary as
+ * binary data and maps in MongoDB extended JSON notation, e.g.
+ * map { "$regex" : "^a", "$options" : "i" }, as regular expression, timestamp,
+ * code or min/max key. The notations $date, $oid, $numberLong, $numberInt,
+ * $numberDouble, $numberDecimal and $binary are accepted as well. A document
+ * read with mongodb:find can therefore be written back unchanged.
+ *
+ * @author Dannes Wessels
+ */
+public class MapEncoder implements Encoder<MapType> {
+
+    public static final MapEncoder INSTANCE = new MapEncoder();
+
+    private static final BigInteger MIN_LONG = BigInteger.valueOf(Long.MIN_VALUE);
+    private static final BigInteger MAX_LONG = BigInteger.valueOf(Long.MAX_VALUE);
+
+    /**
+     * Convert a map or JSON string into a BSON document. A map is encoded
+     * when the driver writes the document to the server.
+     *
+     * @param seq The map or the JSON formatted text
+     * @return The BSON document
+     * @throws XPathException The string value could not be retrieved.
+     */
+    public static Bson toBson(final Sequence seq) throws XPathException {
+
+        if (seq.hasMany()) {
+            throw new IllegalArgumentException(String.format("Expected a single map or String, got %s items.", seq.getItemCount()));
+        }
+
+        switch (seq.getItemType()) {
+            case Type.STRING:
+                return BsonDocument.parse(seq.getStringValue());
+
+            case Type.MAP:
+                return new BsonDocumentWrapper<>((MapType) seq.itemAt(0), INSTANCE);
+
+            default:
+                throw new IllegalArgumentException(
+                        String.format("Can only convert String or a Map to a BSON document. Got type `%s` with value `%s`.",
+                                Type.getTypeName(seq.getItemType()), seq.getStringValue()));
+        }
+    }
+
+    /**
+     * Convert a map or JSON string into an encoded BSON document.
+     *
+     * @param seq The map or the JSON formatted text
+     * @return The encoded BSON document
+     * @throws XPathException The string value could not be retrieved.
+     */
+    public static RawBsonDocument toRawDocument(final Sequence seq) throws XPathException {
+
+        if (seq.hasMany()) {
+            throw new IllegalArgumentException(String.format("Expected a single map or String, got %s items.", seq.getItemCount()));
+        }
+
+        switch (seq.getItemType()) {
+            case Type.STRING:
+                return RawBsonDocument.parse(seq.getStringValue());
+
+            case Type.MAP:
+                return encode((MapType) seq.itemAt(0));
+
+            default:
+                throw new IllegalArgumentException(
+                        String.format("Can only convert String or a Map to a BSON document. Got type `%s` with value `%s`.",
+                                Type.getTypeName(seq.getItemType()), seq.getStringValue()));
+        }
+    }
+
+    /**
+     * Encode a map into a BSON document.
+     *
+     * @param map The map
+     * @return The encoded BSON document
+     */
+    public static RawBsonDocument encode(final MapType map) {
+        final BasicOutputBuffer buffer = new BasicOutputBuffer();
+        try (final BsonBinaryWriter writer = new BsonBinaryWriter(buffer)) {
+            INSTANCE.encode(writer, map, EncoderContext.builder().build());
+        }
+        return new RawBsonDocument(buffer.getInternalBuffer(), 0, buffer.getPosition());
+    }
+
+    @Override
+    public Class<MapType> getEncoderClass() {
+        return MapType.class;
+    }
+
+    @Override
+    public void encode(final BsonWriter writer, final MapType map, final EncoderContext encoderContext) {
+        try {
+            writeMap(writer, map);
+
+        } catch (final XPathException ex) {
+            throw new IllegalArgumentException(ex.getMessage(), ex);
+        }
+    }
+
+    private void writeMap(final BsonWriter writer, final MapType map) throws XPathException {
+
+        writer.writeStartDocument();
+
+        for (final SequenceIterator i = map.keys().iterate(); i.hasNext(); ) {
+            final AtomicValue key = (AtomicValue) i.nextItem();
+            writer.writeName(key.getStringValue());
+            writeSequence(writer, map.get(key));
+        }
+
+        writer.writeEndDocument();
+    }
+
+    private void writeArray(final BsonWriter writer, final ArrayType array) throws XPathException {
+
+        writer.writeStartArray();
+
+        for (final Sequence member : array.toArray()) {
+            writeSequence(writer, member);
+        }
+
+        writer.writeEndArray();
+    }
+
+    private void writeSequence(final BsonWriter writer, final Sequence seq) throws XPathException {
+
+        if (seq == null || seq.isEmpty()) {
+            writer.writeNull();
+
+        } else if (seq.hasMany()) {
+            // A sequence of values becomes an array
+            writer.writeStartArray();
+            for (final SequenceIterator i = seq.iterate(); i.hasNext(); ) {
+                writeItem(writer, i.nextItem());
+            }
+            writer.writeEndArray();
+
+        } else {
+            writeItem(writer, seq.itemAt(0));
+        }
+    }
+
+    private void writeItem(final BsonWriter writer, final Item item) throws XPathException {
+
+        switch (item.getType()) {
+            case Type.MAP:
+                if (!writeExtended(writer, (MapType) item)) {
+                    writeMap(writer, (MapType) item);
+                }
+                break;
+
+            case Type.ARRAY:
+                writeArray(writer, (ArrayType) item);
+                break;
+
+            case Type.STRING:
+                writer.writeString(item.getStringValue());
+                break;
+
+            case Type.INTEGER:
+            case Type.LONG:
+            case Type.INT:
+            case Type.SHORT:
+            case Type.BYTE:
+                writeInteger(writer, new BigInteger(item.getStringValue()));
+                break;
+
+            case Type.DOUBLE:
+            case Type.FLOAT:
+                writer.writeDouble(((NumericValue) item).getDouble());
+                break;
+
+            case Type.BOOLEAN:
+                writer.writeBoolean(((AtomicValue) item).effectiveBooleanValue());
+                break;
+
+            case Type.DECIMAL:
+                writer.writeDecimal128(new Decimal128(item.toJavaObject(BigDecimal.class)));
+                break;
+
+            case Type.DATE_TIME:
+                writer.writeDateTime(item.toJavaObject(Date.class).getTime());
+                break;
+
+            case Type.BASE64_BINARY:
+                writer.writeBinaryData(new BsonBinary(Base64.getDecoder().decode(item.getStringValue())));
+                break;
+
+            case Type.HEX_BINARY:
+                writer.writeBinaryData(new BsonBinary(decodeHex(item.getStringValue())));
+                break;
+
+            default:
+                throw new XPathException(String.format("Unable to convert '%s' of type '%s' to BSON.",
+                        item.getStringValue(), Type.getTypeName(item.getType())));
+        }
+    }
+
+    /**
+     * Write a map in extended JSON notation as the BSON type it represents.
+     *
+     * @return FALSE when the map is a regular document.
+     */
+    private boolean writeExtended(final BsonWriter writer, final MapType map) throws XPathException {
+
+        final Set<String> keys = new HashSet<>();
+        for (final SequenceIterator i = map.keys().iterate(); i.hasNext(); ) {
+            final String key = i.nextItem().getStringValue();
+            if (!key.startsWith("$") || keys.size() == 2) {
+                return false;
+            }
+            keys.add(key);
+        }
+
+        if (keys.size() == 1) {
+            final String key = keys.iterator().next();
+            final Sequence value = get(map, key);
+
+            switch (key) {
+                case "$date":
+                    writer.writeDateTime(toMillis(value));
+                    return true;
+
+                case "$oid":
+                    writer.writeObjectId(new ObjectId(value.getStringValue()));
+                    return true;
+
+                case "$numberLong":
+                    writer.writeInt64(Long.parseLong(value.getStringValue()));
+                    return true;
+
+                case "$numberInt":
+                    writer.writeInt32(Integer.parseInt(value.getStringValue()));
+                    return true;
+
+                case "$numberDouble":
+                    writer.writeDouble(Double.parseDouble(value.getStringValue()));
+                    return true;
+
+                case "$numberDecimal":
+                    writer.writeDecimal128(Decimal128.parse(value.getStringValue()));
+                    return true;
+
+                case "$timestamp":
+                    if (value.getItemType() != Type.MAP) {
+                        return false;
+                    }
+                    final MapType timestamp = (MapType) value.itemAt(0);
+                    writer.writeTimestamp(new BsonTimestamp(
+                            (int) toLong(get(timestamp, "t")), (int) toLong(get(timestamp, "i"))));
+                    return true;
+
+                case "$regex":
+                    writer.writeRegularExpression(new BsonRegularExpression(value.getStringValue()));
+                    return true;
+
+                case "$code":
+                    writer.writeJavaScript(value.getStringValue());
+                    return true;
+
+                case "$minKey":
+                    writer.writeMinKey();
+                    return true;
+
+                case "$maxKey":
+                    writer.writeMaxKey();
+                    return true;
+
+                case "$binary":
+                    // Canonical notation: { "$binary" : { "base64" : ..., "subType" : ... } }
+                    if (value.getItemType() != Type.MAP) {
+                        return false;
+                    }
+                    final MapType binary = (MapType) value.itemAt(0);
+                    writeBinary(writer, get(binary, "base64"), get(binary, "subType"));
+                    return true;
+
+                default:
+                    return false;
+            }
+        }
+
+        if (keys.contains("$regex") && keys.contains("$options")) {
+            writer.writeRegularExpression(new BsonRegularExpression(
+                    get(map, "$regex").getStringValue(), get(map, "$options").getStringValue()));
+            return true;
+
+        } else if (keys.contains("$code") && keys.contains("$scope") && get(map, "$scope").getItemType() == Type.MAP) {
+            writer.writeJavaScriptWithScope(get(map, "$code").getStringValue());
+            writeMap(writer, (MapType) get(map, "$scope").itemAt(0));
+            return true;
+
+        } else if (keys.contains("$binary") && keys.contains("$type")) {
+            // Legacy notation: { "$binary" : ..., "$type" : ... }
+            writeBinary(writer, get(map, "$binary"), get(map, "$type"));
+            return true;
+        }
+
+        return false;
+    }
+
+    private void writeBinary(final BsonWriter writer, final Sequence data, final Sequence subType) throws XPathException {
+        final byte type = subType.isEmpty() ? BsonBinarySubType.BINARY.getValue() : (byte) Integer.parseInt(subType.getStringValue(), 16);
+        writer.writeBinaryData(new BsonBinary(type, Base64.getDecoder().decode(data.getStringValue())));
+    }
+
+    private static Sequence get(final MapType map, final String key) throws XPathException {
+        final Sequence value = map.get(new StringValue(key));
+        if (value == null || value.isEmpty()) {
+            throw new XPathException(String.format("Missing value for '%s' in extended JSON notation.", key));
+        }
+        return value;
+    }
+
+    /**
+     * Value of $date: a date, a date in ISO-8601 format, milliseconds since the epoch or { "$numberLong" : ... }.
+     */
+    private static long toMillis(final Sequence value) throws XPathException {
+        final Item item = value.itemAt(0);
+        switch (item.getType()) {
+            case Type.DATE_TIME:
+                return item.toJavaObject(Date.class).getTime();
+
+            case Type.STRING:
+            case Type.UNTYPED_ATOMIC:
+                return OffsetDateTime.parse(item.getStringValue()).toInstant().toEpochMilli();
+
+            case Type.MAP:
+                return Long.parseLong(get((MapType) item, "$numberLong").getStringValue());
+
+            default:
+                return toLong(value);
+        }
+    }
+
+    private static long toLong(final Sequence value) throws XPathException {
+        return new BigDecimal(value.getStringValue()).longValueExact();
+    }
+
+    private static byte[] decodeHex(final String value) throws XPathException {
+        try {
+            return Hex.decodeHex(value.toCharArray());
+        } catch (final DecoderException ex) {
+            throw new XPathException(ex.getMessage());
+        }
+    }
+
+    private void writeInteger(final BsonWriter writer, final BigInteger value) throws XPathException {
+        if (value.bitLength() < Integer.SIZE) {
+            writer.writeInt32(value.intValue());
+
+        } else if (value.compareTo(MIN_LONG) >= 0 && value.compareTo(MAX_LONG) <= 0) {
+            writer.writeInt64(value.longValue());
+
+        } else {
+            throw new XPathException(String.format("Integer value '%s' is too large for BSON.", value));
+        }
+    }
+}
@@ -20,163 +20,55 @@
 
 package org.exist.mongodb.shared;
 
-import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
+import com.mongodb.DBObjectCodec;
+import com.mongodb.MongoClient;
 import org.exist.xquery.XPathException;
-import org.exist.xquery.functions.array.ArrayType;
 import org.exist.xquery.functions.map.MapType;
-import org.exist.xquery.value.*;
-
-import java.math.BigDecimal;
-
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.Type;
+
+/**
+ * Conversion of a map or JSON string into a document for the legacy
+ * DBCollection API. Maps are encoded by {@link MapEncoder}, so values are
+ * converted the same way for queries and for the documents that are written,
+ * including the dates, binary data and extended JSON values that are returned
+ * by mongodb:find.
+ *
+ * @author Dannes Wessels
+ */
 public class MapToBSON {
 
+    private static final DBObjectCodec CODEC = new DBObjectCodec(MongoClient.getDefaultCodecRegistry());
 
-    protected final static Logger LOG = LogManager.getLogger();
-
-//        private static final JsonTranscoder transcoder = new JsonTranscoder();
+    private MapToBSON() {
+        // Utility class
+    }
 
     /**
      * Convert JSON as Item to object
      *
-     * @param seq JSON formatted text document
+     * @param seq The map or the JSON formatted text
      * @return JSON Object representation
      * @throws XPathException When something bad happens during the JSON conversion.
      */
     public static BasicDBObject convert(final Sequence seq) throws XPathException {
 
-        final BasicDBObject result;
+        if (seq.hasMany()) {
+            throw new IllegalArgumentException(String.format("Expected a single map or String, got %s items.", seq.getItemCount()));
+        }
 
         switch (seq.getItemType()) {
             case Type.STRING:
-                result = BasicDBObject.parse(seq.getStringValue());
-                break;
+                return BasicDBObject.parse(seq.getStringValue());
 
             case Type.MAP:
-                result = convertMap((MapType) seq);
-                break;
+                return (BasicDBObject) MapEncoder.encode((MapType) seq.itemAt(0)).decode(CODEC);
 
             default:
                 throw new IllegalArgumentException(
-                        String.format("Can only convert String or a Map to a Couchbase JSON object. Got type `%s` with value `%s`.",
-                                seq.getItemType(), seq.getStringValue()));
-        }
-
-        return result;
-
-    }
-
-
-    /*
-     *  ArrayType to JSON Array conversion
-     */
-    private static BasicDBList convertArray(final ArrayType xqueryArray) throws XPathException {
-
-        final BasicDBList jsonArray = new BasicDBList();
-
-        for (final Sequence subSeq : xqueryArray.toArray()) {
-            jsonArray.add(convertSequence(subSeq));
-
-        }
-
-        return jsonArray;
-    }
-
-
-    /*
-     * Need Object here because of conversion
-     */
-    private static Object convertSequence(final Sequence seq) throws XPathException {
-        switch (seq.getItemType()) {
-
-            case Type.MAP:
-                return convertMap((MapType) seq);
-
-            case Type.ARRAY:
-                return convertArray((ArrayType) seq);
-
-            case Type.EMPTY:
-                return null;
-
-            default:
-                // try to convert value
-                return convertSequenceToJavaObject(seq);
-        }
-
-    }
-
-
-    /*
-     *  MapType to JSON object conversion
-     */
-    private static BasicDBObject convertMap(final MapType map) throws XPathException {
-
-        final BasicDBObject jo = new BasicDBObject();
-
-        // Get all keys
-        final Sequence keys = map.keys();
-
-        // Iterate over all keys
-        for (final SequenceIterator i = keys.iterate(); i.hasNext(); ) {
-
-            // Get next item
-            final Item key = i.nextItem();
-
-            // Only use Strings as key
-            final String keyValue = key.getStringValue();
-
-            // Get values
-            final Sequence sequence = map.get((AtomicValue) key);
-
-            jo.put(keyValue, convertSequence(sequence));
-
-        }
-        return jo;
-    }
-
-    /**
-     * Actual conversion of item to a JSON value.
-     *
-     * @param sequence The sequence item to be converted.
-     * @return The raw Java object of the sequence item.
-     * @throws XPathException The conversion failed.
-     */
-    static Object convertSequenceToJavaObject(final Sequence sequence) throws XPathException {
-
-        final Object retVal;
-
-        switch (sequence.getItemType()) {
-            case Type.STRING:
-                retVal = ((StringValue) sequence).getStringValue();
-                break;
-            case Type.INTEGER:
-            case Type.INT:
-                retVal = sequence.toJavaObject(Integer.class);
-                break;
-            case Type.DOUBLE:
-                retVal = sequence.toJavaObject(Double.class);
-                break;
-            case Type.BOOLEAN:
-                retVal = sequence.toJavaObject(Boolean.class);
-                break;
-            case Type.FLOAT:
-                retVal = sequence.toJavaObject(Float.class);
-                break;
-            case Type.LONG:
-                retVal = sequence.toJavaObject(Long.class);
-                break;
-            case Type.DECIMAL:
-                retVal = sequence.toJavaObject(BigDecimal.class);
-                break;
-            default:
-                final String msg = String.format("Unable to convert '%s' of type '%d' to a Java object.", sequence.getStringValue(), sequence.getItemType());
-                LOG.error(msg);
-                throw new XPathException(msg); // todo conversion errorcode
+                        String.format("Can only convert String or a Map to a BSON document. Got type `%s` with value `%s`.",
+                                Type.getTypeName(seq.getItemType()), seq.getStringValue()));
         }
-        return retVal;
     }
-
 }
-
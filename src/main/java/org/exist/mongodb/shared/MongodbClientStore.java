@@ -6,46 +6,218 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.exist.xquery.XPathException;
 
-import javax.xml.datatype.DatatypeConfigurationException;
-import javax.xml.datatype.DatatypeFactory;
-import javax.xml.datatype.XMLGregorianCalendar;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Set;
 import java.util.UUID;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.exist.mongodb.xquery.MongodbModule.MONGO_CONNECT;
 import static org.exist.mongodb.xquery.MongodbModule.MONGO_ID;
 
 /**
+ * Registry of all open MongoDB clients. The store is accessed concurrently by
+ * all XQuery threads, lookups are lock-free.
+ *
  * @author wessels
  */
 public class MongodbClientStore {
 
     protected final static Logger LOG = LogManager.getLogger(MongodbClientStore.class);
 
-    private static MongodbClientStore instance = null;
-    private final Map<String, MongoClientWrapper> clients = new HashMap<>();
+    private static final MongodbClientStore INSTANCE = new MongodbClientStore();
+
+    private final ConcurrentMap<String, MongoClientWrapper> clients = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, SharedClient> sharedClients = new ConcurrentHashMap<>();
+
+    // Number of MongoClient instances, shared clients are counted once
+    private final AtomicInteger openClients = new AtomicInteger();
+
+    // Allow a burst of 10 unknown client ids per user, then 1 per second
+    private final ClientIdThrottle throttle = new ClientIdThrottle(10, 1.0);
+
+    private volatile long idleTimeout = 0;
+    private volatile int maxClients = 0;
+
+    private ScheduledExecutorService reaper;
+
+    public static MongodbClientStore getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Configure limits of the store. The module is instantiated for every compiled
+     * query, calls with unchanged limits return immediately.
+     *
+     * @param idleTimeout Clients that are not used for this number of milliseconds are closed, 0 to disable.
+     * @param maxClients  Maximum number of concurrently open MongoDB clients, 0 for unlimited.
+     */
+    public void configure(final long idleTimeout, final int maxClients) {
+        final long newIdleTimeout = Math.max(idleTimeout, 0);
+        final int newMaxClients = Math.max(maxClients, 0);
+        if (newIdleTimeout == this.idleTimeout && newMaxClients == this.maxClients) {
+            return;
+        }
+
+        this.idleTimeout = newIdleTimeout;
+        this.maxClients = newMaxClients;
+
+        if (newIdleTimeout > 0) {
+            startReaper();
+        }
+    }
+
+    /**
+     * Start background thread that closes idle clients.
+     */
+    private synchronized void startReaper() {
+        if (reaper != null) {
+            return;
+        }
+
+        reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "mongrel-idle-client-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // Check at least every minute, more often for short timeouts
+        final long period = Math.min(TimeUnit.MINUTES.toMillis(1), Math.max(idleTimeout / 2, 1000L));
+        reaper.scheduleWithFixedDelay(this::closeIdleClients, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Close all clients that have not been used for longer than the idle timeout.
+     */
+    void closeIdleClients() {
+        final long timeout = idleTimeout;
+        if (timeout <= 0) {
+            return;
+        }
+
+        final long threshold = System.currentTimeMillis() - timeout;
+
+        try {
+            for (final MongoClientWrapper wrapper : clients.values()) {
+                // Atomic, a call that starts now is rejected instead of getting a closing client
+                if (wrapper.closeIfIdle(threshold)) {
+                    LOG.info(String.format("Closing idle MongoDB client %s of user '%s'.",
+                            wrapper.getMongodbClientId(), wrapper.getUsername()));
+                    close(wrapper.getMongodbClientId());
+                }
+            }
+        } catch (final Throwable t) {
+            // Make sure the reaper keeps running
+            LOG.error(t.getMessage(), t);
+        }
+    }
+
+    /**
+     * Reserve a slot for a new MongoClient.
+     *
+     * @return FALSE when the maximum number of clients is reached.
+     */
+    private boolean reserveClient() {
+        final int count = openClients.incrementAndGet();
+        if (maxClients > 0 && count > maxClients) {
+            openClients.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
 
-    public static synchronized MongodbClientStore getInstance() {
-        if (instance == null) {
-            instance = new MongodbClientStore();
+    private XPathException tooManyClients() {
+        final String txt = String.format("Maximum number of %s MongoDB clients reached.", maxClients);
+        LOG.error(txt);
+        return new XPathException(MONGO_CONNECT, txt);
+    }
+
+    /**
+     * Register an existing client, it counts for the maximum number of clients.
+     *
+     * @param id       The client id
+     * @param client   The client, closed when the client id is closed
+     * @param username Name of the eXist-db user
+     * @throws XPathException The maximum number of clients is reached.
+     */
+    public void add(final String id, final MongoClient client, final String username) throws XPathException {
+        if (!reserveClient()) {
+            throw tooManyClients();
         }
-        return instance;
+        add(id, client, username, null);
     }
 
-    public void add(final String id, final MongoClient client, final String username) {
-        final MongoClientWrapper wrapper = new MongoClientWrapper(id, client, username);
+    private void add(final String id, final MongoClient client, final String username, final String sharedKey) {
+        final MongoClientWrapper wrapper = new MongoClientWrapper(id, client, username, sharedKey);
         clients.put(id, wrapper);
     }
 
-    public void remove(final String mongodbClientId) {
-        clients.remove(mongodbClientId);
+    /**
+     * Remove client from store and close it. A shared client is only closed
+     * when the last client id that refers to it is closed.
+     *
+     * @param mongodbClientId The client id
+     * @return FALSE if the client id is not known.
+     */
+    public boolean close(final String mongodbClientId) {
+        final MongoClientWrapper clientwrapper = (mongodbClientId == null) ? null : clients.remove(mongodbClientId);
+        if (clientwrapper == null) {
+            return false;
+        }
+
+        clientwrapper.markClosed();
+        HandleCache.getInstance().invalidate(mongodbClientId);
+
+        if (clientwrapper.getSharedKey() == null) {
+            openClients.decrementAndGet();
+            clientwrapper.getMongoClient().close();
+
+        } else {
+            releaseShared(clientwrapper.getSharedKey());
+        }
+        return true;
+    }
+
+    /**
+     * Decrease reference count of shared client, close it when it is not used anymore.
+     */
+    private void releaseShared(final String sharedKey) {
+        final MongoClient[] unused = new MongoClient[1];
+
+        sharedClients.computeIfPresent(sharedKey, (key, sharedClient) -> {
+            if (sharedClient.references.decrementAndGet() > 0) {
+                return sharedClient;
+            }
+            unused[0] = sharedClient.client;
+            return null;
+        });
+
+        if (unused[0] != null) {
+            LOG.debug("Closing shared client, no references left.");
+            openClients.decrementAndGet();
+            unused[0].close();
+        }
     }
 
     public Set<String> list() {
         return clients.keySet();
     }
 
+    /**
+     * Get snapshot of the statistics of all clients.
+     *
+     * @return Information of all registered clients
+     */
+    public Collection<MongoClientWrapper> statistics() {
+        return new ArrayList<>(clients.values());
+    }
+
     public MongoClient get(final String mongodbClientId) {
 
         final MongoClientWrapper clientwrapper = clients.get(mongodbClientId);
@@ -59,93 +231,280 @@ public class MongodbClientStore {
         return get(mongodbClientId) != null;
     }
 
-    public String create(final String url, final String username) {
-
-        // Construct client
-        final MongoClientURI uri = new MongoClientURI(url);
-        final MongoClient client = new MongoClient(uri);
+    public String create(final String url, final String username) throws XPathException {
+        return create(url, username, false);
+    }
 
-        LOG.debug(String.format("client: %s", client));
+    /**
+     * Create new client id.
+     *
+     * @param url      The MongoDB connection string
+     * @param username Name of the eXist-db user
+     * @param shared   When TRUE, reuse the client (and its connection pool) of an earlier
+     *                 connect with the same connection string by the same user.
+     * @return The new client id
+     * @throws XPathException The maximum number of clients is reached.
+     */
+    public String create(final String url, final String username, final boolean shared) throws XPathException {
 
         // Create unique identifier
         final String mongodbClientId = UUID.randomUUID().toString();
 
-        // Register
-        add(mongodbClientId, client, username);
+        if (shared) {
+            final String sharedKey = username + "@" + url;
+
+            // Construct client once, count references
+            final SharedClient sharedClient = sharedClients.compute(sharedKey, (key, existing) -> {
+                if (existing == null) {
+                    if (!reserveClient()) {
+                        return null;
+                    }
+                    final MongoClient client = new MongoClient(new MongoClientURI(url));
+                    LOG.debug(String.format("shared client: %s", client));
+                    return new SharedClient(client);
+                }
+                existing.references.incrementAndGet();
+                return existing;
+            });
+
+            if (sharedClient == null) {
+                throw tooManyClients();
+            }
+
+            // Register
+            add(mongodbClientId, sharedClient.client, username, sharedKey);
+
+        } else {
+            if (!reserveClient()) {
+                throw tooManyClients();
+            }
+
+            // Construct client
+            final MongoClientURI uri = new MongoClientURI(url);
+            final MongoClient client = new MongoClient(uri);
+
+            LOG.debug(String.format("client: %s", client));
+
+            // Register
+            add(mongodbClientId, client, username, null);
+        }
 
         return mongodbClientId;
     }
 
-    public MongoClient validate(final String mongodbClientId) throws XPathException {
-        if (mongodbClientId == null || !isValid(mongodbClientId)) {
-            try {
-                // introduce a delay
-                Thread.sleep(1000L);
+    /**
+     * Get client for a call. The call is registered as in-flight until
+     * {@link #release(String)} is invoked.
+     *
+     * Only unknown client ids are throttled per user: after a burst of unknown
+     * ids further unknown ids of the user are rejected for a while, without
+     * blocking the calling thread. Valid client ids are never throttled.
+     *
+     * When this method fails no call is registered; a following
+     * {@link #release(String)} does not find an open client and is ignored.
+     *
+     * @param mongodbClientId The client id
+     * @param username        Name of the eXist-db user
+     * @return The MongoDB client
+     * @throws XPathException The client id is not valid or the user is throttled.
+     */
+    public MongoClient validate(final String mongodbClientId, final String username) throws XPathException {
+
+        final MongoClientWrapper clientwrapper = (mongodbClientId == null) ? null : clients.get(mongodbClientId);
 
-            } catch (final InterruptedException ex) {
-                LOG.error(ex);
+        if (clientwrapper != null) {
+            if (!clientwrapper.begin()) {
+                throw new XPathException(MONGO_ID, "The client is closed.");
             }
-            throw new XPathException(MONGO_ID, null);
+            return clientwrapper.getMongoClient();
         }
 
-        final MongoClientWrapper clientwrapper = clients.get(mongodbClientId);
+        if (!throttle.isAllowed(username)) {
+            throw new XPathException(MONGO_ID, "Too many invalid client ids, try again later.");
+        }
+
+        throttle.registerInvalid(username);
+        throw new XPathException(MONGO_ID, null);
+    }
+
+    /**
+     * Register a call on a client that was validated before, e.g. to keep the
+     * client open while a cursor of a lazy result is read after the function
+     * returned. Every successful call must be followed by {@link #release(String)}.
+     *
+     * @param mongodbClientId The client id
+     * @return FALSE when the client is closed.
+     */
+    public boolean acquire(final String mongodbClientId) {
+        final MongoClientWrapper clientwrapper = (mongodbClientId == null) ? null : clients.get(mongodbClientId);
+        return clientwrapper != null && clientwrapper.begin();
+    }
+
+    /**
+     * @return Number of lookups of unknown client ids.
+     */
+    public long getInvalidIdAttempts() {
+        return throttle.getInvalidAttempts();
+    }
+
+    /**
+     * @return Number of lookups that were rejected because the user was throttled.
+     */
+    public long getRejectedIdAttempts() {
+        return throttle.getRejectedAttempts();
+    }
+
+    /**
+     * Mark the end of a call that was started with {@link #validate(String, String)}.
+     *
+     * @param mongodbClientId The client id
+     */
+    public void release(final String mongodbClientId) {
+        final MongoClientWrapper clientwrapper = (mongodbClientId == null) ? null : clients.get(mongodbClientId);
         if (clientwrapper != null) {
-            return clientwrapper.getMongoClient();
+            clientwrapper.end();
         }
-        return null;
+    }
 
+    /**
+     * Register a failed call.
+     *
+     * @param mongodbClientId The client id
+     */
+    public void registerError(final String mongodbClientId) {
+        final MongoClientWrapper clientwrapper = (mongodbClientId == null) ? null : clients.get(mongodbClientId);
+        if (clientwrapper != null) {
+            clientwrapper.error();
+        }
     }
 
-    class MongoClientWrapper {
-        // TODO: use information to make connections tracable
+    /**
+     * MongoClient that is used by multiple client ids.
+     */
+    private static class SharedClient {
+
+        private final MongoClient client;
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        SharedClient(final MongoClient client) {
+            this.client = client;
+        }
+    }
+
+    public static class MongoClientWrapper {
+
+        // Value of inFlight of a closed client
+        private static final int CLOSED = Integer.MIN_VALUE;
 
-        private String mongodbClientId;
-        private MongoClient client;
-        private String username;
-        private XMLGregorianCalendar calendar;
+        private final String mongodbClientId;
+        private final MongoClient client;
+        private final String username;
+        private final String sharedKey;
+        private final long created = System.currentTimeMillis();
 
-        public MongoClientWrapper(final String mongodbClientId, final MongoClient client, final String username) {
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicLong errors = new AtomicLong();
+        private volatile long lastUsed = created;
+
+        public MongoClientWrapper(final String mongodbClientId, final MongoClient client, final String username,
+                                  final String sharedKey) {
             this.mongodbClientId = mongodbClientId;
             this.client = client;
             this.username = username;
+            this.sharedKey = sharedKey;
+        }
 
-            try {
-                calendar = DatatypeFactory.newInstance().newXMLGregorianCalendar();
-            } catch (final DatatypeConfigurationException ex) {
-                //
-            }
+        /**
+         * Register the start of a call.
+         *
+         * @return FALSE when the client is closed.
+         */
+        boolean begin() {
+            int current;
+            do {
+                current = inFlight.get();
+                if (current == CLOSED) {
+                    return false;
+                }
+            } while (!inFlight.compareAndSet(current, current + 1));
+
+            calls.incrementAndGet();
+            lastUsed = System.currentTimeMillis();
+            return true;
         }
 
-        public String getMongodbClientId() {
-            return mongodbClientId;
+        /**
+         * Register the end of a call, ignored when the client is closed.
+         */
+        void end() {
+            lastUsed = System.currentTimeMillis();
+
+            int current;
+            do {
+                current = inFlight.get();
+                if (current <= 0) {
+                    return;
+                }
+            } while (!inFlight.compareAndSet(current, current - 1));
         }
 
-        public void setMongodbClientId(final String mongodbClientId) {
-            this.mongodbClientId = mongodbClientId;
+        /**
+         * Mark the client closed when no call is in flight and it was not used after the threshold.
+         *
+         * @param threshold Time in milliseconds
+         * @return TRUE when the client is marked closed, new calls are rejected.
+         */
+        boolean closeIfIdle(final long threshold) {
+            return lastUsed < threshold && inFlight.compareAndSet(0, CLOSED);
         }
 
-        public MongoClient getMongoClient() {
-            return client;
+        void markClosed() {
+            inFlight.set(CLOSED);
         }
 
-        public void setMongoClient(final MongoClient client) {
-            this.client = client;
+        void error() {
+            errors.incrementAndGet();
+        }
+
+        public String getMongodbClientId() {
+            return mongodbClientId;
+        }
+
+        public MongoClient getMongoClient() {
+            return client;
         }
 
         public String getUsername() {
             return username;
         }
 
-        public void setUsername(final String username) {
-            this.username = username;
+        String getSharedKey() {
+            return sharedKey;
+        }
+
+        public boolean isShared() {
+            return sharedKey != null;
+        }
+
+        public long getCreated() {
+            return created;
+        }
+
+        public long getCalls() {
+            return calls.get();
+        }
+
+        public int getInFlight() {
+            return Math.max(inFlight.get(), 0);
         }
 
-        public XMLGregorianCalendar getCalendar() {
-            return calendar;
+        public long getErrors() {
+            return errors.get();
         }
 
-        public void setCalendar(final XMLGregorianCalendar calendar) {
-            this.calendar = calendar;
+        public long getLastUsed() {
+            return lastUsed;
         }
 
     }
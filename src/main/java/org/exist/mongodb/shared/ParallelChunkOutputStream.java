@@ -0,0 +1,277 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.exist.mongodb.shared;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.gridfs.GridFS;
+import com.mongodb.gridfs.GridFSInputFile;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Output stream that writes a GridFS file with concurrent chunk inserts. The
+ * writing thread fills the chunks, a fixed number of writers insert them into
+ * the chunks collection. At most two chunks per writer are waiting to be
+ * inserted, which bounds the memory that is used. The writers are taken from
+ * a pool of {@link #MAX_WRITERS} threads that is shared by all uploads.
+ *
+ * The files document is only written when {@link #close()} is called and all
+ * chunks are acknowledged; the document has the same layout as the one written
+ * by {@link GridFSInputFile}. When a chunk could not be written, the chunks
+ * that were inserted already are removed.
+ *
+ * @author Dannes Wessels
+ */
+public class ParallelChunkOutputStream extends OutputStream {
+
+    private static final Logger LOG = LogManager.getLogger(ParallelChunkOutputStream.class);
+
+    /**
+     * Maximum number of writers of a single upload, and the size of the shared pool.
+     */
+    public static final int MAX_WRITERS = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(MAX_WRITERS, MAX_WRITERS,
+            60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+        final Thread thread = new Thread(runnable, "mongrel-gridfs-writer-" + THREAD_COUNTER.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private final GridFS gfs;
+    private final GridFSInputFile file;
+    private final DBCollection chunks;
+    private final MessageDigest md5;
+
+    private final int maxPending;
+    private final Semaphore permits;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    private volatile boolean aborted;
+
+    private byte[] buffer;
+    private int position;
+    private int chunkNumber;
+    private long length;
+    private boolean closed;
+
+    /**
+     * Constructor.
+     *
+     * @param gfs     The GridFS bucket
+     * @param file    The file to be written, provides id, name, chunk size and meta data.
+     * @param writers Number of concurrent chunk writers, at most {@link #MAX_WRITERS}
+     * @throws NoSuchAlgorithmException MD5 is not available
+     */
+    public ParallelChunkOutputStream(final GridFS gfs, final GridFSInputFile file, final int writers)
+            throws NoSuchAlgorithmException {
+
+        if (writers <= 0 || writers > MAX_WRITERS) {
+            throw new IllegalArgumentException(String.format("Number of writers must be between 1 and %s, got %s.",
+                    MAX_WRITERS, writers));
+        }
+
+        this.gfs = gfs;
+        this.file = file;
+        this.chunks = gfs.getChunksCollection();
+        this.md5 = MessageDigest.getInstance("MD5");
+
+        this.maxPending = 2 * writers;
+        this.permits = new Semaphore(maxPending);
+
+        this.buffer = new byte[(int) file.getChunkSize()];
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream is closed.");
+        }
+
+        int offset = off;
+        int remaining = len;
+        while (remaining > 0) {
+            final int count = Math.min(remaining, buffer.length - position);
+            System.arraycopy(b, offset, buffer, position, count);
+            md5.update(b, offset, count);
+
+            position += count;
+            offset += count;
+            remaining -= count;
+
+            if (position == buffer.length) {
+                sendChunk();
+            }
+        }
+    }
+
+    /**
+     * Hand over the filled chunk to a writer, waits when too many chunks are pending.
+     */
+    private void sendChunk() throws IOException {
+
+        checkFailure();
+
+        final BasicDBObject chunk = new BasicDBObject("files_id", file.getId())
+                .append("n", chunkNumber)
+                .append("data", position == buffer.length ? buffer : Arrays.copyOf(buffer, position));
+
+        try {
+            permits.acquire();
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(ex.getMessage());
+        }
+
+        try {
+            EXECUTOR.execute(() -> {
+                try {
+                    // Chunks that are still queued when the upload is aborted are not written
+                    if (!aborted) {
+                        chunks.insert(chunk);
+                    }
+                } catch (final Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (final RejectedExecutionException ex) {
+            permits.release();
+            throw new IOException(ex.getMessage(), ex);
+        }
+
+        length += position;
+        chunkNumber++;
+        buffer = new byte[buffer.length];
+        position = 0;
+    }
+
+    /**
+     * Rethrow the first failure of a writer.
+     */
+    private void checkFailure() throws IOException {
+        final Throwable t = failure.get();
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+
+        } else if (t != null) {
+            throw new IOException(t.getMessage(), t);
+        }
+    }
+
+    /**
+     * Wait until all chunks are acknowledged, then write the files document.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            if (position > 0) {
+                sendChunk();
+            }
+
+            while (!permits.tryAcquire(maxPending, 1, TimeUnit.SECONDS)) {
+                LOG.debug("Waiting for chunks of {}", file.getFilename());
+            }
+            permits.release(maxPending);
+
+            checkFailure();
+
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            discard();
+            throw new InterruptedIOException(ex.getMessage());
+
+        } catch (final IOException | RuntimeException ex) {
+            discard();
+            throw ex;
+        }
+
+        file.put("length", length);
+        file.put("md5", Hex.encodeHexString(md5.digest()));
+        gfs.getFilesCollection().save(file);
+    }
+
+    /**
+     * Stop writing and remove the chunks that were written, the files document is not written.
+     */
+    public void abort() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        discard();
+    }
+
+    /**
+     * Skip the queued chunks, wait for the running inserts and remove the chunks that were written.
+     */
+    private void discard() {
+        aborted = true;
+        try {
+            if (permits.tryAcquire(maxPending, 1, TimeUnit.MINUTES)) {
+                permits.release(maxPending);
+            } else {
+                LOG.warn("Chunks of {} are still being written", file.getFilename());
+            }
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            chunks.remove(new BasicDBObject("files_id", file.getId()));
+        } catch (final Throwable t) {
+            LOG.error("Unable to remove chunks of {}: {}", file.getFilename(), t.getMessage());
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.exist.mongodb.shared;
+
+import org.exist.xquery.XPathException;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+/**
+ * Converts items to BSON on a shared worker pool while the XQuery thread
+ * reads the input and writes to the database. Results are returned in input
+ * order; at most 'window' conversions are pending, which bounds the memory
+ * used for converted documents that are not yet written.
+ *
+ * Conversions must not access the database broker, only values that are
+ * independent of the XQuery thread (maps, arrays, strings) may be converted.
+ *
+ * @param <T> Result of a conversion
+ * @author Dannes Wessels
+ */
+public class ParallelConverter<T> {
+
+    /**
+     * Conversion of a single item.
+     *
+     * @param <T> Result of the conversion
+     */
+    @FunctionalInterface
+    public interface Conversion<T> {
+        T convert() throws XPathException;
+    }
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+            pool -> {
+                final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("mongrel-conversion-" + thread.getPoolIndex());
+                return thread;
+            }, null, false);
+
+    private final int window;
+    private final Deque<ForkJoinTask<T>> pending = new ArrayDeque<>();
+
+    /**
+     * Constructor.
+     *
+     * @param window Maximum number of pending conversions.
+     */
+    public ParallelConverter(final int window) {
+        this.window = Math.max(window, 1);
+    }
+
+    /**
+     * Start the conversion of an item.
+     *
+     * @param conversion The conversion
+     */
+    public void submit(final Conversion<T> conversion) {
+        final Callable<T> task = conversion::convert;
+        pending.addLast(POOL.submit(task));
+    }
+
+    /**
+     * @return TRUE when no more conversions should be submitted before {@link #take()} is called.
+     */
+    public boolean isFull() {
+        return pending.size() >= window;
+    }
+
+    /**
+     * @return TRUE when there are no pending conversions.
+     */
+    public boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    /**
+     * Wait for the oldest conversion.
+     *
+     * @return The converted item
+     * @throws XPathException The conversion failed
+     */
+    public T take() throws XPathException {
+        final ForkJoinTask<T> task = pending.removeFirst();
+        try {
+            return task.get();
+
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new XPathException(ex.getMessage(), ex);
+
+        } catch (final ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof XPathException) {
+                throw (XPathException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new XPathException(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Cancel all pending conversions, e.g. after a write failed.
+     */
+    public void cancel() {
+        for (final ForkJoinTask<T> task : pending) {
+            task.cancel(false);
+        }
+        pending.clear();
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.exist.mongodb.shared;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.gridfs.GridFS;
+import com.mongodb.gridfs.GridFSDBFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Input stream that reads the chunks of a GridFS file ahead. A background
+ * thread reads all chunks with a single cursor ordered by chunk number, while
+ * the reading thread consumes the chunks that are already received. At most
+ * 'window' chunks are kept in memory, the cursor is paused when the reading
+ * thread falls behind.
+ *
+ * This replaces {@link GridFSDBFile#getInputStream()}, which queries the
+ * chunks one by one. A part of the file can be read as well, then only the
+ * chunks containing the requested bytes are queried.
+ *
+ * @author Dannes Wessels
+ */
+public class PrefetchChunkInputStream extends InputStream {
+
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        final Thread thread = new Thread(runnable, "mongrel-gridfs-prefetch-" + THREAD_COUNTER.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Marks the end of the chunks
+    private static final byte[] END = new byte[0];
+
+    private final GridFSDBFile file;
+    private final BlockingQueue<byte[]> queue;
+    private final Future<?> prefetcher;
+
+    private volatile Throwable failure;
+
+    private byte[] chunk;
+    private int position;
+    private int skip;
+    private long remaining;
+    private boolean finished;
+    private boolean closed;
+
+    /**
+     * Constructor, starts reading the chunks.
+     *
+     * @param gfs    The GridFS bucket
+     * @param file   The file to be read
+     * @param window Maximum number of chunks that are read ahead
+     */
+    public PrefetchChunkInputStream(final GridFS gfs, final GridFSDBFile file, final int window) {
+        this(gfs, file, window, 0, file.getLength());
+    }
+
+    /**
+     * Constructor, starts reading the chunks of a part of the file. Only the
+     * chunks that contain the requested bytes are retrieved.
+     *
+     * @param gfs    The GridFS bucket
+     * @param file   The file to be read
+     * @param window Maximum number of chunks that are read ahead
+     * @param offset Position of the first byte
+     * @param length Number of bytes to be read
+     */
+    public PrefetchChunkInputStream(final GridFS gfs, final GridFSDBFile file, final int window,
+                                    final long offset, final long length) {
+        this.file = file;
+        this.queue = new ArrayBlockingQueue<>(Math.max(window, 1));
+        this.remaining = Math.max(0, Math.min(length, file.getLength() - offset));
+
+        if (remaining == 0) {
+            finished = true;
+            prefetcher = null;
+
+        } else {
+            final long chunkSize = file.getChunkSize();
+            final int firstChunk = (int) (offset / chunkSize);
+            final int lastChunk = (int) ((offset + remaining - 1) / chunkSize);
+            skip = (int) (offset % chunkSize);
+
+            prefetcher = EXECUTOR.submit(() -> prefetch(gfs, firstChunk, lastChunk, Math.max(window, 2)));
+        }
+    }
+
+    /**
+     * Read the chunks in order, runs on the background thread.
+     */
+    private void prefetch(final GridFS gfs, final int firstChunk, final int lastChunk, final int batchSize) {
+
+        final BasicDBObject query = new BasicDBObject("files_id", file.getId());
+        if (firstChunk > 0 || lastChunk < file.numChunks() - 1) {
+            query.append("n", new BasicDBObject("$gte", firstChunk).append("$lte", lastChunk));
+        }
+
+        try (final DBCursor cursor = gfs.getChunksCollection()
+                .find(query)
+                .sort(new BasicDBObject("n", 1))
+                .batchSize(batchSize)) {
+
+            int expected = firstChunk;
+            while (expected <= lastChunk && cursor.hasNext()) {
+                final DBObject document = cursor.next();
+
+                final int n = ((Number) document.get("n")).intValue();
+                if (n != expected) {
+                    throw new IOException(String.format("Chunk %s of '%s' is missing.", expected, file.getFilename()));
+                }
+
+                queue.put((byte[]) document.get("data"));
+                expected++;
+            }
+
+            if (expected <= lastChunk) {
+                throw new IOException(String.format("Chunk %s of '%s' is missing.", expected, file.getFilename()));
+            }
+
+        } catch (final InterruptedException ex) {
+            // Stream is closed
+            Thread.currentThread().interrupt();
+            return;
+
+        } catch (final Throwable t) {
+            failure = t;
+        }
+
+        try {
+            queue.put(END);
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Make the next chunk current.
+     *
+     * @return FALSE when all chunks are read.
+     */
+    private boolean nextChunk() throws IOException {
+        if (closed) {
+            throw new IOException("Stream is closed.");
+        }
+
+        if (remaining == 0) {
+            return false;
+        }
+
+        while (!finished && (chunk == null || position == chunk.length)) {
+            try {
+                chunk = queue.take();
+
+                // The first chunk can start before the requested offset
+                position = Math.min(skip, chunk.length);
+                skip = 0;
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(ex.getMessage());
+            }
+
+            if (chunk == END) {
+                finished = true;
+                chunk = null;
+                if (failure != null) {
+                    throw failure instanceof IOException
+                            ? (IOException) failure
+                            : new IOException(failure.getMessage(), failure);
+                }
+            }
+        }
+
+        return !finished;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextChunk()) {
+            return -1;
+        }
+        remaining--;
+        return chunk[position++] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextChunk()) {
+            return -1;
+        }
+
+        final int count = (int) Math.min(Math.min(len, chunk.length - position), remaining);
+        System.arraycopy(chunk, position, b, off, count);
+        position += count;
+        remaining -= count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return (chunk == null) ? 0 : (int) Math.min(chunk.length - position, remaining);
+    }
+
+    /**
+     * Stop reading ahead and release the chunks that were received.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        if (prefetcher != null) {
+            prefetcher.cancel(true);
+        }
+        queue.clear();
+        chunk = null;
+    }
+}
@@ -1,6 +1,9 @@
 package org.exist.mongodb.xquery;
 
 import org.exist.dom.QName;
+import org.exist.mongodb.shared.ChunkCache;
+import org.exist.mongodb.shared.CompressionCodec;
+import org.exist.mongodb.shared.Constants;
 import org.exist.mongodb.xquery.gridfs.*;
 import org.exist.xquery.AbstractInternalModule;
 import org.exist.xquery.ErrorCodes.ErrorCode;
@@ -22,14 +25,23 @@ public class GridfsModule extends AbstractInternalModule {
     public final static String RELEASED_IN_VERSION = "eXist-2.3";
 
     public final static FunctionDef[] functions = {
+            new FunctionDef(CompressionStatistics.signatures[0], CompressionStatistics.class),
             new FunctionDef(ListBuckets.signatures[0], ListBuckets.class),
             new FunctionDef(ListDocuments.signatures[0], ListDocuments.class),
+            new FunctionDef(ListDocuments.signatures[1], ListDocuments.class),
+            new FunctionDef(ListDocuments.signatures[2], ListDocuments.class),
+            new FunctionDef(ListDocuments.signatures[3], ListDocuments.class),
             new FunctionDef(Properties.signatures[0], Properties.class),
+            new FunctionDef(Properties.signatures[1], Properties.class),
+            new FunctionDef(ReadRange.signatures[0], ReadRange.class),
             new FunctionDef(Get.signatures[0], Get.class),
             new FunctionDef(Get.signatures[1], Get.class),
+            new FunctionDef(Get.signatures[2], Get.class),
+            new FunctionDef(Get.signatures[3], Get.class),
             new FunctionDef(Remove.signatures[0], Remove.class),
             new FunctionDef(Remove.signatures[1], Remove.class),
             new FunctionDef(Store.signatures[0], Store.class),
+            new FunctionDef(Store.signatures[1], Store.class),
             new FunctionDef(Stream.signatures[0], Stream.class),
             new FunctionDef(Stream.signatures[1], Stream.class)
 
@@ -45,8 +57,86 @@ public class GridfsModule extends AbstractInternalModule {
     public final static QName EXCEPTION_MESSAGE_QNAME
             = new QName("exception-message", GridfsModule.NAMESPACE_URI, GridfsModule.PREFIX);
 
+    /**
+     * Module parameter with the number of chunks that are read ahead when a document is retrieved.
+     */
+    public final static String PARAM_PREFETCH_WINDOW = "prefetchWindow";
+    public final static int DEFAULT_PREFETCH_WINDOW = 16;
+
+    /**
+     * Module parameter with the size in megabytes of the chunk cache of gridfs:read-range, 0 to disable.
+     */
+    public final static String PARAM_CHUNK_CACHE_SIZE = "chunkCacheSize";
+
+    /**
+     * Module parameters with the default compression and compression level of gridfs:store. A
+     * bucket specific value is set with the bucket name as suffix, e.g. 'compressionLevel.archive'.
+     */
+    public final static String PARAM_COMPRESSION = "compression";
+    public final static String PARAM_COMPRESSION_LEVEL = "compressionLevel";
+
+    private final Map<String, List<?>> parameters;
+    private final int prefetchWindow;
+
     public GridfsModule(final Map<String, List<?>> parameters) {
         super(functions, parameters);
+        this.parameters = parameters;
+        prefetchWindow = getIntParameter(PARAM_PREFETCH_WINDOW, DEFAULT_PREFETCH_WINDOW);
+        ChunkCache.getInstance().configure(getIntParameter(PARAM_CHUNK_CACHE_SIZE, ChunkCache.DEFAULT_MAX_MEGABYTES));
+    }
+
+    /**
+     * @return Number of chunks that are read ahead.
+     */
+    public int getPrefetchWindow() {
+        return prefetchWindow;
+    }
+
+    /**
+     * @param bucket Name of the bucket
+     * @return Name of the compression codec for new documents in the bucket.
+     */
+    public String getCompression(final String bucket) {
+        final String value = getStringParameter(PARAM_COMPRESSION + "." + bucket);
+        if (value != null) {
+            return value;
+        }
+        final String defaultValue = getStringParameter(PARAM_COMPRESSION);
+        return (defaultValue == null) ? Constants.GZIP : defaultValue;
+    }
+
+    /**
+     * @param bucket Name of the bucket
+     * @return Compression level for new documents in the bucket.
+     */
+    public int getCompressionLevel(final String bucket) {
+        final String bucketParameter = PARAM_COMPRESSION_LEVEL + "." + bucket;
+        return getIntParameter(bucketParameter,
+                getIntParameter(PARAM_COMPRESSION_LEVEL, CompressionCodec.DEFAULT_LEVEL));
+    }
+
+    private String getStringParameter(final String name) {
+        final List<?> values = (parameters == null) ? null : parameters.get(name);
+        if (values == null || values.isEmpty() || values.get(0) == null) {
+            return null;
+        }
+        final String value = values.get(0).toString().trim();
+        return value.isEmpty() ? null : value;
+    }
+
+    private int getIntParameter(final String name, final int defaultValue) {
+        final String value = getStringParameter(name);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            final int number = Integer.parseInt(value);
+            return number >= 0 ? number : defaultValue;
+
+        } catch (final NumberFormatException ex) {
+            return defaultValue;
+        }
     }
 
     @Override
@@ -1,6 +1,11 @@
 package org.exist.mongodb.xquery;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.exist.dom.QName;
+import org.exist.mongodb.shared.HandleCache;
+import org.exist.mongodb.shared.MongodbClientStore;
+import org.exist.mongodb.xquery.mongodb.client.ClientStatistics;
 import org.exist.mongodb.xquery.mongodb.client.Close;
 import org.exist.mongodb.xquery.mongodb.client.Connect;
 import org.exist.mongodb.xquery.mongodb.client.ListDatabases;
@@ -14,10 +19,13 @@ import org.exist.xquery.FunctionDef;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 
 public class MongodbModule extends AbstractInternalModule {
 
+    private final static Logger LOG = LogManager.getLogger(MongodbModule.class);
+
     public final static String NAMESPACE_URI = "http://expath.org/ns/mongo";
     public final static String PREFIX = "mongodb";
     public final static String INCLUSION_DATE = "2014-08-01";
@@ -25,8 +33,12 @@ public class MongodbModule extends AbstractInternalModule {
 
     public final static FunctionDef[] functions = {
             new FunctionDef(Aggregate.signatures[0], Aggregate.class),
+            new FunctionDef(BulkWrite.signatures[0], BulkWrite.class),
+            new FunctionDef(BulkWrite.signatures[1], BulkWrite.class),
+            new FunctionDef(ClientStatistics.signatures[0], ClientStatistics.class),
             new FunctionDef(Close.signatures[0], Close.class),
             new FunctionDef(Connect.signatures[0], Connect.class),
+            new FunctionDef(Connect.signatures[1], Connect.class),
             new FunctionDef(Count.signatures[0], Count.class),
             new FunctionDef(Count.signatures[1], Count.class),
             new FunctionDef(Drop.signatures[0], Drop.class),
@@ -36,6 +48,7 @@ public class MongodbModule extends AbstractInternalModule {
             new FunctionDef(Find.signatures[0], Find.class),
             new FunctionDef(Find.signatures[1], Find.class),
             new FunctionDef(Find.signatures[2], Find.class),
+            new FunctionDef(Find.signatures[3], Find.class),
             new FunctionDef(FindAndModify.signatures[0], FindAndModify.class),
             new FunctionDef(FindAndModify.signatures[1], FindAndModify.class),
             new FunctionDef(FindAndRemove.signatures[0], FindAndRemove.class),
@@ -45,6 +58,7 @@ public class MongodbModule extends AbstractInternalModule {
             new FunctionDef(FindOne.signatures[3], FindOne.class),
             new FunctionDef(Group.signatures[0], Group.class),
             new FunctionDef(Insert.signatures[0], Insert.class),
+            new FunctionDef(Insert.signatures[1], Insert.class),
             new FunctionDef(ListCollections.signatures[0], ListCollections.class),
             new FunctionDef(ListDatabases.signatures[0], ListDatabases.class),
             new FunctionDef(ListMongdbClientIds.signatures[0], ListMongdbClientIds.class),
@@ -126,8 +140,47 @@ public class MongodbModule extends AbstractInternalModule {
     public final static QName EXCEPTION_MESSAGE_QNAME
             = new QName("exception-message", MongodbModule.NAMESPACE_URI, MongodbModule.PREFIX);
 
+    /**
+     * Module parameter: number of seconds after which unused clients are closed, 0 to disable.
+     */
+    public final static String PARAM_IDLE_TIMEOUT = "idleTimeout";
+
+    /**
+     * Module parameter: maximum number of concurrently open MongoDB clients, 0 for unlimited.
+     */
+    public final static String PARAM_MAX_CLIENTS = "maxClients";
+
+    /**
+     * Module parameter: maximum number of cached GridFS bucket handles, 0 for the default.
+     */
+    public final static String PARAM_HANDLE_CACHE_SIZE = "handleCacheSize";
+
     public MongodbModule(final Map<String, List<?>> parameters) {
         super(functions, parameters);
+
+        // The module is created for each compiled query; configuring is a no-op when unchanged
+        MongodbClientStore.getInstance().configure(
+                TimeUnit.SECONDS.toMillis(getLongParameter(parameters, PARAM_IDLE_TIMEOUT)),
+                (int) getLongParameter(parameters, PARAM_MAX_CLIENTS));
+
+        HandleCache.getInstance().configure((int) getLongParameter(parameters, PARAM_HANDLE_CACHE_SIZE));
+    }
+
+    /**
+     * Get numeric module parameter as configured in conf.xml, 0 when not set.
+     */
+    private static long getLongParameter(final Map<String, List<?>> parameters, final String name) {
+        final List<?> values = (parameters == null) ? null : parameters.get(name);
+        if (values == null || values.isEmpty()) {
+            return 0;
+        }
+
+        try {
+            return Long.parseLong(values.get(0).toString().trim());
+        } catch (final NumberFormatException ex) {
+            LOG.error(String.format("Invalid value '%s' for parameter '%s'.", values.get(0), name));
+            return 0;
+        }
     }
 
     @Override
@@ -0,0 +1,84 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2014 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.mongodb.xquery.gridfs;
+
+import org.exist.dom.QName;
+import org.exist.mongodb.shared.CompressionMetrics;
+import org.exist.mongodb.shared.Constants;
+import org.exist.mongodb.xquery.GridfsModule;
+import org.exist.xquery.*;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Function to report the compression statistics of stored documents.
+ *
+ * @author Dannes Wessels
+ */
+public class CompressionStatistics extends BasicFunction {
+
+    private static final String COMPRESSION_STATISTICS = "compression-statistics";
+
+    public final static FunctionSignature[] signatures = {
+            new FunctionSignature(
+                    new QName(COMPRESSION_STATISTICS, GridfsModule.NAMESPACE_URI, GridfsModule.PREFIX),
+                    "Get compression statistics of the documents stored since startup: number of compressed documents, "
+                            + "documents stored as-is because of the MIME type or the trial compression, bytes before "
+                            + "and after compression, bytes saved and milliseconds spent compressing and probing.",
+                    new SequenceType[]{ /* No Parameters */},
+                    new FunctionReturnSequenceType(Type.MAP, Cardinality.ONE, "Map with the statistics")
+            ),
+    };
+
+    public CompressionStatistics(final XQueryContext context, final FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+
+        // User must either be DBA or in the mongodb group
+        if (!context.getSubject().hasDbaRole() && !context.getSubject().hasGroup(Constants.MONGODB_GROUP)) {
+            final String txt = String.format("Permission denied, user '%s' must be a DBA or be in group '%s'",
+                    context.getSubject().getName(), Constants.MONGODB_GROUP);
+            LOG.error(txt);
+            throw new XPathException(this, txt);
+        }
+
+        final CompressionMetrics metrics = CompressionMetrics.getInstance();
+
+        final MapType map = new MapType(context);
+        map.add(new StringValue("compressed"), new IntegerValue(metrics.getCompressed()));
+        map.add(new StringValue("skipped-by-type"), new IntegerValue(metrics.getSkippedByType()));
+        map.add(new StringValue("skipped-by-probe"), new IntegerValue(metrics.getSkippedByProbe()));
+        map.add(new StringValue("bytes-in"), new IntegerValue(metrics.getBytesIn()));
+        map.add(new StringValue("bytes-out"), new IntegerValue(metrics.getBytesOut()));
+        map.add(new StringValue("bytes-saved"), new IntegerValue(metrics.getBytesSaved()));
+        map.add(new StringValue("compression-ms"),
+                new IntegerValue(TimeUnit.NANOSECONDS.toMillis(metrics.getCompressionNanos())));
+        map.add(new StringValue("probe-ms"),
+                new IntegerValue(TimeUnit.NANOSECONDS.toMillis(metrics.getProbeNanos())));
+
+        return map;
+    }
+
+}
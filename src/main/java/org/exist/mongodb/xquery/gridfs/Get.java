@@ -19,7 +19,6 @@
  */
 package org.exist.mongodb.xquery.gridfs;
 
-import com.mongodb.DB;
 import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoException;
@@ -31,11 +30,16 @@ import org.bson.types.ObjectId;
 import org.exist.Namespaces;
 import org.exist.dom.QName;
 import org.exist.dom.memtree.SAXAdapter;
-import org.exist.mongodb.shared.Constants;
+import org.exist.mongodb.shared.CompressionCodec;
+import org.exist.mongodb.shared.CompressionCodecs;
+import org.exist.mongodb.shared.GridfsRevisions;
+import org.exist.mongodb.shared.HandleCache;
 import org.exist.mongodb.shared.MongodbClientStore;
+import org.exist.mongodb.shared.PrefetchChunkInputStream;
 import org.exist.mongodb.xquery.GridfsModule;
 import org.exist.validation.ValidationReport;
 import org.exist.xquery.*;
+import org.exist.xquery.functions.map.MapType;
 import org.exist.xquery.value.*;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
@@ -46,10 +50,11 @@ import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.zip.GZIPInputStream;
 
 import static org.exist.mongodb.shared.Constants.EXIST_COMPRESSION;
 import static org.exist.mongodb.shared.Constants.EXIST_DATATYPE;
+import static org.exist.mongodb.shared.Constants.EXIST_ORIGINAL_MD5;
+import static org.exist.mongodb.shared.Constants.EXIST_ORIGINAL_SIZE;
 import static org.exist.mongodb.shared.FunctionDefinitions.*;
 
 /**
@@ -65,10 +70,19 @@ public class Get extends BasicFunction {
     private static final FunctionParameterSequenceType PARAMETER_FORCE_BINARY =
             new FunctionParameterSequenceType("forceBinary", Type.BOOLEAN, Cardinality.ONE, "Set true() to force binary datatype for XML data.");
 
+    private static final FunctionParameterSequenceType PARAMETER_OPTIONS =
+            new FunctionParameterSequenceType("options", Type.MAP, Cardinality.ZERO_OR_ONE,
+                    "Map with options: 'revision' ('latest' or a number: 0 is the original document, "
+                            + "-1 the latest revision, default 'latest'; only used by filename) "
+                            + "and 'raw' (set true() to retrieve the stored bytes without decompression). "
+                            + "The raw document is returned as a map with the entries 'content' (the stored bytes), "
+                            + "'compression', 'original-size', 'original-md5', 'datatype', 'content-type', 'length' and 'md5'. "
+                            + "This map can be stored as-is with gridfs:store and the 'raw' option.");
+
     public final static FunctionSignature[] signatures = {
             new FunctionSignature(
                     new QName(FIND_BY_FILENAME, GridfsModule.NAMESPACE_URI, GridfsModule.PREFIX),
-                    "Retrieve document",
+                    "Retrieve the latest revision of a document",
                     new SequenceType[]{
                             PARAMETER_MONGODB_CLIENT, PARAMETER_DATABASE, PARAMETER_BUCKET, PARAMETER_FILENAME, PARAMETER_FORCE_BINARY
                     },
@@ -81,6 +95,24 @@ public class Get extends BasicFunction {
                             PARAMETER_MONGODB_CLIENT, PARAMETER_DATABASE, PARAMETER_BUCKET, PARAMETER_OBJECTID, PARAMETER_FORCE_BINARY,},
                     new FunctionReturnSequenceType(Type.ITEM, Cardinality.ZERO_OR_ONE, "The GridFS document")
             ),
+            new FunctionSignature(
+                    new QName(FIND_BY_FILENAME, GridfsModule.NAMESPACE_URI, GridfsModule.PREFIX),
+                    "Retrieve a revision of a document",
+                    new SequenceType[]{
+                            PARAMETER_MONGODB_CLIENT, PARAMETER_DATABASE, PARAMETER_BUCKET, PARAMETER_FILENAME, PARAMETER_FORCE_BINARY,
+                            PARAMETER_OPTIONS
+                    },
+                    new FunctionReturnSequenceType(Type.ITEM, Cardinality.ZERO_OR_ONE, "The GridFS document, or a map when 'raw' is set")
+            ),
+            new FunctionSignature(
+                    new QName(FIND_BY_OBJECTID, GridfsModule.NAMESPACE_URI, GridfsModule.PREFIX),
+                    "Retrieve document",
+                    new SequenceType[]{
+                            PARAMETER_MONGODB_CLIENT, PARAMETER_DATABASE, PARAMETER_BUCKET, PARAMETER_OBJECTID, PARAMETER_FORCE_BINARY,
+                            PARAMETER_OPTIONS
+                    },
+                    new FunctionReturnSequenceType(Type.ITEM, Cardinality.ZERO_OR_ONE, "The GridFS document, or a map when 'raw' is set")
+            ),
     };
 
     public Get(final XQueryContext context, final FunctionSignature signature) {
@@ -90,46 +122,54 @@ public class Get extends BasicFunction {
     @Override
     public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
 
+        // Verify clientid and get client
+        final String mongodbClientId = args[0].itemAt(0).getStringValue();
+
         try {
-            // Verify clientid and get client
-            final String mongodbClientId = args[0].itemAt(0).getStringValue();
-            MongodbClientStore.getInstance().validate(mongodbClientId);
-            final MongoClient client = MongodbClientStore.getInstance().get(mongodbClientId);
+            final MongoClient client = MongodbClientStore.getInstance().validate(mongodbClientId, context.getSubject().getName());
 
             // Get parameters
             final String dbname = args[1].itemAt(0).getStringValue();
             final String bucket = args[2].itemAt(0).getStringValue();
             final String documentId = args[3].itemAt(0).getStringValue();
             final boolean forceBinary = args[4].itemAt(0).toJavaObject(Boolean.class);
+            final MapType options = (args.length >= 6 && !args[5].isEmpty()) ? (MapType) args[5].itemAt(0) : null;
 
-            // Get database
-            final DB db = client.getDB(dbname);
-
-            // Creates a GridFS instance for the specified bucket
-            final GridFS gfs = new GridFS(db, bucket);
+            // Get the cached GridFS instance for the specified bucket
+            final GridFS gfs = HandleCache.getInstance().getGridFS(mongodbClientId, client, dbname, bucket);
 
-            // Find one document by id or by filename
+            // Find one document by id or a revision by filename
             final GridFSDBFile gfsFile = (isCalledAs(FIND_BY_OBJECTID))
                     ? gfs.findOne(new ObjectId(documentId))
-                    : gfs.findOne(documentId); // TODO: find latest
+                    : GridfsRevisions.find(gfs, documentId, getRevision(options));
 
             if (gfsFile == null) {
                 throw new XPathException(this, GridfsModule.GRFS0004, String.format("Document '%s' could not be found.", documentId));
             }
 
-            return get(gfsFile, forceBinary);
+            if (isRaw(options)) {
+                return getRaw(gfs, gfsFile);
+            }
+
+            return get(gfs, gfsFile, forceBinary);
 
         } catch (final XPathException ex) {
+            MongodbClientStore.getInstance().registerError(mongodbClientId);
             LOG.error(ex.getMessage(), ex);
             throw new XPathException(this, ex.getMessage(), ex);
 
         } catch (final MongoException ex) {
+            MongodbClientStore.getInstance().registerError(mongodbClientId);
             LOG.error(ex.getMessage(), ex);
             throw new XPathException(this, GridfsModule.GRFS0002, ex.getMessage());
 
         } catch (final Throwable ex) {
+            MongodbClientStore.getInstance().registerError(mongodbClientId);
             LOG.error(ex.getMessage(), ex);
             throw new XPathException(this, GridfsModule.GRFS0003, ex.getMessage());
+
+        } finally {
+            MongodbClientStore.getInstance().release(mongodbClientId);
         }
 
     }
@@ -137,14 +177,14 @@ public class Get extends BasicFunction {
     /**
      * Get document from GridFS
      */
-    Sequence get(final GridFSDBFile gfsFile, final boolean forceBinary) throws IOException, XPathException {
+    Sequence get(final GridFS gfs, final GridFSDBFile gfsFile, final boolean forceBinary) throws IOException, XPathException {
 
         // Obtain meta-data
         final DBObject metadata = gfsFile.getMetaData();
 
         // Decompress when needed
         final String compression = (metadata == null) ? null : (String) metadata.get(EXIST_COMPRESSION);
-        final boolean isGzipped = StringUtils.equals(compression, Constants.GZIP);
+        final CompressionCodec codec = CompressionCodecs.forDocument(compression);
 
 
         // Find what kind of data is stored
@@ -152,11 +192,12 @@ public class Get extends BasicFunction {
         final boolean hasXMLContentType = StringUtils.contains(gfsFile.getContentType(), "xml");
         final boolean isXMLtype = (Type.DOCUMENT == datatype || Type.ELEMENT == datatype || hasXMLContentType);
 
-        // Convert input stream to eXist-db object
-
+        // Convert input stream to eXist-db object, chunks are read ahead while the data is parsed
+        final int window = ((GridfsModule) context.getModule(GridfsModule.NAMESPACE_URI)).getPrefetchWindow();
         final Sequence retVal;
 
-        try (final InputStream is = isGzipped ? new GZIPInputStream(gfsFile.getInputStream()) : gfsFile.getInputStream()) {
+        try (final InputStream chunks = new PrefetchChunkInputStream(gfs, gfsFile, window);
+             final InputStream is = (codec == null) ? chunks : codec.decompress(chunks)) {
             if (forceBinary || !isXMLtype) {
                 retVal = Base64BinaryDocument.getInstance(context, is);
 
@@ -167,6 +208,76 @@ public class Get extends BasicFunction {
         return retVal;
     }
 
+    /**
+     * Get the stored bytes of a document with the meta data that is needed to
+     * interpret them. Compressed data is not decompressed.
+     */
+    private Sequence getRaw(final GridFS gfs, final GridFSDBFile gfsFile) throws IOException, XPathException {
+
+        final DBObject metadata = gfsFile.getMetaData();
+
+        final MapType map = new MapType(context);
+        map.add(new StringValue("length"), new IntegerValue(gfsFile.getLength()));
+        if (gfsFile.getMD5() != null) {
+            map.add(new StringValue("md5"), new StringValue(gfsFile.getMD5()));
+        }
+        if (gfsFile.getContentType() != null) {
+            map.add(new StringValue("content-type"), new StringValue(gfsFile.getContentType()));
+        }
+
+        if (metadata != null) {
+            final Object compression = metadata.get(EXIST_COMPRESSION);
+            if (compression != null) {
+                map.add(new StringValue("compression"), new StringValue(compression.toString()));
+            }
+
+            final Object originalSize = metadata.get(EXIST_ORIGINAL_SIZE);
+            if (originalSize instanceof Number) {
+                map.add(new StringValue("original-size"), new IntegerValue(((Number) originalSize).longValue()));
+            }
+
+            final Object originalMd5 = metadata.get(EXIST_ORIGINAL_MD5);
+            if (originalMd5 != null) {
+                map.add(new StringValue("original-md5"), new StringValue(originalMd5.toString()));
+            }
+
+            final Object datatype = metadata.get(EXIST_DATATYPE);
+            if (datatype instanceof Number) {
+                map.add(new StringValue("datatype"), new StringValue(Type.getTypeName(((Number) datatype).intValue())));
+            }
+        }
+
+        // The bytes are copied as stored, no codec is involved
+        final int window = ((GridfsModule) context.getModule(GridfsModule.NAMESPACE_URI)).getPrefetchWindow();
+        try (final InputStream is = new PrefetchChunkInputStream(gfs, gfsFile, window)) {
+            map.add(new StringValue("content"), Base64BinaryDocument.getInstance(context, is));
+        }
+
+        return map;
+    }
+
+    private int getRevision(final MapType options) throws XPathException {
+        final Sequence revision = (options == null) ? null : options.get(new StringValue("revision"));
+        if (revision == null || revision.isEmpty()) {
+            return GridfsRevisions.LATEST;
+        }
+
+        try {
+            return GridfsRevisions.parse(revision.getStringValue());
+
+        } catch (final IllegalArgumentException ex) {
+            throw new XPathException(this, ex.getMessage());
+        }
+    }
+
+    private static boolean isRaw(final MapType options) throws XPathException {
+        if (options == null) {
+            return false;
+        }
+        final Sequence raw = options.get(new StringValue("raw"));
+        return raw != null && !raw.isEmpty() && raw.effectiveBooleanValue();
+    }
+
     /**
      * Parse an byte-stream containing (compressed) XML data into an eXist-db
      * document.
@@ -61,11 +61,11 @@ public class ListBuckets extends BasicFunction {
     @Override
     public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
 
+        // Verify clientid and get client
+        final String mongodbClientId = args[0].itemAt(0).getStringValue();
+
         try {
-            // Verify clientid and get client
-            final String mongodbClientId = args[0].itemAt(0).getStringValue();
-            MongodbClientStore.getInstance().validate(mongodbClientId);
-            final MongoClient client = MongodbClientStore.getInstance().get(mongodbClientId);
+            final MongoClient client = MongodbClientStore.getInstance().validate(mongodbClientId, context.getSubject().getName());
 
             // Get parameters
             final String dbname = args[1].itemAt(0).getStringValue();
@@ -93,16 +93,22 @@ public class ListBuckets extends BasicFunction {
             return valueSequence;
 
         } catch (final XPathException ex) {
+            MongodbClientStore.getInstance().registerError(mongodbClientId);
             LOG.error(ex.getMessage(), ex);
             throw new XPathException(this, ex.getMessage(), ex);
 
         } catch (final MongoException ex) {
+            MongodbClientStore.getInstance().registerError(mongodbClientId);
             LOG.error(ex.getMessage(), ex);
             throw new XPathException(this, GridfsModule.GRFS0002, ex.getMessage());
 
         } catch (final Throwable ex) {
+            MongodbClientStore.getInstance().registerError(mongodbClientId);
             LOG.error(ex.getMessage(), ex);
             throw new XPathException(this, GridfsModule.GRFS0003, ex.getMessage());
+
+        } finally {
+            MongodbClientStore.getInstance().release(mongodbClientId);
         }
 
         //return Sequence.EMPTY_SEQUENCE;
@@ -19,15 +19,23 @@
  */
 package org.exist.mongodb.xquery.gridfs;
 
-import com.mongodb.DB;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.FindOptions;
 import com.mongodb.gridfs.GridFS;
+import org.bson.conversions.Bson;
 import org.exist.dom.QName;
 import org.exist.mongodb.shared.ContentSerializer;
+import org.exist.mongodb.shared.CursorOptions;
+import org.exist.mongodb.shared.CursorSequence;
+import org.exist.mongodb.shared.HandleCache;
+import org.exist.mongodb.shared.MapCodec;
+import org.exist.mongodb.shared.MapEncoder;
 import org.exist.mongodb.shared.MongodbClientStore;
 import org.exist.mongodb.xquery.GridfsModule;
 import org.exist.xquery.*;
+import org.exist.xquery.functions.map.MapType;
 import org.exist.xquery.value.FunctionReturnSequenceType;
 import org.exist.xquery.value.Sequence;
 import org.exist.xquery.value.SequenceType;
@@ -44,6 +52,9 @@ public class ListDocuments extends BasicFunction {
 
     private static final String LIST_DOCUMENTS = "list-documents";
 
+    private static final String DESCR_LAZY = "The documents are retrieved while the sequence is consumed, "
+            + "the complete list is never kept in memory.";
+
     public final static FunctionSignature[] signatures = {
             new FunctionSignature(
                     new QName(LIST_DOCUMENTS, GridfsModule.NAMESPACE_URI, GridfsModule.PREFIX),
@@ -53,6 +64,32 @@ public class ListDocuments extends BasicFunction {
                     },
                     new FunctionReturnSequenceType(Type.NODE, Cardinality.ONE, "XML fregment containing information of documents")
             ),
+            new FunctionSignature(
+                    new QName(LIST_DOCUMENTS, GridfsModule.NAMESPACE_URI, GridfsModule.PREFIX),
+                    "List the files documents that match the query. " + DESCR_LAZY,
+                    new SequenceType[]{
+                            PARAMETER_MONGODB_CLIENT, PARAMETER_DATABASE, PARAMETER_BUCKET, PARAMETER_QUERY,
+                    },
+                    new FunctionReturnSequenceType(Type.MAP, Cardinality.ZERO_OR_MORE, "The files documents")
+            ),
+            new FunctionSignature(
+                    new QName(LIST_DOCUMENTS, GridfsModule.NAMESPACE_URI, GridfsModule.PREFIX),
+                    "List the specified fields of the files documents that match the query. " + DESCR_LAZY,
+                    new SequenceType[]{
+                            PARAMETER_MONGODB_CLIENT, PARAMETER_DATABASE, PARAMETER_BUCKET, PARAMETER_QUERY, PARAMETER_OPTIONS,
+                    },
+                    new FunctionReturnSequenceType(Type.MAP, Cardinality.ZERO_OR_MORE, "The files documents")
+            ),
+            new FunctionSignature(
+                    new QName(LIST_DOCUMENTS, GridfsModule.NAMESPACE_URI, GridfsModule.PREFIX),
+                    "List the specified fields of the files documents that match the query. "
+                            + "Paging and sorting are executed by the server. " + DESCR_LAZY,
+                    new SequenceType[]{
+                            PARAMETER_MONGODB_CLIENT, PARAMETER_DATABASE, PARAMETER_BUCKET, PARAMETER_QUERY, PARAMETER_OPTIONS,
+                            PARAMETER_CURSOR_OPTIONS,
+                    },
+                    new FunctionReturnSequenceType(Type.MAP, Cardinality.ZERO_OR_MORE, "The files documents")
+            ),
     };
 
     public ListDocuments(final XQueryContext context, final FunctionSignature signature) {
@@ -62,39 +99,70 @@ public class ListDocuments extends BasicFunction {
     @Override
     public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
 
+        // Verify clientid and get client
+        final String mongodbClientId = args[0].itemAt(0).getStringValue();
+
         try {
-            // Verify clientid and get client
-            final String mongodbClientId = args[0].itemAt(0).getStringValue();
-            MongodbClientStore.getInstance().validate(mongodbClientId);
-            final MongoClient client = MongodbClientStore.getInstance().get(mongodbClientId);
+            final MongoClient client = MongodbClientStore.getInstance().validate(mongodbClientId, context.getSubject().getName());
 
             // Get parameters
             final String dbname = args[1].itemAt(0).getStringValue();
             final String bucket = args[2].itemAt(0).getStringValue();
 
-            // Get database
-            final DB db = client.getDB(dbname);
+            if (args.length >= 4) {
+                return listDocuments(mongodbClientId, client, dbname, bucket, args);
+            }
 
-            // Creates a GridFS instance for the specified bucket
-            final GridFS gfs = new GridFS(db, bucket);
+            // Get the cached GridFS instance for the specified bucket
+            final GridFS gfs = HandleCache.getInstance().getGridFS(mongodbClientId, client, dbname, bucket);
 
             return ContentSerializer.getDocuments(gfs);
 
         } catch (final XPathException ex) {
+            MongodbClientStore.getInstance().registerError(mongodbClientId);
             LOG.error(ex.getMessage(), ex);
             throw new XPathException(this, ex.getMessage(), ex);
 
         } catch (final MongoException ex) {
+            MongodbClientStore.getInstance().registerError(mongodbClientId);
             LOG.error(ex.getMessage(), ex);
             throw new XPathException(this, GridfsModule.GRFS0002, ex.getMessage());
 
         } catch (final Throwable ex) {
+            MongodbClientStore.getInstance().registerError(mongodbClientId);
             LOG.error(ex.getMessage(), ex);
             throw new XPathException(this, GridfsModule.GRFS0003, ex.getMessage());
+
+        } finally {
+            MongodbClientStore.getInstance().release(mongodbClientId);
         }
 
         //return Sequence.EMPTY_SEQUENCE;
 
     }
 
+    /**
+     * Query the files collection of the bucket, the documents are converted into maps one by one.
+     */
+    private Sequence listDocuments(final String mongodbClientId, final MongoClient client, final String dbname,
+                                   final String bucket, final Sequence[] args) throws XPathException {
+
+        final Bson mongoQuery = MapEncoder.toRawDocument(args[3]);
+
+        final Bson mongoKeys = (args.length >= 5)
+                ? MapEncoder.toRawDocument(args[4])
+                : null;
+
+        final MongoCollection<MapType> files = MapCodec.wrap(client.getDatabase(dbname)
+                .getCollection(bucket + ".files"), context);
+
+        final FindOptions findOptions = new FindOptions().projection(mongoKeys);
+
+        if (args.length >= 6) {
+            CursorOptions.parse(args[5], findOptions);
+        }
+
+        return new CursorSequence<>(context, this, mongodbClientId, files, mongoQuery, findOptions, (document, ctx) -> document).open();
+    }
+
 }
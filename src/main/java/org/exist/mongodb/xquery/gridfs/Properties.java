@@ -19,21 +19,23 @@
  */
 package org.exist.mongodb.xquery.gridfs;
 
-import com.mongodb.DB;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
 import com.mongodb.gridfs.GridFS;
 import com.mongodb.gridfs.GridFSDBFile;
 import org.bson.types.ObjectId;
 import org.exist.dom.QName;
 import org.exist.mongodb.shared.ContentSerializer;
+import org.exist.mongodb.shared.GridfsRevisions;
+import org.exist.mongodb.shared.HandleCache;
+import org.exist.mongodb.shared.MapCodec;
 import org.exist.mongodb.shared.MongodbClientStore;
 import org.exist.mongodb.xquery.GridfsModule;
 import org.exist.xquery.*;
-import org.exist.xquery.value.FunctionReturnSequenceType;
-import org.exist.xquery.value.Sequence;
-import org.exist.xquery.value.SequenceType;
-import org.exist.xquery.value.Type;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.*;
 
 import static org.exist.mongodb.shared.FunctionDefinitions.*;
 
@@ -54,8 +56,22 @@ public class Properties extends BasicFunction {
                             PARAMETER_MONGODB_CLIENT, PARAMETER_DATABASE, PARAMETER_BUCKET, PARAMETER_OBJECTID,},
                     new FunctionReturnSequenceType(Type.ELEMENT, Cardinality.ONE, "XML fragment with document properties")
             ),
+            new FunctionSignature(
+                    new QName(PROPS_BY_OBJECTID, GridfsModule.NAMESPACE_URI, GridfsModule.PREFIX),
+                    "Retrieve properties and metadata of a document",
+                    new SequenceType[]{
+                            PARAMETER_MONGODB_CLIENT, PARAMETER_DATABASE, PARAMETER_BUCKET, PARAMETER_OBJECTID,
+                            new FunctionParameterSequenceType("options", Type.MAP, Cardinality.ZERO_OR_ONE,
+                                    "Map with options: 'format' ('xml' or 'map', default 'xml'). With 'map' the files document "
+                                            + "is returned as map, converted as by mongodb:find; the types of the meta data are kept.")
+                    },
+                    new FunctionReturnSequenceType(Type.ITEM, Cardinality.ONE, "XML fragment or map with document properties")
+            ),
     };
 
+    private static final String FORMAT_MAP = "map";
+    private static final String FORMAT_XML = "xml";
+
     public Properties(final XQueryContext context, final FunctionSignature signature) {
         super(context, signature);
     }
@@ -63,27 +79,29 @@ public class Properties extends BasicFunction {
     @Override
     public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
 
+        // Verify clientid and get client
+        final String mongodbClientId = args[0].itemAt(0).getStringValue();
+
         try {
-            // Verify clientid and get client
-            final String mongodbClientId = args[0].itemAt(0).getStringValue();
-            MongodbClientStore.getInstance().validate(mongodbClientId);
-            final MongoClient client = MongodbClientStore.getInstance().get(mongodbClientId);
+            final MongoClient client = MongodbClientStore.getInstance().validate(mongodbClientId, context.getSubject().getName());
 
             // Get parameters
             final String dbname = args[1].itemAt(0).getStringValue();
             final String bucket = args[2].itemAt(0).getStringValue();
             final String documentId = args[3].itemAt(0).getStringValue();
 
-            // Get database
-            final DB db = client.getDB(dbname);
+            final MapType options = (args.length >= 5 && !args[4].isEmpty()) ? (MapType) args[4].itemAt(0) : null;
+            if (isMapFormat(options)) {
+                return getProperties(mongodbClientId, client, dbname, bucket, documentId);
+            }
 
-            // Creates a GridFS instance for the specified bucket
-            final GridFS gfs = new GridFS(db, bucket);
+            // Get the cached GridFS instance for the specified bucket
+            final GridFS gfs = HandleCache.getInstance().getGridFS(mongodbClientId, client, dbname, bucket);
 
-            // Find one document by id or by filename
+            // Find one document by id or the latest revision by filename
             final GridFSDBFile gfsFile = (isCalledAs(PROPS_BY_OBJECTID))
                     ? gfs.findOne(new ObjectId(documentId))
-                    : gfs.findOne(documentId);
+                    : GridfsRevisions.find(gfs, documentId, GridfsRevisions.LATEST);
 
             if (gfsFile == null) {
                 throw new XPathException(this, GridfsModule.GRFS0004, String.format("Document '%s' could not be found.", documentId));
@@ -92,18 +110,52 @@ public class Properties extends BasicFunction {
             return ContentSerializer.getReport(gfsFile);
 
         } catch (final XPathException ex) {
+            MongodbClientStore.getInstance().registerError(mongodbClientId);
             LOG.error(ex.getMessage(), ex);
             throw new XPathException(this, ex.getMessage(), ex);
 
         } catch (final MongoException ex) {
+            MongodbClientStore.getInstance().registerError(mongodbClientId);
             LOG.error(ex.getMessage(), ex);
             throw new XPathException(this, GridfsModule.GRFS0002, ex.getMessage());
 
         } catch (final Throwable ex) {
+            MongodbClientStore.getInstance().registerError(mongodbClientId);
             LOG.error(ex.getMessage(), ex);
             throw new XPathException(this, GridfsModule.GRFS0003, ex.getMessage());
+
+        } finally {
+            MongodbClientStore.getInstance().release(mongodbClientId);
         }
 
     }
 
+    /**
+     * Get the files document as map, no XML is constructed.
+     */
+    private Sequence getProperties(final String mongodbClientId, final MongoClient client, final String dbname,
+                                   final String bucket, final String documentId) throws XPathException {
+
+        final MongoCollection<MapType> files = MapCodec.wrap(client.getDatabase(dbname)
+                .getCollection(bucket + ".files"), context);
+
+        final MapType properties = files.find(Filters.eq("_id", new ObjectId(documentId))).first();
+        if (properties == null) {
+            throw new XPathException(this, GridfsModule.GRFS0004, String.format("Document '%s' could not be found.", documentId));
+        }
+        return properties;
+    }
+
+    private boolean isMapFormat(final MapType options) throws XPathException {
+        final Sequence format = (options == null) ? null : options.get(new StringValue("format"));
+        if (format == null || format.isEmpty()) {
+            return false;
+        }
+
+        final String value = format.getStringValue();
+        if (!FORMAT_MAP.equals(value) && !FORMAT_XML.equals(value)) {
+            throw new XPathException(this, String.format("Format must be '%s' or '%s', got '%s'.", FORMAT_XML, FORMAT_MAP, value));
+        }
+        return FORMAT_MAP.equals(value);
+    }
 }
@@ -0,0 +1,201 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2014 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.mongodb.xquery.gridfs;
+
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
+import com.mongodb.gridfs.GridFS;
+import com.mongodb.gridfs.GridFSDBFile;
+import org.apache.commons.io.IOUtils;
+import org.bson.types.ObjectId;
+import org.exist.dom.QName;
+import org.exist.mongodb.shared.CompressionCodec;
+import org.exist.mongodb.shared.CompressionCodecs;
+import org.exist.mongodb.shared.ChunkCache;
+import org.exist.mongodb.shared.GridfsSeekableChannel;
+import org.exist.mongodb.shared.HandleCache;
+import org.exist.mongodb.shared.MongodbClientStore;
+import org.exist.mongodb.shared.PrefetchChunkInputStream;
+import org.exist.mongodb.xquery.GridfsModule;
+import org.exist.xquery.*;
+import org.exist.xquery.value.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+
+import static org.exist.mongodb.shared.Constants.EXIST_COMPRESSION;
+import static org.exist.mongodb.shared.Constants.EXIST_ORIGINAL_SIZE;
+import static org.exist.mongodb.shared.FunctionDefinitions.*;
+
+/**
+ * Function to read a part of a GridFS document.
+ *
+ * @author Dannes Wessels
+ */
+public class ReadRange extends BasicFunction {
+
+    private static final String READ_RANGE = "read-range";
+
+    private static final FunctionParameterSequenceType PARAMETER_OFFSET =
+            new FunctionParameterSequenceType("offset", Type.INTEGER, Cardinality.ONE, "Position of the first byte, starting at 0");
+
+    private static final FunctionParameterSequenceType PARAMETER_LENGTH =
+            new FunctionParameterSequenceType("length", Type.INTEGER, Cardinality.ONE, "Number of bytes to read");
+
+    public final static FunctionSignature[] signatures = {
+            new FunctionSignature(
+                    new QName(READ_RANGE, GridfsModule.NAMESPACE_URI, GridfsModule.PREFIX),
+                    "Read a range of bytes of a document. Only the chunks containing the range are retrieved, "
+                            + "recently read chunks are cached for subsequent calls. Documents that are stored "
+                            + "compressed cannot be read from an offset: every call decompresses the document "
+                            + "from the start up to the range.",
+                    new SequenceType[]{
+                            PARAMETER_MONGODB_CLIENT, PARAMETER_DATABASE, PARAMETER_BUCKET, PARAMETER_OBJECTID,
+                            PARAMETER_OFFSET, PARAMETER_LENGTH
+                    },
+                    new FunctionReturnSequenceType(Type.BASE64_BINARY, Cardinality.ONE,
+                            "The bytes of the range, less bytes are returned when the range exceeds the document")
+            ),
+    };
+
+    public ReadRange(final XQueryContext context, final FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+
+        // Verify clientid and get client
+        final String mongodbClientId = args[0].itemAt(0).getStringValue();
+
+        try {
+            final MongoClient client = MongodbClientStore.getInstance().validate(mongodbClientId, context.getSubject().getName());
+
+            // Get parameters
+            final String dbname = args[1].itemAt(0).getStringValue();
+            final String bucket = args[2].itemAt(0).getStringValue();
+            final String documentId = args[3].itemAt(0).getStringValue();
+            final long offset = args[4].itemAt(0).toJavaObject(Long.class);
+            final long length = args[5].itemAt(0).toJavaObject(Long.class);
+
+            if (offset < 0 || length < 0) {
+                throw new XPathException(this, String.format("Offset and length must not be negative, got %s and %s.", offset, length));
+            }
+
+            if (length > Integer.MAX_VALUE) {
+                throw new XPathException(this, String.format("Length must not exceed %s bytes, got %s.", Integer.MAX_VALUE, length));
+            }
+
+            // Get the cached GridFS instance for the specified bucket
+            final GridFS gfs = HandleCache.getInstance().getGridFS(mongodbClientId, client, dbname, bucket);
+
+            // Find one document by id
+            final GridFSDBFile gfsFile = gfs.findOne(new ObjectId(documentId));
+
+            if (gfsFile == null) {
+                throw new XPathException(this, GridfsModule.GRFS0004, String.format("Document '%s' could not be found.", documentId));
+            }
+
+            final DBObject metadata = gfsFile.getMetaData();
+            final String compression = (metadata == null) ? null : (String) metadata.get(EXIST_COMPRESSION);
+
+            final CompressionCodec codec = CompressionCodecs.forDocument(compression);
+
+            final byte[] data = (codec == null)
+                    ? readStored(gfs, gfsFile, offset, (int) length)
+                    : readCompressed(gfs, gfsFile, codec, offset, (int) length);
+
+            return new BinaryValueFromBinaryString(new Base64BinaryValueType(), Base64.getEncoder().encodeToString(data));
+
+        } catch (final XPathException ex) {
+            MongodbClientStore.getInstance().registerError(mongodbClientId);
+            LOG.error(ex.getMessage(), ex);
+            throw new XPathException(this, ex.getMessage(), ex);
+
+        } catch (final MongoException ex) {
+            MongodbClientStore.getInstance().registerError(mongodbClientId);
+            LOG.error(ex.getMessage(), ex);
+            throw new XPathException(this, GridfsModule.GRFS0002, ex.getMessage());
+
+        } catch (final Throwable ex) {
+            MongodbClientStore.getInstance().registerError(mongodbClientId);
+            LOG.error(ex.getMessage(), ex);
+            throw new XPathException(this, GridfsModule.GRFS0003, ex.getMessage());
+
+        } finally {
+            MongodbClientStore.getInstance().release(mongodbClientId);
+        }
+
+    }
+
+    /**
+     * Read the range directly from the chunks.
+     */
+    private byte[] readStored(final GridFS gfs, final GridFSDBFile gfsFile, final long offset, final int length) throws IOException {
+
+        final int size = (int) Math.max(0, Math.min(length, gfsFile.getLength() - offset));
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+
+        try (final GridfsSeekableChannel channel = new GridfsSeekableChannel(gfs, gfsFile,
+                GridfsSeekableChannel.DEFAULT_CACHE_SIZE, ChunkCache.getInstance())) {
+            channel.position(offset);
+            while (buffer.hasRemaining() && channel.read(buffer) > 0) {
+                // Read until the range is complete
+            }
+        }
+
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    /**
+     * Decompress the data up to the range, the offsets in the stored data do not match the document.
+     * The compressed formats have no index to seek into, each call starts at the first chunk.
+     */
+    private byte[] readCompressed(final GridFS gfs, final GridFSDBFile gfsFile, final CompressionCodec codec,
+                                  final long offset, final int length) throws IOException {
+
+        final int window = ((GridfsModule) context.getModule(GridfsModule.NAMESPACE_URI)).getPrefetchWindow();
+
+        try (final InputStream chunks = new PrefetchChunkInputStream(gfs, gfsFile, window);
+             final InputStream is = codec.decompress(chunks)) {
+
+            IOUtils.skip(is, offset);
+
+            // Original size is registered by gridfs:store, avoids a buffer larger than the document
+            final Object originalSize = gfsFile.getMetaData().get(EXIST_ORIGINAL_SIZE);
+            if (originalSize instanceof Number) {
+                final int size = (int) Math.max(0, Math.min(length, ((Number) originalSize).longValue() - offset));
+                final byte[] buffer = new byte[size];
+                final int count = IOUtils.read(is, buffer);
+                return Arrays.copyOf(buffer, count);
+            }
+
+            // Size is unknown, the buffer grows with the data that is actually read
+            final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            IOUtils.copyLarge(is, buffer, 0, length);
+            return buffer.toByteArray();
+        }
+    }
+}
@@ -19,12 +19,15 @@
  */
 package org.exist.mongodb.xquery.gridfs;
 
-import com.mongodb.DB;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoException;
-import com.mongodb.gridfs.GridFS;
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.mongodb.client.model.Filters;
+import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 import org.exist.dom.QName;
+import org.exist.mongodb.shared.HandleCache;
 import org.exist.mongodb.shared.MongodbClientStore;
 import org.exist.mongodb.xquery.GridfsModule;
 import org.exist.xquery.*;
@@ -67,43 +70,48 @@ public class Remove extends BasicFunction {
     @Override
     public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
 
+        // Verify clientid and get client
+        final String mongodbClientId = args[0].itemAt(0).getStringValue();
+
         try {
-            // Verify clientid and get client
-            final String mongodbClientId = args[0].itemAt(0).getStringValue();
-            MongodbClientStore.getInstance().validate(mongodbClientId);
-            final MongoClient client = MongodbClientStore.getInstance().get(mongodbClientId);
+            final MongoClient client = MongodbClientStore.getInstance().validate(mongodbClientId, context.getSubject().getName());
 
             // Get parameters
             final String dbname = args[1].itemAt(0).getStringValue();
             final String bucket = args[2].itemAt(0).getStringValue();
             final String documentId = args[3].itemAt(0).getStringValue();
 
-            // Get database
-            final DB db = client.getDB(dbname);
+            // Get the cached bucket, removal does not need the chunk based API
+            final GridFSBucket gfsBucket = HandleCache.getInstance().getBucket(mongodbClientId, client, dbname, bucket);
 
-            // Create a GridFS instance for the specified bucket
-            final GridFS gfs = new GridFS(db, bucket);
+            // Remove document by id or by all documents with the filename
+            final Bson filter = isCalledAs(REMOVE_BY_OBJECTID)
+                    ? Filters.eq("_id", new ObjectId(documentId))
+                    : Filters.eq("filename", documentId);
 
-            // Remove document by id or by filename
-            if (isCalledAs(REMOVE_BY_OBJECTID)) {
-                gfs.remove(new ObjectId(documentId));
-            } else {
-                gfs.remove(documentId);
+            for (final GridFSFile file : gfsBucket.find(filter)) {
+                gfsBucket.delete(file.getId());
             }
 
             return new StringValue(documentId);
 
         } catch (final XPathException ex) {
+            MongodbClientStore.getInstance().registerError(mongodbClientId);
             LOG.error(ex.getMessage(), ex);
             throw new XPathException(this, ex.getMessage(), ex);
 
         } catch (final MongoException ex) {
+            MongodbClientStore.getInstance().registerError(mongodbClientId);
             LOG.error(ex.getMessage(), ex);
             throw new XPathException(this, GridfsModule.GRFS0002, ex.getMessage());
 
         } catch (final Throwable ex) {
+            MongodbClientStore.getInstance().registerError(mongodbClientId);
             LOG.error(ex.getMessage(), ex);
             throw new XPathException(this, GridfsModule.GRFS0003, ex.getMessage());
+
+        } finally {
+            MongodbClientStore.getInstance().release(mongodbClientId);
         }
 
     }
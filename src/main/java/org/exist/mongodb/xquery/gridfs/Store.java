@@ -20,23 +20,31 @@
 package org.exist.mongodb.xquery.gridfs;
 
 import com.mongodb.BasicDBObject;
-import com.mongodb.DB;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoException;
 import com.mongodb.gridfs.GridFS;
 import com.mongodb.gridfs.GridFSInputFile;
 import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.output.CloseShieldOutputStream;
 import org.apache.commons.io.output.CountingOutputStream;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.time.StopWatch;
 import org.exist.dom.QName;
+import org.exist.mongodb.shared.AdaptiveCompressionOutputStream;
+import org.exist.mongodb.shared.CompressionCodec;
+import org.exist.mongodb.shared.CompressionCodecs;
+import org.exist.mongodb.shared.CompressionMetrics;
+import org.exist.mongodb.shared.CompressionProbe;
 import org.exist.mongodb.shared.Constants;
 import org.exist.mongodb.shared.ContentSerializer;
+import org.exist.mongodb.shared.HandleCache;
 import org.exist.mongodb.shared.MongodbClientStore;
+import org.exist.mongodb.shared.ParallelChunkOutputStream;
 import org.exist.mongodb.xquery.GridfsModule;
 import org.exist.util.MimeTable;
 import org.exist.util.MimeType;
 import org.exist.xquery.*;
+import org.exist.xquery.functions.map.MapType;
 import org.exist.xquery.value.*;
 
 import java.io.IOException;
@@ -44,9 +52,7 @@ import java.io.OutputStream;
 import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.zip.GZIPOutputStream;
 
-import static org.exist.mongodb.shared.Constants.GZIP;
 import static org.exist.mongodb.shared.FunctionDefinitions.*;
 
 /**
@@ -66,11 +72,33 @@ public class Store extends BasicFunction {
                     },
                     new FunctionReturnSequenceType(Type.STRING, Cardinality.ONE, "The document id of the stored document")
             ),
+            new FunctionSignature(
+                    new QName("store", GridfsModule.NAMESPACE_URI, GridfsModule.PREFIX),
+                    "Store document into Gridfs",
+                    new SequenceType[]{
+                            PARAMETER_MONGODB_CLIENT, PARAMETER_DATABASE, PARAMETER_BUCKET, PARAMETER_FILENAME,
+                            PARAMETER_CONTENT_TYPE, PARAMETER_CONTENT,
+                            new FunctionParameterSequenceType("options", Type.MAP, Cardinality.ZERO_OR_ONE,
+                                    "Map with options: 'writers' (number of concurrent chunk writers, default 1, at most twice "
+                                            + "the number of processors), "
+                                            + "'chunkSize' (size of the chunks in bytes), "
+                                            + "'compression' ('gzip', 'deflate', 'zstd', 'lz4' or 'none'), 'level' (compression level 0-9, "
+                                            + "used by gzip and deflate) "
+                                            + "and 'raw' (set true() to store a map returned by gridfs:get-by-objectid with the 'raw' option, "
+                                            + "the stored bytes and compression meta data are copied without recompression). "
+                                            + "With more than one writer the chunks are written in parallel, "
+                                            + "the document is only stored when all chunks are written. "
+                                            + "Without the 'compression' option the MIME type and a trial compression "
+                                            + "of the first chunk decide whether the document is compressed. "
+                                            + "Compression defaults are set per bucket with module parameters.")
+                    },
+                    new FunctionReturnSequenceType(Type.STRING, Cardinality.ONE, "The document id of the stored document")
+            ),
     };
-    private final static CharSequence[] nonCompressables = {
-            ".zip", ".rar", ".gz", ".7z", ".bz", ".bz2", ".dmg", "gif", ".jpg", ".png", ".svgz",
-            ".mp3", ".mp4", ".mpg", ".mpeg", ".avi", ".mkv", ".wav", ".ogg", ".mov", ".flv", ".wmv"
-    };
+    private static final String NO_COMPRESSION = "none";
+
+    // Chunks are stored as documents, these are limited to 16MB
+    private static final long MAX_CHUNK_SIZE = 15 * 1024 * 1024;
 
     public Store(final XQueryContext context, final FunctionSignature signature) {
         super(context, signature);
@@ -79,28 +107,34 @@ public class Store extends BasicFunction {
     @Override
     public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
 
+        // Verify clientid and get client
+        final String mongodbClientId = args[0].itemAt(0).getStringValue();
+
         try {
-            // Verify clientid and get client
-            final String mongodbClientId = args[0].itemAt(0).getStringValue();
-            MongodbClientStore.getInstance().validate(mongodbClientId);
-            final MongoClient client = MongodbClientStore.getInstance().get(mongodbClientId);
+            final MongoClient client = MongodbClientStore.getInstance().validate(mongodbClientId, context.getSubject().getName());
 
             // Get parameters
             final String dbname = args[1].itemAt(0).getStringValue();
             final String bucket = args[2].itemAt(0).getStringValue();
             final String documentName = args[3].itemAt(0).getStringValue();
-            final String contentType = getMimeType(args[4], documentName);
+
+            final MapType options = (args.length >= 7 && !args[6].isEmpty()) ? (MapType) args[6].itemAt(0) : null;
+            final Sequence rawOption = getOption(options, "raw");
+            final MapType raw = (rawOption != null && rawOption.effectiveBooleanValue()) ? getRawDocument(args[5]) : null;
+
+            // The content type of the raw document is used when no content type is provided
+            final Sequence rawContentType = (raw == null) ? null : getOption(raw, "content-type");
+            final String contentType = (rawContentType != null && !args[4].hasOne())
+                    ? getMimeType(rawContentType, documentName)
+                    : getMimeType(args[4], documentName);
 
             LOG.info(String.format("Storing document %s (%s)", documentName, contentType));
 
             // Actual content: File object, doc() element, base64...
-            final Item content = args[5].itemAt(0);
-
-            // Get database
-            final DB db = client.getDB(dbname);
+            final Item content = (raw == null) ? args[5].itemAt(0) : raw.get(new StringValue("content")).itemAt(0);
 
-            // Creates a GridFS instance for the specified bucket
-            final GridFS gfs = new GridFS(db, bucket);
+            // Get the cached GridFS instance for the specified bucket
+            final GridFS gfs = HandleCache.getInstance().getGridFS(mongodbClientId, client, dbname, bucket);
 
             // Create file
             final GridFSInputFile gfsFile = gfs.createFile();
@@ -109,14 +143,64 @@ public class Store extends BasicFunction {
             gfsFile.setFilename(documentName);
             gfsFile.setContentType(contentType);
 
+            final Sequence chunkSizeOption = getOption(options, "chunkSize");
+            if (chunkSizeOption != null) {
+                gfsFile.setChunkSize(getChunkSize(chunkSizeOption));
+            }
+
             final StopWatch stopWatch = new StopWatch();
 
+            final int writers = getWriters(options);
+
+            // Compression: the option is used as-is. The default of the bucket is only used when
+            // the MIME type is not a compressed format and the first chunk compresses well.
+            final GridfsModule module = (GridfsModule) context.getModule(GridfsModule.NAMESPACE_URI);
+            final Sequence compressionOption = getOption(options, "compression");
+            final String compression = (compressionOption == null)
+                    ? module.getCompression(bucket)
+                    : compressionOption.getStringValue();
+
+            CompressionCodec codec = null;
+            if (raw != null) {
+                // Data is already in its stored form
+                gfsFile.setMetaData(getRawMetadata(raw));
+
+            } else if (!NO_COMPRESSION.equals(compression)) {
+                codec = CompressionCodecs.get(compression);
+                if (codec == null) {
+                    throw new XPathException(this, String.format("Unknown compression '%s'.", compression));
+                }
+            }
+
+            if (codec != null && compressionOption == null && CompressionProbe.isCompressedType(contentType)) {
+                LOG.debug(String.format("Not compressing %s, %s is a compressed format", documentName, contentType));
+                CompressionMetrics.getInstance().registerSkippedByType();
+                codec = null;
+            }
+
+            final int sampleSize = (compressionOption == null) ? (int) gfsFile.getChunkSize() : 0;
+
+            final Sequence levelOption = getOption(options, "level");
+            final int level = (levelOption == null)
+                    ? module.getCompressionLevel(bucket)
+                    : levelOption.itemAt(0).toJavaObject(Integer.class);
+
             // Write data
-            if (StringUtils.endsWithAny(documentName, nonCompressables)) {
-                writeRaw(gfsFile, stopWatch, content);
+            if (writers > 1) {
+                final ParallelChunkOutputStream stream = new ParallelChunkOutputStream(gfs, gfsFile, writers);
+                try {
+                    writeContent(gfsFile, stream, stopWatch, content, codec, level, sampleSize);
+                    stream.close();
+
+                } catch (final Throwable t) {
+                    stream.abort();
+                    throw t;
+                }
+
             } else {
-                final int dataType = content.getType();
-                writeCompressed(gfsFile, stopWatch, content, dataType);
+                try (final OutputStream stream = gfsFile.getOutputStream()) {
+                    writeContent(gfsFile, stream, stopWatch, content, codec, level, sampleSize);
+                }
             }
 
             LOG.info(String.format("serialization time: %s", stopWatch.getTime()));
@@ -125,62 +209,174 @@ public class Store extends BasicFunction {
             return new StringValue(gfsFile.getId().toString());
 
         } catch (final XPathException ex) {
+            MongodbClientStore.getInstance().registerError(mongodbClientId);
             LOG.error(ex.getMessage(), ex);
             throw new XPathException(this, ex.getMessage(), ex);
 
         } catch (final MongoException ex) {
+            MongodbClientStore.getInstance().registerError(mongodbClientId);
             LOG.error(ex.getMessage(), ex);
             throw new XPathException(this, GridfsModule.GRFS0002, ex.getMessage());
 
         } catch (final Throwable ex) {
+            MongodbClientStore.getInstance().registerError(mongodbClientId);
             LOG.error(ex.getMessage(), ex);
             throw new XPathException(this, GridfsModule.GRFS0003, ex.getMessage());
+
+        } finally {
+            MongodbClientStore.getInstance().release(mongodbClientId);
         }
 
     }
 
-    void writeCompressed(final GridFSInputFile gfsFile, final StopWatch stopWatch, final Item content, final int dataType) throws NoSuchAlgorithmException, IOException, XPathException {
-        // Store data compressed, add statistics
-        try (final OutputStream stream = gfsFile.getOutputStream()) {
-            final MessageDigest md = MessageDigest.getInstance("MD5");
-            final CountingOutputStream cosGZ = new CountingOutputStream(stream);
-            final GZIPOutputStream gos = new GZIPOutputStream(cosGZ);
-            final DigestOutputStream dos = new DigestOutputStream(gos, md);
-            final CountingOutputStream cosRaw = new CountingOutputStream(dos);
-
-            stopWatch.start();
-            ContentSerializer.serialize(content, context, cosRaw);
-            cosRaw.flush();
-            cosRaw.close();
-            stopWatch.stop();
-
-            final long nrBytesRaw = cosRaw.getByteCount();
-            final long nrBytesGZ = cosGZ.getByteCount();
-            final String checksum = Hex.encodeHexString(dos.getMessageDigest().digest());
-
-            final BasicDBObject info = new BasicDBObject();
-            info.put(Constants.EXIST_COMPRESSION, GZIP);
+    private void writeContent(final GridFSInputFile gfsFile, final OutputStream stream, final StopWatch stopWatch,
+                              final Item content, final CompressionCodec codec, final int level, final int sampleSize)
+            throws NoSuchAlgorithmException, IOException, XPathException {
+
+        if (codec == null) {
+            writeRaw(stream, stopWatch, content);
+        } else {
+            gfsFile.setMetaData(writeCompressed(stream, stopWatch, content, content.getType(), codec, level, sampleSize));
+        }
+    }
+
+    BasicDBObject writeCompressed(final OutputStream stream, final StopWatch stopWatch, final Item content, final int dataType,
+                                  final CompressionCodec codec, final int level, final int sampleSize)
+            throws NoSuchAlgorithmException, IOException, XPathException {
+        // Store data compressed when the sample compresses well, add statistics. The stream itself is closed by the caller.
+        final MessageDigest md = MessageDigest.getInstance("MD5");
+        final AdaptiveCompressionOutputStream cos
+                = new AdaptiveCompressionOutputStream(new CloseShieldOutputStream(stream), codec, level, sampleSize);
+        final DigestOutputStream dos = new DigestOutputStream(cos, md);
+        final CountingOutputStream cosRaw = new CountingOutputStream(dos);
+
+        stopWatch.start();
+        ContentSerializer.serialize(content, context, cosRaw);
+        cosRaw.flush();
+        cosRaw.close();
+        stopWatch.stop();
+
+        final long nrBytesRaw = cosRaw.getByteCount();
+        final long nrBytesCompressed = cos.getStoredBytes();
+        final String checksum = Hex.encodeHexString(dos.getMessageDigest().digest());
+
+        final CompressionMetrics metrics = CompressionMetrics.getInstance();
+        metrics.registerProbe(cos.getProbeNanos());
+
+        final BasicDBObject info = new BasicDBObject();
+        if (cos.isCompressed()) {
+            info.put(Constants.EXIST_COMPRESSION, codec.getName());
             info.put(Constants.EXIST_ORIGINAL_SIZE, nrBytesRaw);
             info.put(Constants.EXIST_ORIGINAL_MD5, checksum);
-            info.put(Constants.EXIST_DATATYPE, dataType);
-            info.put(Constants.EXIST_DATATYPE_TEXT, Type.getTypeName(dataType));
-
-            gfsFile.setMetaData(info);
+            metrics.registerCompressed(nrBytesRaw, nrBytesCompressed, cos.getNanos());
 
             LOG.info("original_md5:" + checksum);
-            LOG.info("compression ratio:" + ((100L * nrBytesGZ) / nrBytesRaw));
+            if (nrBytesRaw > 0) {
+                LOG.info("compression ratio:" + ((100L * nrBytesCompressed) / nrBytesRaw));
+            }
 
+        } else {
+            metrics.registerSkippedByProbe();
+            LOG.info("Not compressed, first chunk does not compress well");
         }
+        info.put(Constants.EXIST_DATATYPE, dataType);
+        info.put(Constants.EXIST_DATATYPE_TEXT, Type.getTypeName(dataType));
+
+        return info;
     }
 
-    void writeRaw(final GridFSInputFile gfsFile, final StopWatch stopWatch, final Item content) throws XPathException, IOException {
+    void writeRaw(final OutputStream stream, final StopWatch stopWatch, final Item content) throws XPathException, IOException {
         // Write data as is
-        try (final OutputStream stream = gfsFile.getOutputStream()) {
-            stopWatch.start();
-            ContentSerializer.serialize(content, context, stream);
-            stream.flush();
-            stopWatch.stop();
+        stopWatch.start();
+        ContentSerializer.serialize(content, context, stream);
+        stream.flush();
+        stopWatch.stop();
+    }
+
+    /**
+     * Get the map with the stored bytes and meta data of a document.
+     */
+    private MapType getRawDocument(final Sequence content) throws XPathException {
+        final Item item = content.itemAt(0);
+        if (item.getType() != Type.MAP) {
+            throw new XPathException(this, "With the 'raw' option the content must be a map as returned by gridfs:get-by-objectid.");
+        }
+
+        final MapType raw = (MapType) item;
+        final Sequence data = raw.get(new StringValue("content"));
+        if (data == null || !data.hasOne() || data.itemAt(0).getType() != Type.BASE64_BINARY) {
+            throw new XPathException(this, "The map does not contain the stored bytes as xs:base64Binary in 'content'.");
+        }
+        return raw;
+    }
+
+    /**
+     * Rebuild the meta data of a document from the map of a raw document.
+     */
+    private BasicDBObject getRawMetadata(final MapType raw) throws XPathException {
+
+        final Sequence compression = getOption(raw, "compression");
+        final Sequence originalSize = getOption(raw, "original-size");
+        final Sequence originalMd5 = getOption(raw, "original-md5");
+        final Sequence datatype = getOption(raw, "datatype");
+
+        final BasicDBObject info = new BasicDBObject();
+        if (compression != null) {
+            final String name = compression.getStringValue();
+            if (CompressionCodecs.get(name) == null) {
+                throw new XPathException(this, String.format("Unknown compression '%s'.", name));
+            }
+            info.put(Constants.EXIST_COMPRESSION, name);
+        }
+
+        if (originalSize != null) {
+            info.put(Constants.EXIST_ORIGINAL_SIZE, originalSize.itemAt(0).toJavaObject(Long.class));
+        }
+
+        if (originalMd5 != null) {
+            info.put(Constants.EXIST_ORIGINAL_MD5, originalMd5.getStringValue());
+        }
+
+        final int dataType = (datatype == null) ? Type.BASE64_BINARY : Type.getType(datatype.getStringValue());
+        info.put(Constants.EXIST_DATATYPE, dataType);
+        info.put(Constants.EXIST_DATATYPE_TEXT, Type.getTypeName(dataType));
+
+        return info;
+    }
+
+    private long getChunkSize(final Sequence chunkSize) throws XPathException {
+        final long value = chunkSize.itemAt(0).toJavaObject(Long.class);
+        if (value <= 0 || value > MAX_CHUNK_SIZE) {
+            throw new XPathException(this, String.format("Chunk size must be between 1 and %s bytes, got %s.", MAX_CHUNK_SIZE, value));
+        }
+        return value;
+    }
+
+    private int getWriters(final MapType options) throws XPathException {
+        final Sequence writers = getOption(options, "writers");
+        if (writers == null) {
+            return 1;
+        }
+
+        final int value = writers.itemAt(0).toJavaObject(Integer.class);
+        if (value <= 0) {
+            throw new XPathException(this, String.format("Number of writers must be positive, got %s.", value));
+        }
+
+        // The writers share one pool, a larger number would only queue chunks
+        if (value > ParallelChunkOutputStream.MAX_WRITERS) {
+            LOG.debug(String.format("Limiting the number of writers from %s to %s", value, ParallelChunkOutputStream.MAX_WRITERS));
+            return ParallelChunkOutputStream.MAX_WRITERS;
+        }
+        return value;
+    }
+
+    private static Sequence getOption(final MapType options, final String key) {
+        if (options == null) {
+            return null;
         }
+        final Sequence value = options.get(new StringValue(key));
+        return (value == null || value.isEmpty()) ? null : value;
     }
 
     private String getMimeType(final Sequence inputValue, final String filename) throws XPathException {
@@ -19,7 +19,6 @@
  */
 package org.exist.mongodb.xquery.gridfs;
 
-import com.mongodb.DB;
 import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoException;
@@ -31,8 +30,15 @@ import org.bson.types.ObjectId;
 import org.exist.dom.QName;
 import org.exist.http.servlets.RequestWrapper;
 import org.exist.http.servlets.ResponseWrapper;
+import org.exist.mongodb.shared.CompressionCodec;
+import org.exist.mongodb.shared.CompressionCodecs;
+import org.exist.mongodb.shared.ConditionalRequest;
 import org.exist.mongodb.shared.Constants;
+import org.exist.mongodb.shared.HttpRange;
+import org.exist.mongodb.shared.GridfsRevisions;
+import org.exist.mongodb.shared.HandleCache;
 import org.exist.mongodb.shared.MongodbClientStore;
+import org.exist.mongodb.shared.PrefetchChunkInputStream;
 import org.exist.mongodb.xquery.GridfsModule;
 import org.exist.util.MimeTable;
 import org.exist.util.MimeType;
@@ -44,7 +50,10 @@ import org.exist.xquery.value.*;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.zip.GZIPInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
 
 import static org.exist.mongodb.shared.Constants.*;
 import static org.exist.mongodb.shared.FunctionDefinitions.*;
@@ -59,10 +68,19 @@ public class Stream extends BasicFunction {
     private static final String FIND_BY_OBJECTID = "stream-by-objectid";
     private static final String FIND_BY_FILENAME = "stream-by-filename";
 
+    private static final String DESCR_HTTP = "Byte ranges requested with the HTTP Range header are returned "
+            + "as a partial response. Documents that are stored compressed are always returned completely. "
+            + "ETag and Last-Modified are set from the stored document, a conditional request returns 304 "
+            + "when the document is not modified.";
+
+    private static final int SC_PARTIAL_CONTENT = 206;
+    private static final int SC_NOT_MODIFIED = 304;
+    private static final int SC_RANGE_NOT_SATISFIABLE = 416;
+
     public final static FunctionSignature[] signatures = {
             new FunctionSignature(
                     new QName(FIND_BY_FILENAME, GridfsModule.NAMESPACE_URI, GridfsModule.PREFIX),
-                    "Retrieve document by filename as stream",
+                    "Retrieve the latest revision of a document by filename as stream. " + DESCR_HTTP,
                     new SequenceType[]{
                             PARAMETER_MONGODB_CLIENT, PARAMETER_DATABASE, PARAMETER_BUCKET, PARAMETER_FILENAME, PARAMETER_AS_ATTACHMENT
                     },
@@ -70,7 +88,7 @@ public class Stream extends BasicFunction {
             ),
             new FunctionSignature(
                     new QName(FIND_BY_OBJECTID, GridfsModule.NAMESPACE_URI, GridfsModule.PREFIX),
-                    "Retrieve document by objectid as stream",
+                    "Retrieve document by objectid as stream. " + DESCR_HTTP,
                     new SequenceType[]{
                             PARAMETER_MONGODB_CLIENT, PARAMETER_DATABASE, PARAMETER_BUCKET, PARAMETER_OBJECTID, PARAMETER_AS_ATTACHMENT
                     },
@@ -85,11 +103,11 @@ public class Stream extends BasicFunction {
     @Override
     public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
 
+        // Verify clientid and get client
+        final String mongodbClientId = args[0].itemAt(0).getStringValue();
+
         try {
-            // Verify clientid and get client
-            final String mongodbClientId = args[0].itemAt(0).getStringValue();
-            MongodbClientStore.getInstance().validate(mongodbClientId);
-            final MongoClient client = MongodbClientStore.getInstance().get(mongodbClientId);
+            final MongoClient client = MongodbClientStore.getInstance().validate(mongodbClientId, context.getSubject().getName());
 
             // Get parameters
             final String dbname = args[1].itemAt(0).getStringValue();
@@ -97,30 +115,33 @@ public class Stream extends BasicFunction {
             final String documentId = args[3].itemAt(0).getStringValue();
             final Boolean setDisposition = args[4].itemAt(0).toJavaObject(Boolean.class);
 
-            // Get database
-            final DB db = client.getDB(dbname);
+            // Get the cached GridFS instance for the specified bucket
+            final GridFS gfs = HandleCache.getInstance().getGridFS(mongodbClientId, client, dbname, bucket);
 
-            // Creates a GridFS instance for the specified bucket
-            final GridFS gfs = new GridFS(db, bucket);
-
-            // Find one document by id or by filename
+            // Find one document by id or the latest revision by filename
             final GridFSDBFile gfsFile = (isCalledAs(FIND_BY_OBJECTID))
                     ? gfs.findOne(new ObjectId(documentId))
-                    : gfs.findOne(documentId);
+                    : GridfsRevisions.find(gfs, documentId, GridfsRevisions.LATEST);
 
-            stream(gfsFile, documentId, setDisposition);
+            stream(gfs, gfsFile, documentId, setDisposition);
 
         } catch (final XPathException ex) {
+            MongodbClientStore.getInstance().registerError(mongodbClientId);
             LOG.error(ex.getMessage(), ex);
             throw new XPathException(this, ex.getMessage(), ex);
 
         } catch (final MongoException ex) {
+            MongodbClientStore.getInstance().registerError(mongodbClientId);
             LOG.error(ex.getMessage(), ex);
             throw new XPathException(this, GridfsModule.GRFS0002, ex.getMessage());
 
         } catch (final Throwable ex) {
+            MongodbClientStore.getInstance().registerError(mongodbClientId);
             LOG.error(ex.getMessage(), ex);
             throw new XPathException(this, GridfsModule.GRFS0003, ex.getMessage());
+
+        } finally {
+            MongodbClientStore.getInstance().release(mongodbClientId);
         }
 
         return Sequence.EMPTY_SEQUENCE;
@@ -130,7 +151,7 @@ public class Stream extends BasicFunction {
     /**
      * Stream document to HTTP agent
      */
-    void stream(final GridFSDBFile gfsFile, final String documentId, final Boolean setDisposition) throws IOException, XPathException {
+    void stream(final GridFS gfs, final GridFSDBFile gfsFile, final String documentId, final Boolean setDisposition) throws IOException, XPathException {
         if (gfsFile == null) {
             throw new XPathException(this, GridfsModule.GRFS0004, String.format("Document '%s' could not be found.", documentId));
         }
@@ -140,6 +161,7 @@ public class Stream extends BasicFunction {
         // Determine actual size
         final String compression = (metadata == null) ? null : (String) metadata.get(EXIST_COMPRESSION);
         final Long originalSize = (metadata == null) ? null : (Long) metadata.get(EXIST_ORIGINAL_SIZE);
+        final CompressionCodec codec = CompressionCodecs.forDocument(compression);
 
         long length = gfsFile.getLength();
         if (originalSize != null) {
@@ -149,8 +171,30 @@ public class Stream extends BasicFunction {
         // Stream response stream
         final ResponseWrapper rw = getResponseWrapper(context);
 
-        // Set HTTP Headers
-        rw.addHeader(Constants.CONTENT_LENGTH, String.format("%s", length));
+        // Validators are taken from the files document, a conditional request
+        // is answered without reading any chunk.
+        final String originalMd5 = (metadata == null) ? null : (String) metadata.get(EXIST_ORIGINAL_MD5);
+        final String etag = ConditionalRequest.etag(gfsFile.getMD5(), originalMd5);
+        final Date lastModified = gfsFile.getUploadDate();
+
+        if (etag != null) {
+            rw.addHeader(ETAG, etag);
+        }
+        if (lastModified != null) {
+            rw.addHeader(LAST_MODIFIED, ConditionalRequest.formatDate(lastModified));
+        }
+
+        // The response depends on Accept-Encoding when the stored encoding can be sent as-is,
+        // also for a 304 response so caches keep the representations apart.
+        if (codec != null && codec.getContentEncoding() != null) {
+            rw.addHeader(VARY, ACCEPT_ENCODING);
+        }
+
+        if (ConditionalRequest.isNotModified(getRequestHeader(context, IF_NONE_MATCH),
+                getRequestHeader(context, IF_MODIFIED_SINCE), etag, lastModified)) {
+            rw.setStatusCode(SC_NOT_MODIFIED);
+            return;
+        }
 
         // Set filename when required
         final String filename = determineFilename(documentId, gfsFile);
@@ -163,40 +207,125 @@ public class Stream extends BasicFunction {
             rw.setContentType(contentType);
         }
 
-        final boolean isGzipSupported = isGzipEncodingSupported(context);
+        // Chunks are read ahead while data is written to the agent
+        final int window = ((GridfsModule) context.getModule(GridfsModule.NAMESPACE_URI)).getPrefetchWindow();
+
+        // Byte ranges can only be served when the data is stored as-is. For compressed data
+        // the offsets in the stored data do not match the document, the Range header is ignored.
+        if (codec == null) {
+            rw.addHeader(ACCEPT_RANGES, "bytes");
+
+            final List<HttpRange> ranges = HttpRange.parse(getRequestHeader(context, RANGE), length);
+            if (ranges != null && ConditionalRequest.isRangeAllowed(getRequestHeader(context, IF_RANGE), etag, lastModified)) {
+                streamRanges(rw, gfs, gfsFile, ranges, contentType, window);
+                return;
+            }
+        }
 
         // Stream data
-        if ((StringUtils.isBlank(compression))) {
+        if (codec == null) {
+            rw.addHeader(Constants.CONTENT_LENGTH, String.format("%s", length));
+
             // Write data as-is, no marker available that data is stored compressed
-            try (final OutputStream os = rw.getOutputStream()) {
-                gfsFile.writeTo(os);
+            try (final OutputStream os = rw.getOutputStream();
+                 final InputStream is = new PrefetchChunkInputStream(gfs, gfsFile, window)) {
+                IOUtils.copyLarge(is, os);
                 os.flush();
             }
 
         } else {
 
-            if (isGzipSupported && StringUtils.contains(compression, GZIP)) {
-                // Write compressend data as-is, since data is stored as gzipped data and
-                // the agent suports it.
-                rw.addHeader(Constants.CONTENT_ENCODING, GZIP);
-                try (final OutputStream os = rw.getOutputStream()) {
-                    gfsFile.writeTo(os);
+            final String encoding = codec.getContentEncoding();
+            if (encoding != null && isEncodingSupported(context, encoding)) {
+                // Write compressed data as-is, since the data is stored in an
+                // encoding the agent supports (e.g. gzip). The length is the stored length.
+                rw.addHeader(Constants.CONTENT_ENCODING, encoding);
+                rw.addHeader(Constants.CONTENT_LENGTH, String.format("%s", gfsFile.getLength()));
+                try (final OutputStream os = rw.getOutputStream();
+                     final InputStream is = new PrefetchChunkInputStream(gfs, gfsFile, window)) {
+                    IOUtils.copyLarge(is, os);
                     os.flush();
                 }
 
             } else {
                 // Write data uncompressed
-                try (final OutputStream os = rw.getOutputStream()) {
-                    final InputStream is = gfsFile.getInputStream();
-                    try (final GZIPInputStream gzis = new GZIPInputStream(is)) {
-                        IOUtils.copyLarge(gzis, os);
-                        os.flush();
-                    }
+                rw.addHeader(Constants.CONTENT_LENGTH, String.format("%s", length));
+                try (final OutputStream os = rw.getOutputStream();
+                     final InputStream is = new PrefetchChunkInputStream(gfs, gfsFile, window);
+                     final InputStream dis = codec.decompress(is)) {
+                    IOUtils.copyLarge(dis, os);
+                    os.flush();
                 }
             }
         }
     }
 
+    /**
+     * Stream the requested byte ranges, only the chunks containing the ranges are retrieved.
+     * Multiple ranges are sent as a multipart/byteranges response.
+     */
+    private void streamRanges(final ResponseWrapper rw, final GridFS gfs, final GridFSDBFile gfsFile,
+                              final List<HttpRange> ranges, final String contentType, final int window) throws IOException {
+
+        final long size = gfsFile.getLength();
+
+        if (ranges.isEmpty()) {
+            rw.setStatusCode(SC_RANGE_NOT_SATISFIABLE);
+            rw.addHeader(CONTENT_RANGE, String.format("bytes */%s", size));
+            rw.addHeader(CONTENT_LENGTH, "0");
+            return;
+        }
+
+        rw.setStatusCode(SC_PARTIAL_CONTENT);
+
+        if (ranges.size() == 1) {
+            final HttpRange range = ranges.get(0);
+            rw.addHeader(CONTENT_RANGE, range.toContentRange(size));
+            rw.addHeader(CONTENT_LENGTH, String.format("%s", range.getLength()));
+
+            try (final OutputStream os = rw.getOutputStream();
+                 final InputStream is = new PrefetchChunkInputStream(gfs, gfsFile, window, range.getStart(), range.getLength())) {
+                IOUtils.copyLarge(is, os);
+                os.flush();
+            }
+            return;
+        }
+
+        // Headers of the parts, needed upfront to calculate the length of the response
+        final String boundary = new ObjectId().toHexString();
+        final List<byte[]> partHeaders = new ArrayList<>();
+        long contentLength = 0;
+        for (final HttpRange range : ranges) {
+            final StringBuilder sb = new StringBuilder();
+            sb.append("\r\n--").append(boundary).append("\r\n");
+            if (contentType != null) {
+                sb.append("Content-Type: ").append(contentType).append("\r\n");
+            }
+            sb.append(CONTENT_RANGE).append(": ").append(range.toContentRange(size)).append("\r\n\r\n");
+
+            final byte[] header = sb.toString().getBytes(StandardCharsets.US_ASCII);
+            partHeaders.add(header);
+            contentLength += header.length + range.getLength();
+        }
+        final byte[] trailer = String.format("\r\n--%s--\r\n", boundary).getBytes(StandardCharsets.US_ASCII);
+        contentLength += trailer.length;
+
+        rw.setContentType("multipart/byteranges; boundary=" + boundary);
+        rw.addHeader(CONTENT_LENGTH, String.format("%s", contentLength));
+
+        try (final OutputStream os = rw.getOutputStream()) {
+            for (int i = 0; i < ranges.size(); i++) {
+                final HttpRange range = ranges.get(i);
+                os.write(partHeaders.get(i));
+                try (final InputStream is = new PrefetchChunkInputStream(gfs, gfsFile, window, range.getStart(), range.getLength())) {
+                    IOUtils.copyLarge(is, os);
+                }
+            }
+            os.write(trailer);
+            os.flush();
+        }
+    }
+
     /**
      * Get filename from the provided filename, or as stored in the database
      * when blank e.g because document is referenced by documentID
@@ -290,15 +419,28 @@ public class Stream extends BasicFunction {
     }
 
     /**
-     * Verify if HTTP agent supports GZIP content encoding.
+     * Get value of a request header, NULL when not available.
+     */
+    private String getRequestHeader(final XQueryContext context, final String name) {
+        try {
+            return getRequestWrapper(context).getHeader(name);
+
+        } catch (final XPathException ex) {
+            LOG.error(ex.getMessage(), ex);
+        }
+        return null;
+    }
+
+    /**
+     * Verify if HTTP agent supports a content encoding.
      */
-    private boolean isGzipEncodingSupported(final XQueryContext context) {
+    private boolean isEncodingSupported(final XQueryContext context, final String encoding) {
         try {
             final RequestWrapper request = getRequestWrapper(context);
 
             final String content = request.getHeader(ACCEPT_ENCODING);
 
-            if (StringUtils.contains(content, GZIP)) {
+            if (StringUtils.contains(content, encoding)) {
                 return true;
             }
 
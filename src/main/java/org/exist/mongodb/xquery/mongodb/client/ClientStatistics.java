@@ -0,0 +1,92 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2014 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.mongodb.xquery.mongodb.client;
+
+import org.exist.dom.QName;
+import org.exist.mongodb.shared.Constants;
+import org.exist.mongodb.shared.GenericExceptionHandler;
+import org.exist.mongodb.shared.MongodbClientStore;
+import org.exist.mongodb.shared.MongodbClientStore.MongoClientWrapper;
+import org.exist.mongodb.xquery.MongodbModule;
+import org.exist.xquery.*;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.*;
+
+import java.util.Date;
+
+/**
+ * Function to report usage statistics of all MongoDB clients.
+ *
+ * @author Dannes Wessels
+ */
+public class ClientStatistics extends BasicFunction {
+
+    private static final String CLIENT_STATISTICS = "client-statistics";
+
+    public final static FunctionSignature[] signatures = {
+            new FunctionSignature(
+                    new QName(CLIENT_STATISTICS, MongodbModule.NAMESPACE_URI, MongodbModule.PREFIX),
+                    "Get usage statistics of all MongoDB clients: client id, username, shared client, creation time, " +
+                            "number of calls, calls in-flight, number of errors and time of last use.",
+                    new SequenceType[]{ /* No Parameters */},
+                    new FunctionReturnSequenceType(Type.MAP, Cardinality.ZERO_OR_MORE, "One map per MongoDB client")
+            ),
+    };
+
+    public ClientStatistics(final XQueryContext context, final FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+
+        // User must either be DBA or in the JMS group
+        if (!context.getSubject().hasDbaRole() && !context.getSubject().hasGroup(Constants.MONGODB_GROUP)) {
+            final String txt = String.format("Permission denied, user '%s' must be a DBA or be in group '%s'",
+                    context.getSubject().getName(), Constants.MONGODB_GROUP);
+            LOG.error(txt);
+            throw new XPathException(this, txt);
+        }
+
+        try {
+            final ValueSequence valueSequence = new ValueSequence();
+
+            for (final MongoClientWrapper wrapper : MongodbClientStore.getInstance().statistics()) {
+                final MapType map = new MapType(context);
+                map.add(new StringValue("id"), new StringValue(wrapper.getMongodbClientId()));
+                map.add(new StringValue("username"), new StringValue(wrapper.getUsername()));
+                map.add(new StringValue("shared"), BooleanValue.valueOf(wrapper.isShared()));
+                map.add(new StringValue("created"), new DateTimeValue(new Date(wrapper.getCreated())));
+                map.add(new StringValue("calls"), new IntegerValue(wrapper.getCalls()));
+                map.add(new StringValue("in-flight"), new IntegerValue(wrapper.getInFlight()));
+                map.add(new StringValue("errors"), new IntegerValue(wrapper.getErrors()));
+                map.add(new StringValue("last-used"), new DateTimeValue(new Date(wrapper.getLastUsed())));
+                valueSequence.add(map);
+            }
+
+            return valueSequence;
+
+        } catch (final Throwable t) {
+            return GenericExceptionHandler.handleException(this, t);
+        }
+
+    }
+
+}
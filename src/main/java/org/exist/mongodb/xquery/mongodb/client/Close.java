@@ -19,7 +19,6 @@
  */
 package org.exist.mongodb.xquery.mongodb.client;
 
-import com.mongodb.MongoClient;
 import org.exist.dom.QName;
 import org.exist.mongodb.shared.Constants;
 import org.exist.mongodb.shared.GenericExceptionHandler;
@@ -70,18 +69,13 @@ public class Close extends BasicFunction {
         final String mongodbClientId = args[0].itemAt(0).getStringValue();
 
         // Handle close()
-        try(MongoClient client = MongodbClientStore.getInstance().get(mongodbClientId);){
-
-            if (client == null) {
+        try {
+            // Remove from cache and close connector with all connections,
+            // shared connectors are closed when not referenced anymore
+            if (!MongodbClientStore.getInstance().close(mongodbClientId)) {
                 throw new XPathException(this, String.format("Mongoclient %s could not be found.", mongodbClientId));
             }
 
-            // Close connector with all connections
-            client.close();
-
-            // Remove from cache
-            MongodbClientStore.getInstance().remove(mongodbClientId);
-
             // Report identifier
             return EmptySequence.EMPTY_SEQUENCE;
 
@@ -46,6 +46,18 @@ public class Connect extends BasicFunction {
                     },
                     new FunctionReturnSequenceType(Type.STRING, Cardinality.ONE, DESCR_MONGODB_CLIENT_ID)
             ),
+            new FunctionSignature(
+                    new QName("connect", MongodbModule.NAMESPACE_URI, MongodbModule.PREFIX),
+                    "Establish a connection to MongoDB and return a client id as string that identifies the opened connection. " +
+                            "When $shared is set, the underlying client and its connection pool are reused for all " +
+                            "shared connections with the same URI by the same user; the client is closed when " +
+                            "the last of these connections is closed.",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType("uri", Type.STRING, Cardinality.ONE, "URI to server"),
+                            new FunctionParameterSequenceType("shared", Type.BOOLEAN, Cardinality.ONE, "Reuse an existing client")
+                    },
+                    new FunctionReturnSequenceType(Type.STRING, Cardinality.ONE, DESCR_MONGODB_CLIENT_ID)
+            ),
     };
 
     public Connect(final XQueryContext context, final FunctionSignature signature) {
@@ -65,10 +77,11 @@ public class Connect extends BasicFunction {
 
         // Get connection URL
         final String url = args[0].itemAt(0).getStringValue();
+        final boolean shared = (args.length >= 2) && args[1].itemAt(0).toJavaObject(Boolean.class);
 
         try {
             // Store Client
-            final String mongodbClientId = MongodbClientStore.getInstance().create(url, context.getSubject().getUsername());
+            final String mongodbClientId = MongodbClientStore.getInstance().create(url, context.getSubject().getUsername(), shared);
 
             // Report identifier
             return new StringValue(mongodbClientId);
@@ -56,25 +56,27 @@ public class ListDatabases extends BasicFunction {
     @Override
     public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
 
-        try {
-            // Stream parameters
-            final String mongodbClientId = args[0].itemAt(0).getStringValue();
+        // Stream parameters
+        final String mongodbClientId = args[0].itemAt(0).getStringValue();
 
-            // Check id
-            MongodbClientStore.getInstance().validate(mongodbClientId);
+        try {
+            // Check id, get appropriate Mongodb client
+            final MongoClient client = MongodbClientStore.getInstance().validate(mongodbClientId, context.getSubject().getName());
 
             final ValueSequence returnSequence = new ValueSequence();
 
-            // Stream appropriate Mongodb client
-            try(final MongoClient client = MongodbClientStore.getInstance().get(mongodbClientId)) {
-                client.listDatabaseNames().iterator().forEachRemaining(name -> returnSequence.add(new StringValue(name)));
-            }
+            // The client is shared, it must not be closed here
+            client.listDatabaseNames().iterator().forEachRemaining(name -> returnSequence.add(new StringValue(name)));
+
             return returnSequence;
 
         } catch (final Throwable t) {
+            MongodbClientStore.getInstance().registerError(mongodbClientId);
             return GenericExceptionHandler.handleException(this, t);
-        }
 
+        } finally {
+            MongodbClientStore.getInstance().release(mongodbClientId);
+        }
 
     }
 
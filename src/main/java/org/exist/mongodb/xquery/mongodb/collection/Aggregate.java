@@ -20,13 +20,17 @@
 package org.exist.mongodb.xquery.mongodb.collection;
 
 import com.mongodb.*;
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.MongoCollection;
+import org.bson.conversions.Bson;
 import org.exist.dom.QName;
-import org.exist.mongodb.shared.BSONtoMap;
 import org.exist.mongodb.shared.ConversionTools;
 import org.exist.mongodb.shared.GenericExceptionHandler;
+import org.exist.mongodb.shared.MapCodec;
 import org.exist.mongodb.shared.MongodbClientStore;
 import org.exist.mongodb.xquery.MongodbModule;
 import org.exist.xquery.*;
+import org.exist.xquery.functions.map.MapType;
 import org.exist.xquery.value.*;
 
 import java.util.List;
@@ -63,35 +67,39 @@ public class Aggregate extends BasicFunction {
     @Override
     public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
 
+        // Verify clientid and get client
+        final String mongodbClientId = args[0].itemAt(0).getStringValue();
+
         try {
-            // Verify clientid and get client
-            final String mongodbClientId = args[0].itemAt(0).getStringValue();
-            MongodbClientStore.getInstance().validate(mongodbClientId);
-            final MongoClient client = MongodbClientStore.getInstance().get(mongodbClientId);
+            final MongoClient client = MongodbClientStore.getInstance().validate(mongodbClientId, context.getSubject().getName());
 
             // Get parameters
             final String dbname = args[1].itemAt(0).getStringValue();
             final String collection = args[2].itemAt(0).getStringValue();
-            final List<BasicDBObject> pipeline = ConversionTools.convertPipeline(args[3]);
+            final List<Bson> pipeline = ConversionTools.convertPipeline(args[3]);
 
-            // Get collection in database
-            final DB db = client.getDB(dbname);
-            final DBCollection dbcol = db.getCollection(collection);
+            // Get collection in database, results are decoded directly into maps
+            final MongoCollection<MapType> dbcol = MapCodec.wrap(client.getDatabase(dbname)
+                    .getCollection(collection), context);
 
             // Execute query      
-            final AggregationOutput aggrOutput = dbcol.aggregate(pipeline);
+            final AggregateIterable<MapType> aggrOutput = dbcol.aggregate(pipeline);
 
             // Bundle results
             final Sequence retVal = new ValueSequence();
 
-            for (final DBObject result : aggrOutput.results()) {
-                retVal.add(BSONtoMap.convert(result, context));
+            for (final MapType result : aggrOutput) {
+                retVal.add(result);
             }
 
             return retVal;
 
         } catch (final Throwable t) {
+            MongodbClientStore.getInstance().registerError(mongodbClientId);
             return GenericExceptionHandler.handleException(this, t);
+
+        } finally {
+            MongodbClientStore.getInstance().release(mongodbClientId);
         }
 
     }
@@ -0,0 +1,360 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2014 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.mongodb.xquery.mongodb.collection;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoClient;
+import com.mongodb.WriteConcern;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.BulkWriteUpsert;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.*;
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
+import org.exist.dom.QName;
+import org.exist.mongodb.shared.ConversionTools;
+import org.exist.mongodb.shared.GenericExceptionHandler;
+import org.exist.mongodb.shared.MapEncoder;
+import org.exist.mongodb.shared.MongodbClientStore;
+import org.exist.mongodb.shared.ParallelConverter;
+import org.exist.mongodb.xquery.MongodbModule;
+import org.exist.xquery.*;
+import org.exist.xquery.functions.array.ArrayType;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.exist.mongodb.shared.FunctionDefinitions.*;
+
+/**
+ * Function to execute a sequence of write operations in batches.
+ *
+ * @author Dannes Wessels
+ */
+public class BulkWrite extends BasicFunction {
+
+    public static final String PARAM_OPERATIONS = "operations";
+    public static final String DESCR_OPERATIONS = "Write operations, one map per operation: "
+            + "map { 'insertOne' : map { 'document' : ... } }, "
+            + "map { 'updateOne' | 'updateMany' : map { 'filter' : ..., 'update' : ..., 'upsert' : true() } }, "
+            + "map { 'replaceOne' : map { 'filter' : ..., 'replacement' : ..., 'upsert' : true() } } or "
+            + "map { 'deleteOne' | 'deleteMany' : map { 'filter' : ... } }. "
+            + "Documents, filters and updates are maps or JSON formatted strings.";
+    public static final FunctionParameterSequenceType PARAMETER_OPERATIONS
+            = new FunctionParameterSequenceType(PARAM_OPERATIONS, Type.MAP, Cardinality.ZERO_OR_MORE, DESCR_OPERATIONS);
+
+    public static final String PARAM_BULK_OPTIONS = "options";
+    public static final String DESCR_BULK_OPTIONS = "Map with options: 'ordered' (default true), 'batchSize' "
+            + "(default 1000 operations), 'writeConcern' (name, number of nodes or map { 'w', 'j', 'wtimeout' }) "
+            + "'bypassDocumentValidation' and 'parallel' (convert operations on worker threads, default false)";
+    public static final FunctionParameterSequenceType PARAMETER_BULK_OPTIONS
+            = new FunctionParameterSequenceType(PARAM_BULK_OPTIONS, Type.MAP, Cardinality.ZERO_OR_ONE, DESCR_BULK_OPTIONS);
+
+    private static final String BULK_WRITE = "bulk-write";
+
+    private static final int DEFAULT_BATCH_SIZE = 1000;
+
+    public final static FunctionSignature[] signatures = {
+            new FunctionSignature(
+                    new QName(BULK_WRITE, MongodbModule.NAMESPACE_URI, MongodbModule.PREFIX), "Execute insert, update, "
+                    + "replace and delete operations in ordered batches.",
+                    new SequenceType[]{
+                            PARAMETER_MONGODB_CLIENT, PARAMETER_DATABASE, PARAMETER_COLLECTION, PARAMETER_OPERATIONS},
+                    new FunctionReturnSequenceType(Type.MAP, Cardinality.ONE, "The bulk write result")
+            ),
+            new FunctionSignature(
+                    new QName(BULK_WRITE, MongodbModule.NAMESPACE_URI, MongodbModule.PREFIX), "Execute insert, update, "
+                    + "replace and delete operations in batches.",
+                    new SequenceType[]{
+                            PARAMETER_MONGODB_CLIENT, PARAMETER_DATABASE, PARAMETER_COLLECTION, PARAMETER_OPERATIONS, PARAMETER_BULK_OPTIONS},
+                    new FunctionReturnSequenceType(Type.MAP, Cardinality.ONE, "The bulk write result: acknowledged, "
+                            + "inserted, matched, modified, deleted, upserted, upsertedIds and errors")
+            ),
+    };
+
+    public BulkWrite(final XQueryContext context, final FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+
+        // Verify clientid and get client
+        final String mongodbClientId = args[0].itemAt(0).getStringValue();
+
+        try {
+            final MongoClient client = MongodbClientStore.getInstance().validate(mongodbClientId, context.getSubject().getName());
+
+            // Get parameters
+            final String dbname = args[1].itemAt(0).getStringValue();
+            final String collection = args[2].itemAt(0).getStringValue();
+
+            final MapType options = (args.length >= 5 && !args[4].isEmpty()) ? (MapType) args[4].itemAt(0) : null;
+
+            final boolean ordered = getOption(options, "ordered") == null
+                    || getOption(options, "ordered").effectiveBooleanValue();
+
+            final int batchSize = getOption(options, "batchSize") == null
+                    ? DEFAULT_BATCH_SIZE
+                    : getOption(options, "batchSize").itemAt(0).toJavaObject(Integer.class);
+
+            if (batchSize <= 0) {
+                throw new IllegalArgumentException(String.format("Batch size must be positive, got %s.", batchSize));
+            }
+
+            final BulkWriteOptions bulkWriteOptions = new BulkWriteOptions().ordered(ordered);
+            if (getOption(options, "bypassDocumentValidation") != null) {
+                bulkWriteOptions.bypassDocumentValidation(
+                        getOption(options, "bypassDocumentValidation").effectiveBooleanValue());
+            }
+
+            // Get collection in database
+            MongoCollection<RawBsonDocument> dbcol = client.getDatabase(dbname)
+                    .getCollection(collection, RawBsonDocument.class);
+
+            final WriteConcern writeConcern = ConversionTools.convertWriteConcern(getOption(options, "writeConcern"));
+            if (writeConcern != null) {
+                dbcol = dbcol.withWriteConcern(writeConcern);
+            }
+
+            final Totals totals = new Totals(context);
+
+            // Convert and execute operations batch by batch
+            final List<WriteModel<RawBsonDocument>> batch = new ArrayList<>(Math.min(batchSize, DEFAULT_BATCH_SIZE));
+            int offset = 0;
+            boolean stopped = false;
+
+            // Optionally convert on worker threads, the next batch is converted while the current one is written
+            final boolean parallel = getOption(options, "parallel") != null
+                    && getOption(options, "parallel").effectiveBooleanValue();
+            final ParallelConverter<WriteModel<RawBsonDocument>> converter = parallel
+                    ? new ParallelConverter<>(2 * Math.min(batchSize, DEFAULT_BATCH_SIZE))
+                    : null;
+
+            try {
+                final SequenceIterator iterator = args[3].iterate();
+                while ((iterator.hasNext() || (converter != null && !converter.isEmpty())) && !stopped) {
+
+                    if (converter == null) {
+                        batch.add(convertOperation(iterator.nextItem(), false));
+
+                    } else {
+                        while (iterator.hasNext() && !converter.isFull()) {
+                            final Item item = iterator.nextItem();
+                            converter.submit(() -> convertOperation(item, true));
+                        }
+                        batch.add(converter.take());
+                    }
+
+                    final boolean last = !iterator.hasNext() && (converter == null || converter.isEmpty());
+                    if (batch.size() == batchSize || last) {
+                        stopped = !execute(dbcol, batch, bulkWriteOptions, offset, totals) && ordered;
+                        offset += batch.size();
+                        batch.clear();
+                    }
+                }
+
+            } finally {
+                if (converter != null) {
+                    converter.cancel();
+                }
+            }
+
+            return totals.toMap(dbcol.getWriteConcern().isAcknowledged());
+
+        } catch (final Throwable t) {
+            MongodbClientStore.getInstance().registerError(mongodbClientId);
+            return GenericExceptionHandler.handleException(this, t);
+
+        } finally {
+            MongodbClientStore.getInstance().release(mongodbClientId);
+        }
+
+    }
+
+    /**
+     * Execute a single batch.
+     *
+     * @return FALSE when one of the operations failed.
+     */
+    private boolean execute(final MongoCollection<RawBsonDocument> dbcol, final List<WriteModel<RawBsonDocument>> batch,
+                            final BulkWriteOptions bulkWriteOptions, final int offset, final Totals totals)
+            throws XPathException {
+        try {
+            totals.add(dbcol.bulkWrite(batch, bulkWriteOptions));
+            return true;
+
+        } catch (final MongoBulkWriteException ex) {
+            totals.add(ex.getWriteResult());
+            for (final BulkWriteError error : ex.getWriteErrors()) {
+                totals.addError(offset + error.getIndex(), error.getCode(), error.getMessage());
+            }
+            if (ex.getWriteConcernError() != null) {
+                totals.addError(-1, ex.getWriteConcernError().getCode(), ex.getWriteConcernError().getMessage());
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Convert map { 'operation' : map { ... } } into a write model.
+     *
+     * @param eager TRUE when filters and updates must be encoded now, instead of when the batch is written.
+     */
+    private WriteModel<RawBsonDocument> convertOperation(final Item item, final boolean eager) throws XPathException {
+
+        if (item.getType() != Type.MAP) {
+            throw new IllegalArgumentException(String.format("An operation must be a map, got `%s`.",
+                    Type.getTypeName(item.getType())));
+        }
+
+        final MapType operation = (MapType) item;
+        final Sequence keys = operation.keys();
+        if (!keys.hasOne()) {
+            throw new IllegalArgumentException("An operation must be a map with a single key.");
+        }
+
+        final String name = keys.getStringValue();
+        final Sequence value = operation.get((AtomicValue) keys.itemAt(0));
+        if (value.getItemType() != Type.MAP) {
+            throw new IllegalArgumentException(String.format("The arguments of operation '%s' must be a map.", name));
+        }
+        final MapType arguments = (MapType) value.itemAt(0);
+
+        switch (name) {
+            case "insertOne":
+                return new InsertOneModel<>(MapEncoder.toRawDocument(getArgument(arguments, name, "document")));
+
+            case "updateOne":
+                return new UpdateOneModel<>(toBson(getArgument(arguments, name, "filter"), eager),
+                        toBson(getArgument(arguments, name, "update"), eager),
+                        new UpdateOptions().upsert(isUpsert(arguments)));
+
+            case "updateMany":
+                return new UpdateManyModel<>(toBson(getArgument(arguments, name, "filter"), eager),
+                        toBson(getArgument(arguments, name, "update"), eager),
+                        new UpdateOptions().upsert(isUpsert(arguments)));
+
+            case "replaceOne":
+                return new ReplaceOneModel<>(toBson(getArgument(arguments, name, "filter"), eager),
+                        MapEncoder.toRawDocument(getArgument(arguments, name, "replacement")),
+                        new ReplaceOptions().upsert(isUpsert(arguments)));
+
+            case "deleteOne":
+                return new DeleteOneModel<>(toBson(getArgument(arguments, name, "filter"), eager));
+
+            case "deleteMany":
+                return new DeleteManyModel<>(toBson(getArgument(arguments, name, "filter"), eager));
+
+            default:
+                throw new IllegalArgumentException(String.format("Unknown operation '%s'.", name));
+        }
+    }
+
+    private static Bson toBson(final Sequence seq, final boolean eager) throws XPathException {
+        return eager ? MapEncoder.toRawDocument(seq) : MapEncoder.toBson(seq);
+    }
+
+    private static Sequence getOption(final MapType map, final String key) {
+        if (map == null) {
+            return null;
+        }
+        final Sequence value = map.get(new StringValue(key));
+        return (value == null || value.isEmpty()) ? null : value;
+    }
+
+    private static Sequence getArgument(final MapType arguments, final String operation, final String key) {
+        final Sequence value = getOption(arguments, key);
+        if (value == null) {
+            throw new IllegalArgumentException(String.format("Operation '%s' requires '%s'.", operation, key));
+        }
+        return value;
+    }
+
+    private static boolean isUpsert(final MapType arguments) throws XPathException {
+        final Sequence upsert = getOption(arguments, "upsert");
+        return upsert != null && upsert.effectiveBooleanValue();
+    }
+
+    /**
+     * Aggregated results of all batches.
+     */
+    private static class Totals {
+
+        private final XQueryContext context;
+
+        private long inserted;
+        private long matched;
+        private long modified;
+        private long deleted;
+        private final ValueSequence upsertedIds = new ValueSequence();
+        private final ValueSequence errors = new ValueSequence();
+
+        Totals(final XQueryContext context) {
+            this.context = context;
+        }
+
+        void add(final BulkWriteResult result) throws XPathException {
+            if (!result.wasAcknowledged()) {
+                return;
+            }
+            inserted += result.getInsertedCount();
+            matched += result.getMatchedCount();
+            modified += result.getModifiedCount();
+            deleted += result.getDeletedCount();
+            for (final BulkWriteUpsert upsert : result.getUpserts()) {
+                upsertedIds.add(new StringValue(ConversionTools.convertId(upsert.getId())));
+            }
+        }
+
+        /**
+         * Register a failed operation, index -1 is used for write concern errors.
+         */
+        void addError(final int index, final int code, final String message) throws XPathException {
+            final MapType error = new MapType(context);
+            error.add(new StringValue("index"), new IntegerValue(index));
+            error.add(new StringValue("code"), new IntegerValue(code));
+            error.add(new StringValue("message"), new StringValue(message));
+            errors.add(error);
+        }
+
+        MapType toMap(final boolean acknowledged) throws XPathException {
+            final MapType map = new MapType(context);
+            map.add(new StringValue("acknowledged"), BooleanValue.valueOf(acknowledged));
+
+            if (acknowledged) {
+                map.add(new StringValue("inserted"), new IntegerValue(inserted));
+                map.add(new StringValue("matched"), new IntegerValue(matched));
+                map.add(new StringValue("modified"), new IntegerValue(modified));
+                map.add(new StringValue("deleted"), new IntegerValue(deleted));
+                map.add(new StringValue("upserted"), new IntegerValue(upsertedIds.getItemCount()));
+                map.add(new StringValue("upsertedIds"), new ArrayType(context, upsertedIds));
+            }
+
+            map.add(new StringValue("errors"), new ArrayType(context, errors));
+
+            return map;
+        }
+    }
+
+}
@@ -65,11 +65,11 @@ public class Count extends BasicFunction {
     @Override
     public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
 
+        // Verify clientid and get client
+        final String mongodbClientId = args[0].itemAt(0).getStringValue();
+
         try {
-            // Verify clientid and get client
-            final String mongodbClientId = args[0].itemAt(0).getStringValue();
-            MongodbClientStore.getInstance().validate(mongodbClientId);
-            final MongoClient client = MongodbClientStore.getInstance().get(mongodbClientId);
+            final MongoClient client = MongodbClientStore.getInstance().validate(mongodbClientId, context.getSubject().getName());
 
             final String dbname = args[1].itemAt(0).getStringValue();
             final String collection = args[2].itemAt(0).getStringValue();
@@ -89,7 +89,11 @@ public class Count extends BasicFunction {
             return new IntegerValue(nrOfDocuments);
 
         } catch (final Throwable t) {
+            MongodbClientStore.getInstance().registerError(mongodbClientId);
             return GenericExceptionHandler.handleException(this, t);
+
+        } finally {
+            MongodbClientStore.getInstance().release(mongodbClientId);
         }
 
     }
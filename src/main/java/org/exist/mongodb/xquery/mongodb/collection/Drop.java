@@ -24,6 +24,7 @@ import com.mongodb.DBCollection;
 import com.mongodb.MongoClient;
 import org.exist.dom.QName;
 import org.exist.mongodb.shared.GenericExceptionHandler;
+import org.exist.mongodb.shared.HandleCache;
 import org.exist.mongodb.shared.MongodbClientStore;
 import org.exist.mongodb.xquery.MongodbModule;
 import org.exist.xquery.*;
@@ -59,11 +60,11 @@ public class Drop extends BasicFunction {
     @Override
     public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
 
+        // Verify clientid and get client
+        final String mongodbClientId = args[0].itemAt(0).getStringValue();
+
         try {
-            // Verify clientid and get client
-            final String mongodbClientId = args[0].itemAt(0).getStringValue();
-            MongodbClientStore.getInstance().validate(mongodbClientId);
-            final MongoClient client = MongodbClientStore.getInstance().get(mongodbClientId);
+            final MongoClient client = MongodbClientStore.getInstance().validate(mongodbClientId, context.getSubject().getName());
 
             // Get parameters
             final String dbname = args[1].itemAt(0).getStringValue();
@@ -75,10 +76,17 @@ public class Drop extends BasicFunction {
 
             dbcol.drop();
 
+            // Cached handles refer to the dropped collection
+            HandleCache.getInstance().invalidate(dbname, collection);
+
             return Sequence.EMPTY_SEQUENCE;
 
         } catch (final Throwable t) {
+            MongodbClientStore.getInstance().registerError(mongodbClientId);
             return GenericExceptionHandler.handleException(this, t);
+
+        } finally {
+            MongodbClientStore.getInstance().release(mongodbClientId);
         }
 
     }
@@ -19,11 +19,16 @@
  */
 package org.exist.mongodb.xquery.mongodb.collection;
 
-import com.mongodb.*;
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.FindOptions;
+import org.bson.BsonDocument;
+import org.bson.conversions.Bson;
 import org.exist.dom.QName;
 import org.exist.mongodb.shared.*;
 import org.exist.mongodb.xquery.MongodbModule;
 import org.exist.xquery.*;
+import org.exist.xquery.functions.map.MapType;
 import org.exist.xquery.value.*;
 
 import static org.exist.mongodb.shared.FunctionDefinitions.*;
@@ -60,6 +65,14 @@ public class Find extends BasicFunction {
                             PARAMETER_MONGODB_CLIENT, PARAMETER_DATABASE, PARAMETER_COLLECTION, PARAMETER_QUERY, PARAMETER_OPTIONS},
                     new FunctionReturnSequenceType(Type.MAP, Cardinality.ZERO_OR_MORE, "The selected document(s)")
             ),
+
+            new FunctionSignature(
+                    new QName(FIND, MongodbModule.NAMESPACE_URI, MongodbModule.PREFIX), "Query for documents in the collection and get specified fields. " +
+                    "Paging, sorting and other cursor options are executed by the server.",
+                    new SequenceType[]{
+                            PARAMETER_MONGODB_CLIENT, PARAMETER_DATABASE, PARAMETER_COLLECTION, PARAMETER_QUERY, PARAMETER_OPTIONS, PARAMETER_CURSOR_OPTIONS},
+                    new FunctionReturnSequenceType(Type.MAP, Cardinality.ZERO_OR_MORE, "The selected document(s)")
+            ),
     };
 
     public Find(final XQueryContext context, final FunctionSignature signature) {
@@ -69,46 +82,44 @@ public class Find extends BasicFunction {
     @Override
     public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
 
+        // Verify clientid and get client
+        final String mongodbClientId = args[0].itemAt(0).getStringValue();
+
         try {
-            // Verify clientid and get client
-            final String mongodbClientId = args[0].itemAt(0).getStringValue();
-            MongodbClientStore.getInstance().validate(mongodbClientId);
-            final MongoClient client = MongodbClientStore.getInstance().get(mongodbClientId);
+            final MongoClient client = MongodbClientStore.getInstance().validate(mongodbClientId, context.getSubject().getName());
 
             // Get parameters
             final String dbname = args[1].itemAt(0).getStringValue();
             final String collection = args[2].itemAt(0).getStringValue();
 
-            final BasicDBObject mongoQuery = (args.length >= 4)
-                    ? MapToBSON.convert(args[3])
-                    : new BasicDBObject();
+            final Bson mongoQuery = (args.length >= 4)
+                    ? MapEncoder.toRawDocument(args[3])
+                    : new BsonDocument();
 
-            final BasicDBObject mongoKeys = (args.length >= 5)
-                    ? MapToBSON.convert(args[4])
+            final Bson mongoKeys = (args.length >= 5)
+                    ? MapEncoder.toRawDocument(args[4])
                     : null;
 
-            // Get database
-            final DB db = client.getDB(dbname);
-            final DBCollection dbcol = db.getCollection(collection);
-
-            final Sequence retVal = new ValueSequence();
-
-            // Execute querys
-            try (
-                    final DBCursor cursor = (mongoKeys == null)
-                            ? dbcol.find(mongoQuery)
-                            : dbcol.find(mongoQuery, mongoKeys)) {
-                // Harvest result
-                while (cursor.hasNext()) {
-                    final DBObject getValues = cursor.next();
-                    retVal.addAll(BSONtoMap.convert(getValues,context));
-                }
+            // Get collection in database, documents are decoded directly into maps
+            final MongoCollection<MapType> dbcol = MapCodec.wrap(client.getDatabase(dbname)
+                    .getCollection(collection), context);
+
+            final FindOptions findOptions = new FindOptions().projection(mongoKeys);
+
+            if (args.length >= 6) {
+                CursorOptions.parse(args[5], findOptions);
             }
 
-            return retVal;
+            // The first batch is retrieved now, so errors in the query are raised here. The other
+            // documents are retrieved and converted while the result is consumed
+            return new CursorSequence<>(context, this, mongodbClientId, dbcol, mongoQuery, findOptions, (document, ctx) -> document).open();
 
         } catch (final Throwable t) {
+            MongodbClientStore.getInstance().registerError(mongodbClientId);
             return GenericExceptionHandler.handleException(this, t);
+
+        } finally {
+            MongodbClientStore.getInstance().release(mongodbClientId);
         }
 
     }
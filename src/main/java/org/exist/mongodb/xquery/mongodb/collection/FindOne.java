@@ -20,10 +20,15 @@
 package org.exist.mongodb.xquery.mongodb.collection;
 
 import com.mongodb.*;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import org.bson.BsonDocument;
+import org.bson.conversions.Bson;
 import org.exist.dom.QName;
 import org.exist.mongodb.shared.*;
 import org.exist.mongodb.xquery.MongodbModule;
 import org.exist.xquery.*;
+import org.exist.xquery.functions.map.MapType;
 import org.exist.xquery.value.*;
 
 import static org.exist.mongodb.shared.FunctionDefinitions.*;
@@ -70,53 +75,54 @@ public class FindOne extends BasicFunction {
     @Override
     public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
 
+        // Verify clientid and get client
+        final String mongodbClientId = args[0].itemAt(0).getStringValue();
+
         try {
-            // Verify clientid and get client
-            final String mongodbClientId = args[0].itemAt(0).getStringValue();
-            MongodbClientStore.getInstance().validate(mongodbClientId);
-            final MongoClient client = MongodbClientStore.getInstance().get(mongodbClientId);
+            final MongoClient client = MongodbClientStore.getInstance().validate(mongodbClientId, context.getSubject().getName());
 
             // Get parameters
             final String dbname = args[1].itemAt(0).getStringValue();
             final String collection = args[2].itemAt(0).getStringValue();
 
-            final BasicDBObject query = (args.length >= 4)
-                    ? MapToBSON.convert(args[3])
+            final Bson query = (args.length >= 4)
+                    ? MapEncoder.toRawDocument(args[3])
                     : null;
 
-            final BasicDBObject fields = (args.length >= 5)
-                    ? MapToBSON.convert(args[4])
+            final Bson fields = (args.length >= 5)
+                    ? MapEncoder.toRawDocument(args[4])
                     : null;
 
-            final BasicDBObject orderBy = (args.length >= 6)
-                    ? MapToBSON.convert(args[5])
+            final Bson orderBy = (args.length >= 6)
+                    ? MapEncoder.toRawDocument(args[5])
                     : null;
 
-            // Get database
-            final DB db = client.getDB(dbname);
-            final DBCollection dbcol = db.getCollection(collection);
-
-            final DBObject result;
-            if (fields == null && orderBy == null && query == null) {
-                result = dbcol.findOne();
+            // Get collection in database, the document is decoded directly into a map
+            final MongoCollection<MapType> dbcol = MapCodec.wrap(client.getDatabase(dbname)
+                    .getCollection(collection), context);
 
-            } else if (fields == null && orderBy == null) {
-                result = dbcol.findOne(query);
+            final FindIterable<MapType> iterable = dbcol.find(query == null ? new BsonDocument() : query);
 
-            } else if (orderBy == null) {
-                result = dbcol.findOne(query, fields);
+            if (fields != null) {
+                iterable.projection(fields);
+            }
 
-            } else {
-                result = dbcol.findOne(query, fields, orderBy);
+            if (orderBy != null) {
+                iterable.sort(orderBy);
             }
 
+            final MapType result = iterable.first();
 
             return (result == null)
                     ? Sequence.EMPTY_SEQUENCE
-                    : BSONtoMap.convert(result,context);
+                    : result;
 
         } catch (final Throwable t) {
+            MongodbClientStore.getInstance().registerError(mongodbClientId);
             return GenericExceptionHandler.handleException(this, t);
+
+        } finally {
+            MongodbClientStore.getInstance().release(mongodbClientId);
         }
 
     }
@@ -19,15 +19,21 @@
  */
 package org.exist.mongodb.xquery.mongodb.collection;
 
-import com.mongodb.*;
+import com.mongodb.MongoClient;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.InsertManyOptions;
 import org.apache.commons.lang3.StringUtils;
+import org.bson.RawBsonDocument;
 import org.exist.dom.QName;
 import org.exist.mongodb.shared.ConversionTools;
 import org.exist.mongodb.shared.GenericExceptionHandler;
-import org.exist.mongodb.shared.MapToBSON;
+import org.exist.mongodb.shared.MapEncoder;
 import org.exist.mongodb.shared.MongodbClientStore;
+import org.exist.mongodb.shared.ParallelConverter;
 import org.exist.mongodb.xquery.MongodbModule;
 import org.exist.xquery.*;
+import org.exist.xquery.functions.array.ArrayType;
 import org.exist.xquery.functions.map.MapType;
 import org.exist.xquery.value.*;
 
@@ -47,14 +53,41 @@ public class Insert extends BasicFunction {
     public static final String DESCR_JSONCONTENT = "Document content as JSON formatted document";
     public static final FunctionParameterSequenceType PARAMETER_JSONCONTENT
             = new FunctionParameterSequenceType(PARAM_JSONCONTENT, Type.ITEM, Cardinality.ZERO_OR_MORE, DESCR_JSONCONTENT);
+
+    public static final String PARAM_INSERT_OPTIONS = "options";
+    public static final String DESCR_INSERT_OPTIONS = "Map with options: 'chunkSize' (maximum number of documents "
+            + "per request, default 1000), 'chunkBytes' (maximum size of a request in bytes, default 16MB), "
+            + "'ordered' (default true), 'writeConcern' (name, number of nodes or map { 'w', 'j', 'wtimeout' }) "
+            + "and 'parallel' (convert documents on worker threads, default false)";
+    public static final FunctionParameterSequenceType PARAMETER_INSERT_OPTIONS
+            = new FunctionParameterSequenceType(PARAM_INSERT_OPTIONS, Type.MAP, Cardinality.ZERO_OR_ONE, DESCR_INSERT_OPTIONS);
+
     private static final String INSERT = "insert";
+
+    private static final int DEFAULT_CHUNK_SIZE = 1000;
+
+    // Maximum BSON document size, well below the 48MB message size limit
+    private static final int DEFAULT_CHUNK_BYTES = 16 * 1024 * 1024;
+
+    private static final String DESCR_INSERT_RESULT = "The insert result: 'acknowledged', 'n' (number of "
+            + "inserted documents) and 'updateOfExisting' (always false)";
+
     public final static FunctionSignature[] signatures = {
             new FunctionSignature(
                     new QName(INSERT, MongodbModule.NAMESPACE_URI, MongodbModule.PREFIX), "Insert data",
                     new SequenceType[]{
                             PARAMETER_MONGODB_CLIENT, PARAMETER_DATABASE, PARAMETER_COLLECTION, PARAMETER_JSONCONTENT},
-                    new FunctionReturnSequenceType(Type.MAP, Cardinality.ONE, "The insert result")
-            ),};
+                    new FunctionReturnSequenceType(Type.MAP, Cardinality.ONE, DESCR_INSERT_RESULT)
+            ),
+            new FunctionSignature(
+                    new QName(INSERT, MongodbModule.NAMESPACE_URI, MongodbModule.PREFIX), "Insert data, the content "
+                    + "is converted and sent in chunks while the sequence is read.",
+                    new SequenceType[]{
+                            PARAMETER_MONGODB_CLIENT, PARAMETER_DATABASE, PARAMETER_COLLECTION, PARAMETER_JSONCONTENT, PARAMETER_INSERT_OPTIONS},
+                    new FunctionReturnSequenceType(Type.MAP, Cardinality.ONE, DESCR_INSERT_RESULT
+                            + ", with one map per chunk in 'chunks'")
+            ),
+    };
 
     public Insert(final XQueryContext context, final FunctionSignature signature) {
         super(context, signature);
@@ -63,65 +96,201 @@ public class Insert extends BasicFunction {
     @Override
     public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
 
+        // Verify clientid and get client
+        final String mongodbClientId = args[0].itemAt(0).getStringValue();
+
         try {
-            // Verify clientid and get client
-            final String mongodbClientId = args[0].itemAt(0).getStringValue();
-            MongodbClientStore.getInstance().validate(mongodbClientId);
-            final MongoClient client = MongodbClientStore.getInstance().get(mongodbClientId);
+            final MongoClient client = MongodbClientStore.getInstance().validate(mongodbClientId, context.getSubject().getName());
 
             // Get parameters
             final String dbname = args[1].itemAt(0).getStringValue();
             final String collection = args[2].itemAt(0).getStringValue();
 
-            // Get database
-            final DB db = client.getDB(dbname);
-            final DBCollection dbcol = db.getCollection(collection);
+            final MapType options = (args.length >= 5 && !args[4].isEmpty()) ? (MapType) args[4].itemAt(0) : null;
+
+            final int chunkSize = getIntOption(options, "chunkSize", DEFAULT_CHUNK_SIZE);
+            final int chunkBytes = getIntOption(options, "chunkBytes", DEFAULT_CHUNK_BYTES);
+
+            final Sequence ordered = getOption(options, "ordered");
+            final InsertManyOptions insertOptions = new InsertManyOptions()
+                    .ordered(ordered == null || ordered.effectiveBooleanValue());
+
+            // Get collection in database
+            MongoCollection<RawBsonDocument> dbcol = client.getDatabase(dbname)
+                    .getCollection(collection, RawBsonDocument.class);
+
+            final WriteConcern writeConcern = ConversionTools.convertWriteConcern(getOption(options, "writeConcern"));
+            if (writeConcern != null) {
+                dbcol = dbcol.withWriteConcern(writeConcern);
+            }
 
-            // Place holder for all results
-            final List<DBObject> allContent = new ArrayList<>();
+            final boolean acknowledged = dbcol.getWriteConcern().isAcknowledged();
 
+            final ChunkWriter writer = new ChunkWriter(dbcol, insertOptions, chunkSize, chunkBytes, acknowledged);
 
-            final SequenceIterator iterate = args[3].iterate();
-            while (iterate.hasNext()) {
+            // Optionally convert on worker threads, the next chunk is converted while the current one is written
+            final Sequence parallel = getOption(options, "parallel");
+            final ParallelConverter<RawBsonDocument> converter = (parallel != null && parallel.effectiveBooleanValue())
+                    ? new ParallelConverter<>(2 * Math.min(chunkSize, DEFAULT_CHUNK_SIZE))
+                    : null;
 
-                final Item nextItem = iterate.nextItem();
+            try {
+                // Read, convert and send the content chunk by chunk
+                final SequenceIterator iterate = args[3].iterate();
+                while (iterate.hasNext()) {
 
+                    final Item nextItem = iterate.nextItem();
 
-                if (nextItem instanceof MapType) {
-                    final Sequence seq = (Sequence) nextItem;
-                    final DBObject bsonContent = MapToBSON.convert(seq);
-                    allContent.add(bsonContent);
+                    // String values are retrieved on this thread, only the conversion can run in parallel
+                    final ParallelConverter.Conversion<RawBsonDocument> conversion;
+                    if (nextItem instanceof MapType) {
+                        conversion = () -> MapEncoder.encode((MapType) nextItem);
 
-                } else {
-                    final String value = nextItem.getStringValue();
-                    if (StringUtils.isEmpty(value)) {
-                        LOG.error("Skipping empty string");
                     } else {
-                        final DBObject bsonContent = ConversionTools.convertJSon(value);
-                        allContent.add(bsonContent);
+                        final String value = nextItem.getStringValue();
+                        if (StringUtils.isEmpty(value)) {
+                            LOG.error("Skipping empty string");
+                            continue;
+                        }
+                        conversion = () -> RawBsonDocument.parse(value);
+                    }
+
+                    if (converter == null) {
+                        writer.add(conversion.convert());
+
+                    } else {
+                        converter.submit(conversion);
+                        while (converter.isFull()) {
+                            writer.add(converter.take());
+                        }
                     }
                 }
+
+                while (converter != null && !converter.isEmpty()) {
+                    writer.add(converter.take());
+                }
+
+            } finally {
+                if (converter != null) {
+                    converter.cancel();
+                }
             }
 
-            final WriteResult result = dbcol.insert(allContent);
+            writer.flush();
 
+            if (writer.total == 0) {
+                throw new IllegalArgumentException("Nothing to insert.");
+            }
 
             // Wrap results into map
             final MapType map = new MapType(context);
-            map.add(new StringValue("acknowledged"), new ValueSequence(new BooleanValue(result.wasAcknowledged())));
+            map.add(new StringValue("acknowledged"), new ValueSequence(new BooleanValue(acknowledged)));
 
-            if (result.wasAcknowledged()) {
-                map.add(new StringValue("n"), new ValueSequence(new IntegerValue(result.getN())));
-                map.add(new StringValue("updateOfExisting"), new ValueSequence(new BooleanValue(result.isUpdateOfExisting())));
-                map.add(new StringValue("upsertedId"), new ValueSequence(new StringValue((String) result.getUpsertedId())));
+            if (acknowledged) {
+                map.add(new StringValue("n"), new ValueSequence(new IntegerValue(writer.total)));
+                map.add(new StringValue("updateOfExisting"), new ValueSequence(new BooleanValue(false)));
             }
 
+            map.add(new StringValue("chunks"), new ArrayType(context, writer.chunks));
+
             return map;
 
         } catch (final Throwable t) {
+            MongodbClientStore.getInstance().registerError(mongodbClientId);
             return GenericExceptionHandler.handleException(this, t);
+
+        } finally {
+            MongodbClientStore.getInstance().release(mongodbClientId);
         }
 
     }
 
+    /**
+     * Collects documents and sends them as soon as the maximum number of
+     * documents or bytes of a chunk is reached.
+     */
+    private class ChunkWriter {
+
+        private final MongoCollection<RawBsonDocument> dbcol;
+        private final InsertManyOptions insertOptions;
+        private final int chunkSize;
+        private final int chunkBytes;
+        private final boolean acknowledged;
+
+        private final List<RawBsonDocument> chunk;
+        private int bytes = 0;
+
+        private final ValueSequence chunks = new ValueSequence();
+        private long total = 0;
+
+        ChunkWriter(final MongoCollection<RawBsonDocument> dbcol, final InsertManyOptions insertOptions,
+                    final int chunkSize, final int chunkBytes, final boolean acknowledged) {
+            this.dbcol = dbcol;
+            this.insertOptions = insertOptions;
+            this.chunkSize = chunkSize;
+            this.chunkBytes = chunkBytes;
+            this.acknowledged = acknowledged;
+            this.chunk = new ArrayList<>(Math.min(chunkSize, DEFAULT_CHUNK_SIZE));
+        }
+
+        void add(final RawBsonDocument document) throws XPathException {
+            final int size = document.getByteBuffer().remaining();
+
+            // Send before the chunk gets too large
+            if (bytes + size > chunkBytes) {
+                flush();
+            }
+
+            chunk.add(document);
+            bytes += size;
+
+            if (chunk.size() >= chunkSize) {
+                flush();
+            }
+        }
+
+        /**
+         * Send the collected documents, registers a map with index, n, bytes and acknowledged.
+         */
+        void flush() throws XPathException {
+            if (chunk.isEmpty()) {
+                return;
+            }
+
+            dbcol.insertMany(chunk, insertOptions);
+
+            final MapType result = new MapType(context);
+            result.add(new StringValue("index"), new IntegerValue(chunks.getItemCount()));
+            result.add(new StringValue("n"), new IntegerValue(chunk.size()));
+            result.add(new StringValue("bytes"), new IntegerValue(bytes));
+            result.add(new StringValue("acknowledged"), BooleanValue.valueOf(acknowledged));
+            chunks.add(result);
+
+            total += chunk.size();
+            chunk.clear();
+            bytes = 0;
+        }
+    }
+
+    private static Sequence getOption(final MapType map, final String key) {
+        if (map == null) {
+            return null;
+        }
+        final Sequence value = map.get(new StringValue(key));
+        return (value == null || value.isEmpty()) ? null : value;
+    }
+
+    private static int getIntOption(final MapType map, final String key, final int defaultValue) throws XPathException {
+        final Sequence value = getOption(map, key);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        final int intValue = value.itemAt(0).toJavaObject(Integer.class);
+        if (intValue <= 0) {
+            throw new IllegalArgumentException(String.format("Option '%s' must be positive, got %s.", key, intValue));
+        }
+        return intValue;
+    }
+
 }
@@ -21,10 +21,15 @@ package org.exist.mongodb.xquery.mongodb.collection;
 
 import com.mongodb.*;
 import com.mongodb.MapReduceCommand.OutputType;
+import com.mongodb.client.MapReduceIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.MapReduceAction;
+import org.bson.conversions.Bson;
 import org.exist.dom.QName;
 import org.exist.mongodb.shared.*;
 import org.exist.mongodb.xquery.MongodbModule;
 import org.exist.xquery.*;
+import org.exist.xquery.functions.map.MapType;
 import org.exist.xquery.value.*;
 
 import java.util.Locale;
@@ -84,11 +89,11 @@ public class MapReduce extends BasicFunction {
     @Override
     public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
 
+        // Verify clientid and get client
+        final String mongodbClientId = args[0].itemAt(0).getStringValue();
+
         try {
-            // Verify clientid and get client
-            final String mongodbClientId = args[0].itemAt(0).getStringValue();
-            MongodbClientStore.getInstance().validate(mongodbClientId);
-            final MongoClient client = MongodbClientStore.getInstance().get(mongodbClientId);
+            final MongoClient client = MongodbClientStore.getInstance().validate(mongodbClientId, context.getSubject().getName());
 
             // Get parameters
             final String dbname = args[1].itemAt(0).getStringValue();
@@ -107,26 +112,34 @@ public class MapReduce extends BasicFunction {
                     : OutputType.valueOf(args[6].itemAt(0).getStringValue().toUpperCase(Locale.US));
 
 
-            final DBObject query = MapToBSON.convert(args[7]);
+            final Bson query = MapEncoder.toRawDocument(args[7]);
+
+            // Get collection in database, results are decoded directly into maps
+            final MongoCollection<MapType> dbcol = MapCodec.wrap(client.getDatabase(dbname)
+                    .getCollection(collection), context);
 
-            // Get collection in database
-            final DB db = client.getDB(dbname);
-            final DBCollection dbcol = db.getCollection(collection);
+            // Prepare query
+            final MapReduceIterable<MapType> output = dbcol.mapReduce(map, reduce).filter(query);
 
-            // Execute query      
-            final MapReduceOutput output = dbcol.mapReduce(map, reduce, outputTarget, outputType, query);
+            if (outputType != OutputType.INLINE) {
+                output.collectionName(outputTarget).action(MapReduceAction.valueOf(outputType.name()));
+            }
 
-            // Parse results
+            // Execute query and parse results
             final Sequence retVal = new ValueSequence();
 
-            for (final DBObject result : output.results()) {
-                retVal.addAll(BSONtoMap.convert(result,context));
+            for (final MapType result : output) {
+                retVal.add(result);
             }
 
             return retVal;
 
         } catch (final Throwable t) {
+            MongodbClientStore.getInstance().registerError(mongodbClientId);
             return GenericExceptionHandler.handleException(this, t);
+
+        } finally {
+            MongodbClientStore.getInstance().release(mongodbClientId);
         }
 
     }
@@ -19,10 +19,17 @@
  */
 package org.exist.mongodb.xquery.mongodb.collection;
 
-import com.mongodb.*;
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
 import org.exist.dom.QName;
+import org.exist.mongodb.shared.ConversionTools;
 import org.exist.mongodb.shared.GenericExceptionHandler;
-import org.exist.mongodb.shared.MapToBSON;
+import org.exist.mongodb.shared.MapEncoder;
 import org.exist.mongodb.shared.MongodbClientStore;
 import org.exist.mongodb.xquery.MongodbModule;
 import org.exist.xquery.*;
@@ -52,7 +59,9 @@ public class Save extends BasicFunction {
                     "If a document exists with the specified '_id' value, the method performs an update, replacing all field in the existing record with the fields from the document.",
                     new SequenceType[]{
                             PARAMETER_MONGODB_CLIENT, PARAMETER_DATABASE, PARAMETER_COLLECTION, PARAMETER_JSONCONTENT},
-                    new FunctionReturnSequenceType(Type.MAP, Cardinality.ONE, "The save result")
+                    new FunctionReturnSequenceType(Type.MAP, Cardinality.ONE, "The save result: 'acknowledged', "
+                            + "'n' (number of documents written, as for insert), 'updateOfExisting' and "
+                            + "'upsertedId' when a document with an '_id' was inserted")
             ),};
 
     public Save(final XQueryContext context, final FunctionSignature signature) {
@@ -62,40 +71,56 @@ public class Save extends BasicFunction {
     @Override
     public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
 
+        // Verify clientid and get client
+        final String mongodbClientId = args[0].itemAt(0).getStringValue();
+
         try {
-            // Verify clientid and get client
-            final String mongodbClientId = args[0].itemAt(0).getStringValue();
-            MongodbClientStore.getInstance().validate(mongodbClientId);
-            final MongoClient client = MongodbClientStore.getInstance().get(mongodbClientId);
+            final MongoClient client = MongodbClientStore.getInstance().validate(mongodbClientId, context.getSubject().getName());
 
             // Get parameters
             final String dbname = args[1].itemAt(0).getStringValue();
             final String collection = args[2].itemAt(0).getStringValue();
 
-            // Get database
-            final DB db = client.getDB(dbname);
-            final DBCollection dbcol = db.getCollection(collection);
+            // Get collection in database
+            final MongoCollection<RawBsonDocument> dbcol = client.getDatabase(dbname)
+                    .getCollection(collection, RawBsonDocument.class);
+
+            // Get data, maps are encoded directly into BSON
+            final RawBsonDocument data = MapEncoder.toRawDocument(args[3]);
+
+            // Execute save: replace document with same id, or insert when there is no id
+            final BsonValue id = data.get("_id");
 
-            // Get data
-            final BasicDBObject data = MapToBSON.convert(args[3]);
+            final MapType map;
+            if (id == null) {
+                dbcol.insertOne(data);
 
-            // Execute save
-            final WriteResult result = dbcol.save(data);
+                final boolean acknowledged = dbcol.getWriteConcern().isAcknowledged();
 
-            // Wrap results into map
-            final MapType map = new MapType(context);
-            map.add(new StringValue("acknowledged"), new ValueSequence(new BooleanValue(result.wasAcknowledged())));
+                map = new MapType(context);
+                map.add(new StringValue("acknowledged"), new ValueSequence(new BooleanValue(acknowledged)));
 
-            if (result.wasAcknowledged()) {
-                map.add(new StringValue("n"), new ValueSequence(new IntegerValue(result.getN())));
-                map.add(new StringValue("updateOfExisting"), new ValueSequence(new BooleanValue(result.isUpdateOfExisting())));
-                map.add(new StringValue("upsertedId"), new ValueSequence(new StringValue((String) result.getUpsertedId())));
+                if (acknowledged) {
+                    map.add(new StringValue("n"), new ValueSequence(new IntegerValue(1)));
+                    map.add(new StringValue("updateOfExisting"), new ValueSequence(new BooleanValue(false)));
+                }
+
+            } else {
+                final UpdateResult result = dbcol.replaceOne(Filters.eq("_id", id), data,
+                        new ReplaceOptions().upsert(true));
+
+                // Wrap results into map
+                map = ConversionTools.convertUpdateResult(result, context);
             }
 
             return map;
 
         } catch (final Throwable t) {
+            MongodbClientStore.getInstance().registerError(mongodbClientId);
             return GenericExceptionHandler.handleException(this, t);
+
+        } finally {
+            MongodbClientStore.getInstance().release(mongodbClientId);
         }
 
     }
@@ -19,10 +19,17 @@
  */
 package org.exist.mongodb.xquery.mongodb.collection;
 
-import com.mongodb.*;
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
 import org.exist.dom.QName;
+import org.exist.mongodb.shared.ConversionTools;
 import org.exist.mongodb.shared.GenericExceptionHandler;
-import org.exist.mongodb.shared.MapToBSON;
+import org.exist.mongodb.shared.MapEncoder;
 import org.exist.mongodb.shared.MongodbClientStore;
 import org.exist.mongodb.xquery.MongodbModule;
 import org.exist.xquery.*;
@@ -79,11 +86,11 @@ public class Update extends BasicFunction {
     @Override
     public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
 
+        // Verify clientid and get client
+        final String mongodbClientId = args[0].itemAt(0).getStringValue();
+
         try {
-            // Verify clientid and get client
-            final String mongodbClientId = args[0].itemAt(0).getStringValue();
-            MongodbClientStore.getInstance().validate(mongodbClientId);
-            final MongoClient client = MongodbClientStore.getInstance().get(mongodbClientId);
+            final MongoClient client = MongodbClientStore.getInstance().validate(mongodbClientId, context.getSubject().getName());
 
             // Get parameters
             final String dbname = args[1].itemAt(0).getStringValue();
@@ -91,41 +98,48 @@ public class Update extends BasicFunction {
 
 
 
-            // Get data
-            final BasicDBObject criterium = MapToBSON.convert(args[3]);
-            final BasicDBObject modification = MapToBSON.convert(args[4]);
-
-            final Boolean upsert = (args.length >= 6)
-                    ? args[5].itemAt(0).toJavaObject(Boolean.class)
-                    : null;
+            // Get data, maps are encoded directly into BSON
+            final Bson criterium = MapEncoder.toBson(args[3]);
+            final RawBsonDocument modification = MapEncoder.toRawDocument(args[4]);
 
-            final Boolean multi = (args.length >= 7)
-                    ? args[6].itemAt(0).toJavaObject(Boolean.class)
-                    : null;
+            final boolean upsert = (args.length >= 6)
+                    && args[5].itemAt(0).toJavaObject(Boolean.class);
 
-            // Get database
-            final DB db = client.getDB(dbname);
-            final DBCollection dbcol = db.getCollection(collection);
-
-            // Execute update
-            final WriteResult result = (upsert == null)
-                    ? dbcol.update(criterium, modification)
-                    : dbcol.update(criterium, modification, upsert, multi);
+            final boolean multi = (args.length >= 7)
+                    && args[6].itemAt(0).toJavaObject(Boolean.class);
 
-            final MapType map = new MapType(context);
+            // Get collection in database
+            final MongoCollection<RawBsonDocument> dbcol = client.getDatabase(dbname)
+                    .getCollection(collection, RawBsonDocument.class);
 
-            map.add(new StringValue("acknowledged"), new ValueSequence(new BooleanValue(result.wasAcknowledged())));
+            // Without update operators the document is replaced, an empty document replaces all fields
+            final boolean replace = modification.isEmpty() || !modification.getFirstKey().startsWith("$");
 
-            if (result.wasAcknowledged()) {
-                map.add(new StringValue("n"), new ValueSequence(new IntegerValue(result.getN())));
-                map.add(new StringValue("updateOfExisting"), new ValueSequence(new BooleanValue(result.isUpdateOfExisting())));
-                map.add(new StringValue("upsertedId"), new ValueSequence(new StringValue((String) result.getUpsertedId())));
+            // Execute update
+            final UpdateResult result;
+            if (replace) {
+                if (multi) {
+                    throw new IllegalArgumentException("Multi update is only allowed with update operators.");
+                }
+                result = dbcol.replaceOne(criterium, modification, new ReplaceOptions().upsert(upsert));
+
+            } else if (multi) {
+                result = dbcol.updateMany(criterium, modification, new UpdateOptions().upsert(upsert));
+
+            } else {
+                result = dbcol.updateOne(criterium, modification, new UpdateOptions().upsert(upsert));
             }
 
+            final MapType map = ConversionTools.convertUpdateResult(result, context);
+
             return map;
 
         } catch (final Throwable t) {
+            MongodbClientStore.getInstance().registerError(mongodbClientId);
             return GenericExceptionHandler.handleException(this, t);
+
+        } finally {
+            MongodbClientStore.getInstance().release(mongodbClientId);
         }
 
     }
@@ -20,9 +20,11 @@
 package org.exist.mongodb.xquery.mongodb.db;
 
 import com.mongodb.BasicDBObject;
-import com.mongodb.CommandResult;
 import com.mongodb.DB;
 import com.mongodb.MongoClient;
+import com.mongodb.MongoCommandException;
+import org.bson.BsonReader;
+import org.bson.RawBsonDocument;
 import org.exist.dom.QName;
 import org.exist.mongodb.shared.*;
 import org.exist.mongodb.xquery.MongodbModule;
@@ -86,11 +88,11 @@ public class EvalCommand extends BasicFunction {
     @Override
     public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
 
+        // Verify clientid and get client
+        final String mongodbClientId = args[0].itemAt(0).getStringValue();
+
         try {
-            // Verify clientid and get client
-            final String mongodbClientId = args[0].itemAt(0).getStringValue();
-            MongodbClientStore.getInstance().validate(mongodbClientId);
-            final MongoClient client = MongodbClientStore.getInstance().get(mongodbClientId);
+            final MongoClient client = MongodbClientStore.getInstance().validate(mongodbClientId, context.getSubject().getName());
 
             // Additional parameters
             final String dbname = args[1].itemAt(0).getStringValue();
@@ -122,14 +124,19 @@ public class EvalCommand extends BasicFunction {
                 // Convert query string
                 final BasicDBObject mongoQuery = MapToBSON.convert(query);
 
-                // execute query
-                final CommandResult result = db.command(mongoQuery);
+                // execute query, the raw result is decoded directly into a map
+                try {
+                    final RawBsonDocument result = client.getDatabase(dbname)
+                            .runCommand(mongoQuery, RawBsonDocument.class);
 
-                // Convert result to string
-                if(result.ok()){
-                    result.remove("ok");
+                    // Convert result, without the status field
+                    try (final BsonReader reader = result.asBsonReader()) {
+                        retVal = new MapCodec(context).readDocument(reader, "ok");
+                    }
 
-                    retVal = BSONtoMap.convert(result,context);
+                } catch (final MongoCommandException ex) {
+                    // Failed command, no result
+                    LOG.debug(ex.getMessage());
                 }
 
             }
@@ -137,7 +144,11 @@ public class EvalCommand extends BasicFunction {
             return retVal;
 
         } catch (final Throwable t) {
+            MongodbClientStore.getInstance().registerError(mongodbClientId);
             return GenericExceptionHandler.handleException(this, t);
+
+        } finally {
+            MongodbClientStore.getInstance().release(mongodbClientId);
         }
 
 
@@ -61,12 +61,11 @@ public class ListCollections extends BasicFunction {
     @Override
     public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
 
-        try {
-            // Verify clientid and get client
-            final String mongodbClientId = args[0].itemAt(0).getStringValue();
-            MongodbClientStore.getInstance().validate(mongodbClientId);
+        // Verify clientid and get client
+        final String mongodbClientId = args[0].itemAt(0).getStringValue();
 
-            final MongoClient client = MongodbClientStore.getInstance().get(mongodbClientId);
+        try {
+            final MongoClient client = MongodbClientStore.getInstance().validate(mongodbClientId, context.getSubject().getName());
 
             // Additional parameter
             final String dbname = args[1].itemAt(0).getStringValue();
@@ -85,7 +84,11 @@ public class ListCollections extends BasicFunction {
             return valueSequence;
 
         } catch (final Throwable t) {
+            MongodbClientStore.getInstance().registerError(mongodbClientId);
             return GenericExceptionHandler.handleException(this, t);
+
+        } finally {
+            MongodbClientStore.getInstance().release(mongodbClientId);
         }
 
     }
@@ -0,0 +1,59 @@
+package org.exist.mongodb.test.shared;
+
+import org.exist.mongodb.shared.ClientIdThrottle;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the throttling of unknown client ids.
+ *
+ * @author Dannes Wessels
+ */
+public class ClientIdThrottleTest {
+
+    @Test
+    public void burstIsAllowed() {
+        final AtomicLong clock = new AtomicLong();
+        final ClientIdThrottle throttle = new ClientIdThrottle(3, 1.0, clock::get);
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(throttle.isAllowed("guest"));
+            throttle.registerInvalid("guest");
+        }
+
+        // Bucket is empty now
+        assertFalse(throttle.isAllowed("guest"));
+        assertEquals(3, throttle.getInvalidAttempts());
+        assertEquals(1, throttle.getRejectedAttempts());
+    }
+
+    @Test
+    public void tokensAreRefilled() {
+        final AtomicLong clock = new AtomicLong();
+        final ClientIdThrottle throttle = new ClientIdThrottle(2, 1.0, clock::get);
+
+        throttle.registerInvalid("guest");
+        throttle.registerInvalid("guest");
+        assertFalse(throttle.isAllowed("guest"));
+
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(500));
+        assertFalse(throttle.isAllowed("guest"));
+
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(500));
+        assertTrue(throttle.isAllowed("guest"));
+    }
+
+    @Test
+    public void usersAreIndependent() {
+        final AtomicLong clock = new AtomicLong();
+        final ClientIdThrottle throttle = new ClientIdThrottle(1, 1.0, clock::get);
+
+        throttle.registerInvalid("guest");
+        assertFalse(throttle.isAllowed("guest"));
+        assertTrue(throttle.isAllowed("admin"));
+    }
+}
@@ -0,0 +1,115 @@
+package org.exist.mongodb.test.shared;
+
+import net.jpountz.lz4.LZ4FrameInputStream;
+import org.apache.commons.io.IOUtils;
+import org.exist.mongodb.shared.CompressionCodec;
+import org.exist.mongodb.shared.CompressionCodecs;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the compression codecs of GridFS documents.
+ *
+ * @author Dannes Wessels
+ */
+public class CompressionCodecsTest {
+
+    private static final byte[] DATA = "<root><item>Hello world</item><item>Hello world</item></root>"
+            .getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void gzipRoundTrip() throws IOException {
+        final CompressionCodec codec = CompressionCodecs.get("gzip");
+        assertEquals("gzip", codec.getContentEncoding());
+        assertArrayEquals(DATA, roundTrip(codec, 1));
+        assertArrayEquals(DATA, roundTrip(codec, CompressionCodec.DEFAULT_LEVEL));
+    }
+
+    @Test
+    public void deflateRoundTrip() throws IOException {
+        final CompressionCodec codec = CompressionCodecs.get("deflate");
+        assertNull(codec.getContentEncoding());
+        assertArrayEquals(DATA, roundTrip(codec, 9));
+    }
+
+    @Test
+    public void zstdRoundTrip() throws IOException {
+        final CompressionCodec codec = CompressionCodecs.get("zstd");
+        assertEquals("zstd", codec.getContentEncoding());
+        assertArrayEquals(DATA, roundTrip(codec, CompressionCodec.DEFAULT_LEVEL));
+    }
+
+    @Test
+    public void lz4RoundTrip() throws IOException {
+        final CompressionCodec codec = CompressionCodecs.get("lz4");
+        assertNull(codec.getContentEncoding());
+        assertArrayEquals(DATA, roundTrip(codec, 1));
+    }
+
+    @Test
+    public void lz4LargeRoundTrip() throws IOException {
+        // Larger than one 4MB block of the frame
+        final byte[] data = new byte[5 * 1024 * 1024];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 251);
+        }
+
+        final CompressionCodec codec = CompressionCodecs.get("lz4");
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (final OutputStream os = codec.compress(compressed, CompressionCodec.DEFAULT_LEVEL)) {
+            os.write(data);
+        }
+        assertTrue(compressed.size() < data.length);
+
+        // Standard LZ4 frame format, readable by the default stream
+        try (final InputStream is = new LZ4FrameInputStream(new ByteArrayInputStream(compressed.toByteArray()))) {
+            assertArrayEquals(data, IOUtils.toByteArray(is));
+        }
+
+        try (final InputStream is = codec.decompress(new ByteArrayInputStream(compressed.toByteArray()))) {
+            assertArrayEquals(data, IOUtils.toByteArray(is));
+        }
+    }
+
+    @Test
+    public void storedDocument() {
+        assertNull(CompressionCodecs.forDocument(null));
+        assertNull(CompressionCodecs.forDocument(""));
+        assertEquals("gzip", CompressionCodecs.forDocument("gzip").getName());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownCodec() {
+        CompressionCodecs.forDocument("unknown");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidLevel() throws IOException {
+        CompressionCodecs.get("gzip").compress(new ByteArrayOutputStream(), 10);
+    }
+
+    private static byte[] roundTrip(final CompressionCodec codec, final int level) throws IOException {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (final OutputStream os = codec.compress(compressed, level)) {
+            os.write(DATA);
+        }
+
+        final ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try (final InputStream is = codec.decompress(new ByteArrayInputStream(compressed.toByteArray()))) {
+            final byte[] buffer = new byte[64];
+            int count;
+            while ((count = is.read(buffer)) != -1) {
+                result.write(buffer, 0, count);
+            }
+        }
+        return result.toByteArray();
+    }
+}
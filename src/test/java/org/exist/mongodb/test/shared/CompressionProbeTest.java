@@ -0,0 +1,87 @@
+package org.exist.mongodb.test.shared;
+
+import org.exist.mongodb.shared.AdaptiveCompressionOutputStream;
+import org.exist.mongodb.shared.CompressionCodec;
+import org.exist.mongodb.shared.CompressionCodecs;
+import org.exist.mongodb.shared.CompressionProbe;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the decision to compress a document.
+ *
+ * @author Dannes Wessels
+ */
+public class CompressionProbeTest {
+
+    private static final byte[] TEXT = new String(new char[2000]).replace("\0", "<item>Hello world</item>")
+            .getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] RANDOM = new byte[32 * 1024];
+
+    static {
+        new Random(42).nextBytes(RANDOM);
+    }
+
+    @Test
+    public void compressedTypes() {
+        assertTrue(CompressionProbe.isCompressedType("image/jpeg"));
+        assertTrue(CompressionProbe.isCompressedType("application/pdf"));
+        assertTrue(CompressionProbe.isCompressedType(
+                "application/vnd.openxmlformats-officedocument.wordprocessingml.document"));
+        assertTrue(CompressionProbe.isCompressedType("video/mp4; codecs=avc1"));
+
+        assertFalse(CompressionProbe.isCompressedType("image/svg+xml"));
+        assertFalse(CompressionProbe.isCompressedType("application/xml"));
+        assertFalse(CompressionProbe.isCompressedType(null));
+    }
+
+    @Test
+    public void sample() {
+        assertTrue(CompressionProbe.isCompressible(TEXT, TEXT.length));
+        assertFalse(CompressionProbe.isCompressible(RANDOM, RANDOM.length));
+        assertFalse(CompressionProbe.isCompressible(RANDOM, 0));
+    }
+
+    @Test
+    public void textIsCompressed() throws IOException {
+        final ByteArrayOutputStream target = new ByteArrayOutputStream();
+        final AdaptiveCompressionOutputStream os = write(target, TEXT, 1024);
+
+        assertTrue(os.isCompressed());
+        assertEquals(target.size(), os.getStoredBytes());
+        assertTrue(target.size() < TEXT.length);
+    }
+
+    @Test
+    public void randomDataIsStoredAsIs() throws IOException {
+        final ByteArrayOutputStream target = new ByteArrayOutputStream();
+        final AdaptiveCompressionOutputStream os = write(target, RANDOM, 1024);
+
+        assertFalse(os.isCompressed());
+        assertArrayEquals(RANDOM, target.toByteArray());
+    }
+
+    @Test
+    public void noSampleAlwaysCompresses() throws IOException {
+        final AdaptiveCompressionOutputStream os = write(new ByteArrayOutputStream(), RANDOM, 0);
+
+        assertTrue(os.isCompressed());
+    }
+
+    private static AdaptiveCompressionOutputStream write(final ByteArrayOutputStream target, final byte[] data,
+                                                         final int sampleSize) throws IOException {
+        final CompressionCodec codec = CompressionCodecs.get("gzip");
+        final AdaptiveCompressionOutputStream os = new AdaptiveCompressionOutputStream(target, codec, 1, sampleSize);
+        os.write(data, 0, 100);
+        os.write(data, 100, data.length - 100);
+        os.close();
+        return os;
+    }
+}
@@ -0,0 +1,59 @@
+package org.exist.mongodb.test.shared;
+
+import org.exist.mongodb.shared.ConditionalRequest;
+import org.junit.Test;
+
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the evaluation of conditional HTTP requests.
+ *
+ * @author Dannes Wessels
+ */
+public class ConditionalRequestTest {
+
+    // Sun, 06 Nov 1994 08:49:37 GMT
+    private static final Date UPLOAD_DATE = new Date(784111777000L);
+
+    @Test
+    public void etag() {
+        assertEquals("\"abc\"", ConditionalRequest.etag("abc", null));
+        assertEquals("W/\"def\"", ConditionalRequest.etag("abc", "def"));
+        assertNull(ConditionalRequest.etag(null, null));
+    }
+
+    @Test
+    public void formatDate() {
+        assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", ConditionalRequest.formatDate(UPLOAD_DATE));
+    }
+
+    @Test
+    public void ifNoneMatch() {
+        assertTrue(ConditionalRequest.isNotModified("\"abc\"", null, "\"abc\"", UPLOAD_DATE));
+        assertTrue(ConditionalRequest.isNotModified("\"xyz\", W/\"abc\"", null, "\"abc\"", UPLOAD_DATE));
+        assertTrue(ConditionalRequest.isNotModified("*", null, "\"abc\"", UPLOAD_DATE));
+        assertFalse(ConditionalRequest.isNotModified("\"xyz\"", null, "\"abc\"", UPLOAD_DATE));
+
+        // If-Modified-Since is ignored when If-None-Match is present
+        assertFalse(ConditionalRequest.isNotModified("\"xyz\"", "Sun, 06 Nov 1994 08:49:37 GMT", "\"abc\"", UPLOAD_DATE));
+    }
+
+    @Test
+    public void ifModifiedSince() {
+        assertTrue(ConditionalRequest.isNotModified(null, "Sun, 06 Nov 1994 08:49:37 GMT", "\"abc\"", UPLOAD_DATE));
+        assertTrue(ConditionalRequest.isNotModified(null, "Mon, 07 Nov 1994 08:49:37 GMT", "\"abc\"", UPLOAD_DATE));
+        assertFalse(ConditionalRequest.isNotModified(null, "Sat, 05 Nov 1994 08:49:37 GMT", "\"abc\"", UPLOAD_DATE));
+        assertFalse(ConditionalRequest.isNotModified(null, "yesterday", "\"abc\"", UPLOAD_DATE));
+    }
+
+    @Test
+    public void ifRange() {
+        assertTrue(ConditionalRequest.isRangeAllowed(null, "\"abc\"", UPLOAD_DATE));
+        assertTrue(ConditionalRequest.isRangeAllowed("\"abc\"", "\"abc\"", UPLOAD_DATE));
+        assertFalse(ConditionalRequest.isRangeAllowed("\"xyz\"", "\"abc\"", UPLOAD_DATE));
+        assertFalse(ConditionalRequest.isRangeAllowed("W/\"abc\"", "W/\"abc\"", UPLOAD_DATE));
+        assertTrue(ConditionalRequest.isRangeAllowed("Sun, 06 Nov 1994 08:49:37 GMT", "\"abc\"", UPLOAD_DATE));
+    }
+}
@@ -0,0 +1,272 @@
+package org.exist.mongodb.test.shared;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.MongoClient;
+import com.mongodb.gridfs.GridFS;
+import com.mongodb.gridfs.GridFSDBFile;
+import com.mongodb.gridfs.GridFSInputFile;
+import org.apache.commons.io.IOUtils;
+import org.bson.types.ObjectId;
+import org.exist.mongodb.shared.ChunkCache;
+import org.exist.mongodb.shared.GridfsSeekableChannel;
+import org.exist.mongodb.shared.ParallelChunkOutputStream;
+import org.exist.mongodb.shared.PrefetchChunkInputStream;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for reading and writing GridFS chunks, requires the MongoDB server
+ * that is started for the tests.
+ *
+ * @author Dannes Wessels
+ */
+public class GridfsChunksTest {
+
+    private static final int CHUNK_SIZE = 10;
+
+    private static MongoClient client;
+    private static DB db;
+
+    private GridFS gfs;
+    private byte[] data;
+    private GridFSDBFile file;
+
+    @BeforeClass
+    public static void connect() {
+        client = new MongoClient();
+        db = client.getDB("mongrelChunksTest");
+    }
+
+    @AfterClass
+    public static void disconnect() {
+        db.dropDatabase();
+        client.close();
+    }
+
+    @Before
+    public void store() {
+        gfs = new GridFS(db, "chunks" + new ObjectId());
+
+        data = new byte[45];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+
+        final GridFSInputFile input = gfs.createFile(data);
+        input.setFilename("data.bin");
+        input.setChunkSize(CHUNK_SIZE);
+        input.save();
+
+        file = gfs.findOne((ObjectId) input.getId());
+    }
+
+    private void removeChunk(final Object id, final int n) {
+        gfs.getChunksCollection().remove(new BasicDBObject("files_id", id).append("n", n));
+    }
+
+    private long countChunks(final Object id) {
+        return gfs.getChunksCollection().count(new BasicDBObject("files_id", id));
+    }
+
+    private static byte[] read(final GridfsSeekableChannel channel, final long position, final int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        channel.position(position);
+        while (buffer.hasRemaining() && channel.read(buffer) > 0) {
+            // Read until the buffer is full or the end is reached
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    @Test
+    public void channelReadsAcrossChunks() throws IOException {
+        try (final GridfsSeekableChannel channel = new GridfsSeekableChannel(gfs, file, 2)) {
+            assertEquals(data.length, channel.size());
+            assertArrayEquals(Arrays.copyOfRange(data, 5, 27), read(channel, 5, 22));
+            assertArrayEquals(Arrays.copyOfRange(data, 40, 45), read(channel, 40, 20));
+        }
+    }
+
+    @Test
+    public void channelReadPastEnd() throws IOException {
+        try (final GridfsSeekableChannel channel = new GridfsSeekableChannel(gfs, file, 2)) {
+            channel.position(data.length + 10);
+            assertEquals(-1, channel.read(ByteBuffer.allocate(4)));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void channelMissingChunk() throws IOException {
+        removeChunk(file.getId(), 2);
+        try (final GridfsSeekableChannel channel = new GridfsSeekableChannel(gfs, file, 2)) {
+            read(channel, 25, 2);
+        }
+    }
+
+    @Test
+    public void channelKeepsRecentChunks() throws IOException {
+        try (final GridfsSeekableChannel channel = new GridfsSeekableChannel(gfs, file, 1)) {
+            read(channel, 0, 2);
+            removeChunk(file.getId(), 0);
+
+            // Chunk is still cached
+            assertArrayEquals(Arrays.copyOfRange(data, 2, 4), read(channel, 2, 2));
+
+            // Reading chunk 1 evicts chunk 0
+            read(channel, 12, 2);
+            try {
+                read(channel, 0, 2);
+                fail("Chunk 0 must be retrieved again");
+            } catch (final IOException ex) {
+                // Expected, chunk 0 is removed
+            }
+        }
+    }
+
+    @Test
+    public void sharedCacheKeepsChunksAcrossChannels() throws IOException {
+        final ChunkCache shared = new ChunkCache(1024);
+        try (final GridfsSeekableChannel channel = new GridfsSeekableChannel(gfs, file, 1, shared)) {
+            read(channel, 5, 10);
+        }
+        assertEquals(2 * CHUNK_SIZE, shared.size());
+
+        removeChunk(file.getId(), 0);
+        removeChunk(file.getId(), 1);
+
+        // A new channel on the same file reads the chunks from the shared cache
+        try (final GridfsSeekableChannel channel = new GridfsSeekableChannel(gfs, file, 1, shared)) {
+            assertArrayEquals(Arrays.copyOfRange(data, 5, 15), read(channel, 5, 10));
+        }
+    }
+
+    @Test
+    public void sharedCacheIsBounded() throws IOException {
+        final ChunkCache shared = new ChunkCache(2 * CHUNK_SIZE);
+        try (final GridfsSeekableChannel channel = new GridfsSeekableChannel(gfs, file, 1, shared)) {
+            read(channel, 0, data.length);
+        }
+
+        // The last chunk is 5 bytes, chunk 3 is kept as well
+        assertEquals(CHUNK_SIZE + 5, shared.size());
+
+        removeChunk(file.getId(), 0);
+        try (final GridfsSeekableChannel channel = new GridfsSeekableChannel(gfs, file, 1, shared)) {
+            assertArrayEquals(Arrays.copyOfRange(data, 30, 45), read(channel, 30, 15));
+            read(channel, 0, 2);
+            fail("Chunk 0 must be retrieved again");
+        } catch (final IOException ex) {
+            // Expected, chunk 0 is evicted and removed
+        }
+    }
+
+    @Test
+    public void sharedCacheDistinguishesFiles() throws IOException {
+        final ChunkCache shared = new ChunkCache(1024);
+        try (final GridfsSeekableChannel channel = new GridfsSeekableChannel(gfs, file, 1, shared)) {
+            read(channel, 0, 2);
+        }
+
+        final byte[] other = new byte[CHUNK_SIZE];
+        Arrays.fill(other, (byte) 7);
+        final GridFSInputFile input = gfs.createFile(other);
+        input.setChunkSize(CHUNK_SIZE);
+        input.save();
+
+        try (final GridfsSeekableChannel channel = new GridfsSeekableChannel(gfs, gfs.findOne((ObjectId) input.getId()), 1, shared)) {
+            assertArrayEquals(Arrays.copyOf(other, 2), read(channel, 0, 2));
+        }
+    }
+
+    @Test
+    public void prefetchReadsRange() throws IOException {
+        try (final InputStream is = new PrefetchChunkInputStream(gfs, file, 2, 15, 20)) {
+            assertArrayEquals(Arrays.copyOfRange(data, 15, 35), IOUtils.toByteArray(is));
+        }
+    }
+
+    @Test
+    public void prefetchRangeSkipsOtherChunks() throws IOException {
+        removeChunk(file.getId(), 0);
+        removeChunk(file.getId(), 4);
+        try (final InputStream is = new PrefetchChunkInputStream(gfs, file, 2, 12, 20)) {
+            assertArrayEquals(Arrays.copyOfRange(data, 12, 32), IOUtils.toByteArray(is));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void prefetchMissingChunk() throws IOException {
+        removeChunk(file.getId(), 1);
+        try (final InputStream is = new PrefetchChunkInputStream(gfs, file, 2)) {
+            IOUtils.toByteArray(is);
+        }
+    }
+
+    @Test
+    public void parallelWrite() throws Exception {
+        final GridFSInputFile output = gfs.createFile("parallel.bin");
+        output.setChunkSize(CHUNK_SIZE);
+
+        try (final ParallelChunkOutputStream os = new ParallelChunkOutputStream(gfs, output, 3)) {
+            os.write(data);
+        }
+
+        final GridFSDBFile stored = gfs.findOne((ObjectId) output.getId());
+        assertNotNull(stored);
+        assertEquals(data.length, stored.getLength());
+        try (final InputStream is = new PrefetchChunkInputStream(gfs, stored, 2)) {
+            assertArrayEquals(data, IOUtils.toByteArray(is));
+        }
+    }
+
+    @Test
+    public void parallelAbortRemovesChunks() throws Exception {
+        final GridFSInputFile output = gfs.createFile("aborted.bin");
+        output.setChunkSize(CHUNK_SIZE);
+
+        final ParallelChunkOutputStream os = new ParallelChunkOutputStream(gfs, output, 3);
+        os.write(data);
+        os.abort();
+
+        assertEquals(0, countChunks(output.getId()));
+        assertNull(gfs.findOne((ObjectId) output.getId()));
+    }
+
+    @Test
+    public void parallelFailureRemovesChunks() throws Exception {
+        final GridFSInputFile output = gfs.createFile("failed.bin");
+        output.setChunkSize(CHUNK_SIZE);
+
+        // Chunk 1 exists already, the unique index on files_id and n rejects the insert
+        gfs.getChunksCollection().insert(new BasicDBObject("files_id", output.getId()).append("n", 1)
+                .append("data", new byte[CHUNK_SIZE]));
+
+        // Same handling as gridfs:store
+        final ParallelChunkOutputStream os = new ParallelChunkOutputStream(gfs, output, 3);
+        try {
+            os.write(data);
+            os.close();
+            fail("Writing chunk 1 must fail");
+        } catch (final IOException | RuntimeException ex) {
+            // Expected, duplicate chunk
+            os.abort();
+        }
+
+        assertEquals(0, countChunks(output.getId()));
+        assertNull(gfs.findOne((ObjectId) output.getId()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooManyWriters() throws Exception {
+        new ParallelChunkOutputStream(gfs, gfs.createFile("writers.bin"), ParallelChunkOutputStream.MAX_WRITERS + 1);
+    }
+}
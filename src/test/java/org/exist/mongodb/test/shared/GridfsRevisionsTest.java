@@ -0,0 +1,133 @@
+package org.exist.mongodb.test.shared;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.gridfs.GridFS;
+import com.mongodb.gridfs.GridFSDBFile;
+import com.mongodb.gridfs.GridFSInputFile;
+import org.apache.commons.io.IOUtils;
+import org.bson.types.ObjectId;
+import org.exist.mongodb.shared.GridfsRevisions;
+import org.exist.mongodb.shared.PrefetchChunkInputStream;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for parsing and finding GridFS revisions. Finding revisions requires
+ * the MongoDB server that is started for the tests.
+ *
+ * @author Dannes Wessels
+ */
+public class GridfsRevisionsTest {
+
+    private static MongoClient client;
+    private static DB db;
+
+    @BeforeClass
+    public static void connect() {
+        client = new MongoClient();
+        db = client.getDB("mongrelRevisionsTest");
+    }
+
+    @AfterClass
+    public static void disconnect() {
+        db.dropDatabase();
+        client.close();
+    }
+
+    @Test
+    public void latest() {
+        assertEquals(GridfsRevisions.LATEST, GridfsRevisions.parse(null));
+        assertEquals(GridfsRevisions.LATEST, GridfsRevisions.parse(""));
+        assertEquals(GridfsRevisions.LATEST, GridfsRevisions.parse("latest"));
+        assertEquals(GridfsRevisions.LATEST, GridfsRevisions.parse(" Latest "));
+    }
+
+    @Test
+    public void numbers() {
+        assertEquals(0, GridfsRevisions.parse("0"));
+        assertEquals(3, GridfsRevisions.parse("3"));
+        assertEquals(-2, GridfsRevisions.parse("-2"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalid() {
+        GridfsRevisions.parse("newest");
+    }
+
+    @Test
+    public void findWithIndex() {
+        final GridFS gfs = createRevisions();
+        GridfsRevisions.ensureIndex(gfs);
+
+        boolean found = false;
+        for (final DBObject index : gfs.getFilesCollection().getIndexInfo()) {
+            found |= new BasicDBObject("filename", 1).append("uploadDate", -1).equals(index.get("key"));
+        }
+        assertTrue(found);
+
+        assertRevisions(gfs);
+    }
+
+    @Test
+    public void findWithoutIndex() {
+        final GridFS gfs = createRevisions();
+        gfs.getFilesCollection().dropIndexes();
+
+        assertRevisions(gfs);
+    }
+
+    private static void assertRevisions(final GridFS gfs) {
+        assertEquals("0", content(gfs, GridfsRevisions.find(gfs, "doc.txt", 0)));
+        assertEquals("1", content(gfs, GridfsRevisions.find(gfs, "doc.txt", 1)));
+        assertEquals("2", content(gfs, GridfsRevisions.find(gfs, "doc.txt", GridfsRevisions.LATEST)));
+        assertEquals("1", content(gfs, GridfsRevisions.find(gfs, "doc.txt", -2)));
+        assertNull(GridfsRevisions.find(gfs, "doc.txt", 3));
+        assertNull(GridfsRevisions.find(gfs, "doc.txt", -4));
+        assertNull(GridfsRevisions.find(gfs, "other.txt", 0));
+    }
+
+    /**
+     * Store three revisions, the content is the revision number.
+     */
+    private static GridFS createRevisions() {
+        final GridFS gfs = new GridFS(db, "revisions" + new ObjectId());
+        for (int i = 0; i < 3; i++) {
+            final GridFSInputFile file = gfs.createFile(String.valueOf(i).getBytes(StandardCharsets.UTF_8));
+            file.setFilename("doc.txt");
+            file.put("uploadDate", new Date(1000L * i));
+            file.save();
+        }
+        return gfs;
+    }
+
+    @Test
+    public void findReturnsFilesDocument() {
+        final GridFS gfs = createRevisions();
+
+        final GridFSDBFile file = GridfsRevisions.find(gfs, "doc.txt", 1);
+        assertNotNull(file);
+        assertEquals("doc.txt", file.getFilename());
+        assertEquals(1, file.getLength());
+        assertEquals(new Date(1000L), file.getUploadDate());
+    }
+
+    private static String content(final GridFS gfs, final GridFSDBFile file) {
+        assertNotNull(file);
+        try (final InputStream is = new PrefetchChunkInputStream(gfs, file, 2)) {
+            return new String(IOUtils.toByteArray(is), StandardCharsets.UTF_8);
+        } catch (final IOException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+}
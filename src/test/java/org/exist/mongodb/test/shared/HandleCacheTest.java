@@ -0,0 +1,146 @@
+package org.exist.mongodb.test.shared;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.gridfs.GridFS;
+import org.exist.mongodb.shared.HandleCache;
+import org.exist.mongodb.shared.MongodbClientStore;
+import org.exist.xquery.XPathException;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the cache of bucket handles. Only handles of clients in the
+ * client store are cached. The GridFS handles require the MongoDB server that
+ * is started for the tests, the other tests need no connection.
+ *
+ * @author Dannes Wessels
+ */
+public class HandleCacheTest {
+
+    private static MongoClient client;
+
+    private final HandleCache cache = HandleCache.getInstance();
+
+    @BeforeClass
+    public static void createClient() {
+        client = new MongoClient();
+    }
+
+    @AfterClass
+    public static void closeClient() {
+        client.close();
+    }
+
+    @Before
+    public void clear() throws XPathException {
+        cache.configure(HandleCache.DEFAULT_MAX_ENTRIES);
+        MongodbClientStore.getInstance().add("a", new MongoClient(), "guest");
+        MongodbClientStore.getInstance().add("b", new MongoClient(), "guest");
+    }
+
+    @After
+    public void close() {
+        MongodbClientStore.getInstance().close("a");
+        MongodbClientStore.getInstance().close("b");
+    }
+
+    @Test
+    public void handleIsReused() {
+        final GridFSBucket first = cache.getBucket("a", client, "db", "fs");
+        final GridFSBucket second = cache.getBucket("a", client, "db", "fs");
+        final GridFSBucket other = cache.getBucket("a", client, "db", "other");
+
+        assertSame(first, second);
+        assertNotSame(first, other);
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void handlesArePerClient() {
+        final GridFSBucket first = cache.getBucket("a", client, "db", "fs");
+        final GridFSBucket second = cache.getBucket("b", client, "db", "fs");
+
+        assertNotSame(first, second);
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() {
+        cache.configure(2);
+
+        final GridFSBucket first = cache.getBucket("a", client, "db", "one");
+        cache.getBucket("b", client, "db", "two");
+        cache.getBucket("a", client, "db", "one");
+        cache.getBucket("a", client, "db", "three");
+
+        assertEquals(2, cache.size());
+        assertSame(first, cache.getBucket("a", client, "db", "one"));
+    }
+
+    @Test
+    public void closedClientIsInvalidated() {
+        cache.getBucket("a", client, "db", "fs");
+        cache.getBucket("b", client, "db", "fs");
+
+        MongodbClientStore.getInstance().close("a");
+
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void closedClientIsNotCached() {
+        MongodbClientStore.getInstance().close("a");
+
+        final GridFSBucket first = cache.getBucket("a", client, "db", "fs");
+        final GridFSBucket second = cache.getBucket("a", client, "db", "fs");
+
+        assertNotSame(first, second);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void droppedCollectionIsInvalidated() {
+        final GridFSBucket first = cache.getBucket("a", client, "db", "fs");
+        cache.getBucket("b", client, "db", "fs");
+        cache.getBucket("a", client, "other", "fs");
+
+        cache.invalidate("db", "fs.files");
+
+        assertEquals(1, cache.size());
+        assertNotSame(first, cache.getBucket("a", client, "db", "fs"));
+    }
+
+    @Test
+    public void revisionIndexIsEnsuredOnce() {
+        cache.configure(1);
+
+        final DB db = client.getDB("mongrelHandleCacheTest");
+        final GridFS gfs = cache.getGridFS("a", client, db.getName(), "fs");
+        assertTrue(hasRevisionIndex(gfs));
+
+        // Evict the bucket, it is created again without the revision index
+        gfs.getFilesCollection().dropIndexes();
+        cache.getGridFS("a", client, db.getName(), "other");
+        assertNotSame(gfs, cache.getGridFS("a", client, db.getName(), "fs"));
+        assertFalse(hasRevisionIndex(gfs));
+
+        db.dropDatabase();
+    }
+
+    private static boolean hasRevisionIndex(final GridFS gfs) {
+        boolean found = false;
+        for (final DBObject index : gfs.getFilesCollection().getIndexInfo()) {
+            found |= new BasicDBObject("filename", 1).append("uploadDate", -1).equals(index.get("key"));
+        }
+        return found;
+    }
+}
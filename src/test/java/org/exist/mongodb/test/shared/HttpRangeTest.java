@@ -0,0 +1,63 @@
+package org.exist.mongodb.test.shared;
+
+import org.exist.mongodb.shared.HttpRange;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for parsing the HTTP Range header.
+ *
+ * @author Dannes Wessels
+ */
+public class HttpRangeTest {
+
+    @Test
+    public void singleRange() {
+        final List<HttpRange> ranges = HttpRange.parse("bytes=0-499", 1000);
+
+        assertEquals(1, ranges.size());
+        assertEquals(0, ranges.get(0).getStart());
+        assertEquals(499, ranges.get(0).getEnd());
+        assertEquals(500, ranges.get(0).getLength());
+        assertEquals("bytes 0-499/1000", ranges.get(0).toContentRange(1000));
+    }
+
+    @Test
+    public void openAndSuffixRanges() {
+        final List<HttpRange> ranges = HttpRange.parse("bytes=900-, -50", 1000);
+
+        assertEquals(2, ranges.size());
+        assertEquals(900, ranges.get(0).getStart());
+        assertEquals(999, ranges.get(0).getEnd());
+        assertEquals(950, ranges.get(1).getStart());
+        assertEquals(999, ranges.get(1).getEnd());
+    }
+
+    @Test
+    public void endIsLimitedToSize() {
+        final List<HttpRange> ranges = HttpRange.parse("bytes=500-5000", 1000);
+
+        assertEquals(1, ranges.size());
+        assertEquals(999, ranges.get(0).getEnd());
+    }
+
+    @Test
+    public void unsatisfiableRange() {
+        final List<HttpRange> ranges = HttpRange.parse("bytes=1000-1100", 1000);
+
+        assertNotNull(ranges);
+        assertTrue(ranges.isEmpty());
+    }
+
+    @Test
+    public void invalidHeaderIsIgnored() {
+        assertNull(HttpRange.parse(null, 1000));
+        assertNull(HttpRange.parse("items=0-10", 1000));
+        assertNull(HttpRange.parse("bytes=10-5", 1000));
+        assertNull(HttpRange.parse("bytes=a-b", 1000));
+        assertNull(HttpRange.parse("bytes=10", 1000));
+    }
+}
@@ -0,0 +1,129 @@
+package org.exist.mongodb.test.shared;
+
+import com.mongodb.MongoClient;
+import org.exist.mongodb.shared.MongodbClientStore;
+import org.exist.xquery.XPathException;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the registration of calls on clients, no connection to a server is needed.
+ *
+ * @author Dannes Wessels
+ */
+public class MongodbClientStoreTest {
+
+    private final MongodbClientStore store = MongodbClientStore.getInstance();
+
+    @After
+    public void disableReaper() {
+        store.configure(0, 0);
+    }
+
+    private String addClient() throws XPathException {
+        final String id = UUID.randomUUID().toString();
+        store.add(id, new MongoClient(), "test");
+        return id;
+    }
+
+    private int getInFlight(final String id) {
+        return store.statistics().stream()
+                .filter(wrapper -> wrapper.getMongodbClientId().equals(id))
+                .findFirst()
+                .map(MongodbClientStore.MongoClientWrapper::getInFlight)
+                .orElse(-1);
+    }
+
+    @Test
+    public void clientInUseIsNotClosedAsIdle() throws Exception {
+        final String id = addClient();
+
+        store.validate(id, "test");
+        store.configure(1, 0);
+
+        // The reaper runs every second
+        Thread.sleep(2500);
+        assertTrue(store.isValid(id));
+
+        store.release(id);
+        Thread.sleep(2500);
+        assertFalse(store.isValid(id));
+    }
+
+    @Test
+    public void closedClientCannotBeAcquired() throws XPathException {
+        final String id = addClient();
+
+        assertTrue(store.acquire(id));
+        store.release(id);
+
+        store.close(id);
+        assertFalse(store.acquire(id));
+    }
+
+    @Test
+    public void releaseWithoutCallIsIgnored() throws XPathException {
+        final String id = addClient();
+
+        store.release(id);
+        store.release(id);
+        assertEquals(0, getInFlight(id));
+
+        store.validate(id, "test");
+        assertEquals(1, getInFlight(id));
+
+        store.release(id);
+        assertEquals(0, getInFlight(id));
+
+        store.close(id);
+    }
+
+    @Test
+    public void addedClientCountsForMaximum() throws XPathException {
+        final int before = store.statistics().size();
+        store.configure(0, before + 1);
+        final String id = addClient();
+
+        final MongoClient client = new MongoClient();
+        try {
+            store.add(UUID.randomUUID().toString(), client, "test");
+            fail("Maximum number of clients is exceeded");
+        } catch (final XPathException ex) {
+            // expected
+            client.close();
+        } finally {
+            store.close(id);
+        }
+
+        assertEquals(before, store.statistics().size());
+    }
+
+    @Test
+    public void validIdIsNotThrottled() throws XPathException {
+        final String id = addClient();
+        final String user = "throttled-" + UUID.randomUUID();
+
+        // Use up the burst of unknown ids
+        for (int i = 0; i < 20; i++) {
+            final String unknown = UUID.randomUUID().toString();
+            try {
+                store.validate(unknown, user);
+                fail("Unknown id was accepted");
+            } catch (final XPathException ex) {
+                // expected
+            } finally {
+                store.release(unknown);
+            }
+        }
+
+        assertNotNull(store.validate(id, user));
+        assertEquals(1, getInFlight(id));
+
+        store.release(id);
+        store.close(id);
+    }
+}